@@ -0,0 +1,61 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Prints the bytes the benchmark thread allocated per operation after each iteration, as read from the thread
+ * allocation counter of the JVM; <tt>-prof gc</tt> only reports the number and the time of the collections.
+ *
+ * <p>
+ * Benchmarks take the counter as a parameter and {@link #count() count} each of their operations.
+ * </p>
+ */
+@State(Scope.Thread)
+public class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private long allocatedAtStart;
+    private long operations;
+
+    @Setup(Level.Iteration)
+    public void start() {
+        operations = 0;
+        allocatedAtStart = allocated();
+    }
+
+    public void count() {
+        operations++;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        if (operations > 0) {
+            System.out.printf("%n%,d bytes allocated per operation%n", (allocated() - allocatedAtStart) / operations);
+        }
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import com.google.common.io.ByteStreams;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.isisaddons.module.pdf.fixture.dom.OrderLine;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.dom.templates.InMemoryPdfMetrics;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfAppearanceCache;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfBinding;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfCompactWriter;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfDocumentStorage;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfFieldValues;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfFlattener;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfIncrementalWriter;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfOutputProfile;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfRenderingContexts;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfRenderingService;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfTemplate;
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each step of rendering a customer confirmation from the fixture's template, for orders of growing size.
+ *
+ * <p>
+ * The orders are plain (unenhanced) objects, so no object store is involved. With more than six lines the order
+ * lines continue on further pages.
+ * </p>
+ *
+ * <p>
+ * The size of the confirmation, saved in full with its form and {@link PdfFlattener flattened}, is printed once for
+ * each order size; {@link #rasterise()} and {@link #rasteriseFlattened()} compare the cost of showing either.
+ * </p>
+ *
+ * <p>
+ * The render benchmarks print the bytes allocated per document after each iteration, see {@link AllocationCounter}.
+ * Those rendering through the {@link PdfRenderingService} do so with its rendering contexts pooled, as by default, and
+ * with the pool turned off.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CustomerConfirmationBenchmark {
+
+    private static final String TEMPLATE_NAME = "CustomerConfirmation.pdf";
+    private static final String BINDING_NAME = "CustomerConfirmation.bindings.properties";
+
+    @Param({"1", "6", "60", "600"})
+    public int lineCount;
+
+    private byte[] templateBytes;
+    private PdfTemplate template;
+    private PdfTemplate templateWithAppearanceCache;
+    private PdfBinding<Order> binding;
+    private Order order;
+    private PdfFieldValues values;
+    private PDDocument populated;
+    private PdfIncrementalWriter incrementalWriter;
+    private PDDocument populatedIncrementally;
+    private PDDocument saved;
+    private PDDocument savedFlattened;
+    private PdfRenderingService pooledRenderingService;
+    private PdfRenderingService unpooledRenderingService;
+
+    @Setup
+    public void setUp() throws IOException, COSVisitorException {
+        try (InputStream input = CustomerConfirmation.class.getResourceAsStream(TEMPLATE_NAME)) {
+            templateBytes = ByteStreams.toByteArray(input);
+        }
+        template = PdfTemplate.parse(TEMPLATE_NAME, templateBytes);
+        templateWithAppearanceCache = PdfTemplate.parse(TEMPLATE_NAME, templateBytes);
+        final PdfAppearanceCache appearanceCache = new PdfAppearanceCache();
+        appearanceCache.init(Collections.<String, String>emptyMap());
+        templateWithAppearanceCache.setAppearanceCache(appearanceCache);
+        binding = PdfBinding.compile(
+                template.getFieldIndex(), Order.class, PdfBinding.loadDescriptor(CustomerConfirmation.class, BINDING_NAME));
+
+        order = new Order();
+        order.setNumber("1");
+        order.setDate(new LocalDate(2015, 1, 1));
+        order.setCustomerName("Benchmark Customer");
+        order.setPreferences("Deliver to the reception");
+        order.setOrderLines(new TreeSet<OrderLine>());
+        for (int i = 0; i < lineCount; i++) {
+            final OrderLine orderLine = new OrderLine();
+            orderLine.setOrder(order);
+            orderLine.setDescription(String.format("Article %04d", i));
+            orderLine.setCost(new BigDecimal("9.99"));
+            orderLine.setQuantity(1 + i % 5);
+            order.addToOrderLines(orderLine);
+        }
+        values = binding.valuesOf(order);
+        populated = template.newDocument(values);
+        incrementalWriter = new PdfIncrementalWriter(template);
+        populatedIncrementally = incrementalWriter.newDocument(values, PdfTemplate.HEAP);
+        pooledRenderingService = newRenderingService(true);
+        unpooledRenderingService = newRenderingService(false);
+
+        final byte[] savedBytes = save();
+        final byte[] savedFlattenedBytes = saveFlattened();
+        System.out.printf("%n%d lines: %d bytes with the form, %d bytes flattened%n",
+                lineCount, savedBytes.length, savedFlattenedBytes.length);
+        saved = PDDocument.load(new ByteArrayInputStream(savedBytes));
+        savedFlattened = PDDocument.load(new ByteArrayInputStream(savedFlattenedBytes));
+    }
+
+    private static PdfRenderingService newRenderingService(final boolean pooled) {
+        final PdfDocumentStorage storage = new PdfDocumentStorage();
+        storage.init(Collections.<String, String>emptyMap());
+        final PdfRenderingContexts contexts = new PdfRenderingContexts();
+        contexts.init(Collections.singletonMap("isis.module.pdf.rendering.pooled", String.valueOf(pooled)));
+        final PdfRenderingService service = new PdfRenderingService(new InMemoryPdfMetrics(), storage, contexts);
+        service.init(Collections.<String, String>emptyMap());
+        return service;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        pooledRenderingService.shutdown();
+        unpooledRenderingService.shutdown();
+        populated.close();
+        populatedIncrementally.close();
+        saved.close();
+        savedFlattened.close();
+    }
+
+    /**
+     * Parsing the template from scratch, as done before templates were parsed once and copied.
+     */
+    @Benchmark
+    public int parse() throws IOException {
+        try (PDDocument document = PDDocument.load(new ByteArrayInputStream(templateBytes))) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    @Benchmark
+    public int copy() throws IOException {
+        try (PDDocument document = template.newDocument()) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    @Benchmark
+    public PdfFieldValues bind() {
+        return binding.valuesOf(order);
+    }
+
+    @Benchmark
+    public int populate() throws IOException {
+        try (PDDocument document = template.newDocument(values)) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    /**
+     * As {@link #populate()}, but with the appearances of the values taken from a {@link PdfAppearanceCache}, as for
+     * the templates of the registry; after the first invocation every value is found in the cache.
+     */
+    @Benchmark
+    public int populateWithAppearanceCache() throws IOException {
+        try (PDDocument document = templateWithAppearanceCache.newDocument(values)) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException, COSVisitorException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        populated.save(target);
+        return target.toByteArray();
+    }
+
+    /**
+     * Orders with continuation pages are saved in full, as by {@link #save()}.
+     */
+    @Benchmark
+    public byte[] saveIncremental() throws IOException, COSVisitorException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        if (!incrementalWriter.write(populatedIncrementally, target)) {
+            populatedIncrementally.save(target);
+        }
+        return target.toByteArray();
+    }
+
+    /**
+     * Saving with object streams and a cross-reference stream, as for the {@link PdfOutputProfile#COMPACT} profile.
+     */
+    @Benchmark
+    public byte[] saveCompact() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        new PdfCompactWriter().write(populated, target);
+        return target.toByteArray();
+    }
+
+    /**
+     * The whole path of {@link CustomerConfirmation#renderCustomerConfirmation(Order, boolean)}, less the cache, with
+     * incremental saves turned off.
+     */
+    @Benchmark
+    public byte[] render(final AllocationCounter allocations) throws IOException, COSVisitorException {
+        allocations.count();
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        try (PDDocument document = template.newDocument(binding.valuesOf(order))) {
+            document.save(target);
+        }
+        return target.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] renderIncremental() throws IOException, COSVisitorException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        final PdfIncrementalWriter writer = new PdfIncrementalWriter(template);
+        try (PDDocument document = writer.newDocument(binding.valuesOf(order), PdfTemplate.HEAP)) {
+            if (!writer.write(document, target)) {
+                document.save(target);
+            }
+        }
+        return target.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] renderFlattened(final AllocationCounter allocations) throws IOException, COSVisitorException {
+        allocations.count();
+        return saveFlattened();
+    }
+
+    private byte[] saveFlattened() throws IOException, COSVisitorException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        try (PDDocument document = template.newDocument(binding.valuesOf(order))) {
+            PdfFlattener.flatten(document);
+            document.save(target);
+        }
+        return target.toByteArray();
+    }
+
+    /**
+     * The {@link PdfRenderingService} as the module uses it, saving incrementally where it can, with the documents
+     * populated and saved in the buffers of a pooled rendering context.
+     */
+    @Benchmark
+    public byte[] renderPooled(final AllocationCounter allocations) throws Exception {
+        allocations.count();
+        return pooledRenderingService.render(template, binding.valuesOf(order), false);
+    }
+
+    /**
+     * As {@link #renderPooled(AllocationCounter)}, but with <tt>isis.module.pdf.rendering.pooled</tt> set to
+     * <tt>false</tt>, so that each document gets buffers of its own.
+     */
+    @Benchmark
+    public byte[] renderUnpooled(final AllocationCounter allocations) throws Exception {
+        allocations.count();
+        return unpooledRenderingService.render(template, binding.valuesOf(order), false);
+    }
+
+    @Benchmark
+    public byte[] renderFlattenedPooled(final AllocationCounter allocations) throws Exception {
+        allocations.count();
+        return pooledRenderingService.render(template, binding.valuesOf(order), true);
+    }
+
+    @Benchmark
+    public byte[] renderFlattenedUnpooled(final AllocationCounter allocations) throws Exception {
+        allocations.count();
+        return unpooledRenderingService.render(template, binding.valuesOf(order), true);
+    }
+
+    /**
+     * Rasterising the first page of the saved confirmation, which holds the form, as a viewer or printer would.
+     */
+    @Benchmark
+    public BufferedImage rasterise() throws IOException {
+        return firstPageOf(saved).convertToImage(BufferedImage.TYPE_INT_RGB, 72);
+    }
+
+    @Benchmark
+    public BufferedImage rasteriseFlattened() throws IOException {
+        return firstPageOf(savedFlattened).convertToImage(BufferedImage.TYPE_INT_RGB, 72);
+    }
+
+    private static PDPage firstPageOf(final PDDocument document) {
+        return (PDPage) document.getDocumentCatalog().getAllPages().get(0);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfFieldIndex;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfFieldValues;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures loading, populating and saving templates with a growing number of text fields, to show how each step
+ * scales with the size of the form rather than with the size of the data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyntheticTemplateBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int fieldCount;
+
+    private byte[] templateBytes;
+    private PdfTemplate template;
+    private PdfFieldValues values;
+    private PDDocument populated;
+
+    @Setup
+    public void setUp() throws IOException {
+        templateBytes = SyntheticTemplates.withTextFields(fieldCount);
+        template = PdfTemplate.parse("Synthetic" + fieldCount + ".pdf", templateBytes);
+
+        final PdfFieldIndex index = template.getFieldIndex();
+        values = new PdfFieldValues(index);
+        for (int slot = 0; slot < index.size(); slot++) {
+            values.set(slot, "Value of " + index.nameOf(slot));
+        }
+        populated = template.newDocument(values);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        populated.close();
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        try (PDDocument document = PDDocument.load(new ByteArrayInputStream(templateBytes))) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    @Benchmark
+    public int populate() throws IOException {
+        try (PDDocument document = template.newDocument(values)) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException, COSVisitorException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream(template.getLength());
+        populated.save(target);
+        return target.toByteArray();
+    }
+}
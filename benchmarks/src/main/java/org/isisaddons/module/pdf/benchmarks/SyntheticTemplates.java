@@ -0,0 +1,99 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextbox;
+
+/**
+ * Generates templates with any number of text fields, to measure how the PDF path scales with the size of the form.
+ */
+final class SyntheticTemplates {
+
+    private static final int COLUMNS = 4;
+    private static final int ROWS_PER_PAGE = 40;
+
+    private SyntheticTemplates() {
+    }
+
+    /**
+     * A template with text fields named <tt>field0</tt>, <tt>field1</tt>, and so on, laid out in a grid over as many
+     * pages as needed.
+     */
+    static byte[] withTextFields(final int fieldCount) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            final PDAcroForm acroForm = new PDAcroForm(document);
+            document.getDocumentCatalog().setAcroForm(acroForm);
+
+            final PDResources resources = new PDResources();
+            final String fontName = resources.addFont(PDType1Font.HELVETICA);
+            acroForm.setDefaultResources(resources);
+            final String defaultAppearance = "/" + fontName + " 9 Tf 0 g";
+            acroForm.getDictionary().setString(COSName.DA, defaultAppearance);
+
+            final List<PDField> fields = new ArrayList<>();
+            PDPage page = null;
+            for (int i = 0; i < fieldCount; i++) {
+                final int cell = i % (COLUMNS * ROWS_PER_PAGE);
+                if (cell == 0) {
+                    page = new PDPage(PDPage.PAGE_SIZE_A4);
+                    document.addPage(page);
+                }
+                final COSDictionary dictionary = new COSDictionary();
+                dictionary.setItem(COSName.TYPE, COSName.ANNOT);
+                dictionary.setItem(COSName.SUBTYPE, COSName.getPDFName("Widget"));
+                dictionary.setItem(COSName.FT, COSName.getPDFName("Tx"));
+                dictionary.setString(COSName.T, "field" + i);
+                dictionary.setString(COSName.DA, defaultAppearance);
+                final PDTextbox field = new PDTextbox(acroForm, dictionary);
+
+                final float width = page.getMediaBox().getWidth() / COLUMNS;
+                final float height = page.getMediaBox().getHeight() / ROWS_PER_PAGE;
+                final PDRectangle rectangle = new PDRectangle();
+                rectangle.setLowerLeftX((cell % COLUMNS) * width + 2);
+                rectangle.setLowerLeftY((cell / COLUMNS) * height + 2);
+                rectangle.setUpperRightX((cell % COLUMNS + 1) * width - 2);
+                rectangle.setUpperRightY((cell / COLUMNS + 1) * height - 2);
+
+                final PDAnnotationWidget widget = field.getWidget();
+                widget.setRectangle(rectangle);
+                widget.setPage(page);
+                page.getAnnotations().add(widget);
+                fields.add(field);
+            }
+            acroForm.setFields(fields);
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            document.save(bytes);
+            return bytes.toByteArray();
+        } catch (COSVisitorException e) {
+            throw new IOException(e);
+        }
+    }
+}
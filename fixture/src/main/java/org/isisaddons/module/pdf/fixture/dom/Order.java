@@ -34,11 +34,33 @@
 @javax.jdo.annotations.Version(
         strategy=VersionStrategy.VERSION_NUMBER, 
         column="version")
+@javax.jdo.annotations.Queries({
+        @javax.jdo.annotations.Query(
+                name = "findByNumber", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.Order "
+                        + "WHERE number == :number"),
+        @javax.jdo.annotations.Query(
+                name = "findByDateBetween", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.Order "
+                        + "WHERE date >= :from && date <= :to "
+                        + "ORDER BY date ASC")
+})
+@javax.jdo.annotations.FetchGroup(
+        name = Order.FETCH_GROUP_WITH_ORDER_LINES,
+        members = {@javax.jdo.annotations.Persistent(name = "orderLines")})
 @ObjectType("ORDER")
 @Bookmarkable
 @MemberGroupLayout(columnSpans = {6,0,0,6})
 public class Order implements Comparable<Order> {
 
+    /**
+     * Loads the {@link #getOrderLines() order lines} together with the orders, see
+     * {@link Orders#findByDateBetweenWithOrderLines(LocalDate, LocalDate)}.
+     */
+    public static final String FETCH_GROUP_WITH_ORDER_LINES = "withOrderLines";
+
     //region > number (property)
     // //////////////////////////////////////
     private String number;
@@ -16,11 +16,19 @@
  */
 package org.isisaddons.module.pdf.fixture.dom;
 
+import java.util.ArrayList;
 import java.util.List;
+import javax.jdo.Query;
+import com.google.common.collect.ImmutableMap;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
 import org.joda.time.LocalDate;
 import org.apache.isis.applib.DomainObjectContainer;
 import org.apache.isis.applib.annotation.*;
 import org.apache.isis.applib.annotation.ActionSemantics.Of;
+import org.apache.isis.applib.query.QueryDefault;
+import org.apache.isis.applib.services.clock.ClockService;
+import org.apache.isis.applib.services.jdosupport.IsisJdoSupport;
+import org.apache.isis.applib.value.Blob;
 
 @DomainService(menuOrder = "10", repositoryFor = Order.class)
 public class Orders {
@@ -50,6 +58,87 @@ public List<Order> listAll() {
 
     //endregion
 
+    //region > findByNumber (programmatic)
+    // //////////////////////////////////////
+
+    @Programmatic
+    public Order findByNumber(final String number) {
+        return container.firstMatch(
+                new QueryDefault<>(Order.class,
+                        "findByNumber",
+                        "number", number));
+    }
+
+    @Programmatic
+    public List<Order> findByDateBetween(final LocalDate from, final LocalDate to) {
+        return container.allMatches(
+                new QueryDefault<>(Order.class,
+                        "findByDateBetween",
+                        "from", from,
+                        "to", to));
+    }
+
+    /**
+     * As {@link #findByDateBetween(LocalDate, LocalDate)}, but loading the lines of all the orders along with the
+     * orders, rather than with one query per order when its lines are first accessed.
+     *
+     * <p>
+     * For walking the lines of many orders, as when generating their customer confirmations.
+     * </p>
+     */
+    @Programmatic
+    public List<Order> findByDateBetweenWithOrderLines(final LocalDate from, final LocalDate to) {
+        final Query query = isisJdoSupport.getJdoPersistenceManager().newNamedQuery(Order.class, "findByDateBetween");
+        query.getFetchPlan().addGroup(Order.FETCH_GROUP_WITH_ORDER_LINES);
+        try {
+            @SuppressWarnings("unchecked")
+            final List<Order> orders = (List<Order>) query.executeWithMap(ImmutableMap.of("from", from, "to", to));
+            // the results are invalid once the query is closed
+            return new ArrayList<>(orders);
+        } finally {
+            query.closeAll();
+        }
+    }
+
+    //endregion
+
+    //region > downloadCustomerConfirmations (action)
+    // //////////////////////////////////////
+
+    @ActionSemantics(Of.SAFE)
+    @MemberOrder(sequence = "3")
+    public Blob downloadCustomerConfirmations(
+            final @Named("From") LocalDate from,
+            final @Named("To") LocalDate to,
+            final @Named("Single PDF") boolean merged) throws Exception {
+        final List<Order> orders = findByDateBetweenWithOrderLines(from, to);
+
+        final long start = System.currentTimeMillis();
+        final Blob confirmations = merged
+                ? customerConfirmation.downloadMergedCustomerConfirmations(orders)
+                : customerConfirmation.downloadCustomerConfirmations(orders);
+        container.informUser("Generated " + orders.size() + " confirmations in " + (System.currentTimeMillis() - start) + " ms");
+        return confirmations;
+    }
+
+    public LocalDate default0DownloadCustomerConfirmations() {
+        return clockService.now().minusDays(7);
+    }
+
+    public LocalDate default1DownloadCustomerConfirmations() {
+        return clockService.now();
+    }
+
+    public boolean default2DownloadCustomerConfirmations() {
+        return false;
+    }
+
+    public String validateDownloadCustomerConfirmations(final LocalDate from, final LocalDate to, final boolean merged) {
+        return from.isAfter(to) ? "'From' must not be after 'To'" : null;
+    }
+
+    //endregion
+
     //region > create (action)
     // //////////////////////////////////////
     
@@ -76,6 +165,15 @@ public Order create(
     @javax.inject.Inject 
     DomainObjectContainer container;
 
+    @javax.inject.Inject
+    CustomerConfirmation customerConfirmation;
+
+    @javax.inject.Inject
+    ClockService clockService;
+
+    @javax.inject.Inject
+    IsisJdoSupport isisJdoSupport;
+
     //endregion
 
 }
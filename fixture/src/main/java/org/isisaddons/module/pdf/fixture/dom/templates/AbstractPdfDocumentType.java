@@ -0,0 +1,74 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link PdfDocumentType} whose template <tt>&lt;name&gt;.pdf</tt> and binding descriptor
+ * <tt>&lt;name&gt;.bindings.properties</tt> (see {@link PdfBinding}) are resources next to the type's class.
+ *
+ * <p>
+ * By default the document depends only on the entity itself; override {@link #dependenciesOf(Object)} if it also
+ * shows the entity's children. There are no {@link #newSamples() samples} unless {@link #newSamples()} is overridden.
+ * </p>
+ */
+public abstract class AbstractPdfDocumentType<T> implements PdfDocumentType<T> {
+
+    private static final String TEMPLATE_SUFFIX = ".pdf";
+    private static final String BINDINGS_SUFFIX = ".bindings.properties";
+
+    private final String name;
+    private final Class<T> entityType;
+    private final PdfTemplateSource templateSource;
+
+    protected AbstractPdfDocumentType(final String name, final Class<T> entityType) {
+        this.name = name;
+        this.entityType = entityType;
+        this.templateSource = new ClasspathPdfTemplateSource(getClass(), name + TEMPLATE_SUFFIX);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Class<T> getEntityType() {
+        return entityType;
+    }
+
+    @Override
+    public PdfTemplateSource getTemplateSource() {
+        return templateSource;
+    }
+
+    @Override
+    public PdfBinder<T> newBinder(final PdfTemplate template) throws IOException {
+        return PdfBinding.compile(template.getFieldIndex(), entityType, PdfBinding.loadDescriptor(getClass(), name + BINDINGS_SUFFIX));
+    }
+
+    @Override
+    public Object[] dependenciesOf(final T entity) {
+        return new Object[] { entity };
+    }
+
+    @Override
+    public List<T> newSamples() {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.VersionStrategy;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.joda.time.DateTime;
+import org.apache.isis.applib.annotation.*;
+import org.apache.isis.applib.annotation.ActionSemantics.Of;
+import org.apache.isis.applib.value.Blob;
+
+/**
+ * A customer confirmation kept in the {@link PdfArchive}, as issued for an order.
+ *
+ * <p>
+ * Only the digest of the document is persisted; the document itself is read back from the archive. An order has one
+ * archived confirmation for each distinct document archived for it, see {@link ArchivedCustomerConfirmations}.
+ * </p>
+ */
+@javax.jdo.annotations.PersistenceCapable(identityType=IdentityType.DATASTORE)
+@javax.jdo.annotations.DatastoreIdentity(
+        strategy=javax.jdo.annotations.IdGeneratorStrategy.IDENTITY,
+         column="id")
+@javax.jdo.annotations.Version(
+        strategy=VersionStrategy.VERSION_NUMBER,
+        column="version")
+@javax.jdo.annotations.Queries({
+        @javax.jdo.annotations.Query(
+                name = "findByOrder", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.templates.ArchivedCustomerConfirmation "
+                        + "WHERE this.order == :order "
+                        + "ORDER BY archivedAt DESC"),
+        @javax.jdo.annotations.Query(
+                name = "findByOrderAndDigest", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.templates.ArchivedCustomerConfirmation "
+                        + "WHERE this.order == :order && digest == :digest"),
+        @javax.jdo.annotations.Query(
+                name = "findByDigest", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.templates.ArchivedCustomerConfirmation "
+                        + "WHERE digest == :digest")
+})
+@javax.jdo.annotations.Unique(name = "ArchivedCustomerConfirmation_order_digest_UNQ", members = {"order", "digest"})
+@ObjectType("ARCHIVEDCUSTOMERCONFIRMATION")
+@Bookmarkable
+@Immutable
+public class ArchivedCustomerConfirmation {
+
+    //region > title
+
+    public String title() {
+        return "Confirmation of " + getOrder().getNumber() + " (archived " + getArchivedAt().toString("yyyy-MM-dd HH:mm") + ")";
+    }
+    //endregion
+
+    //region > order (property)
+
+    private Order order;
+
+    @javax.jdo.annotations.Column(allowsNull="false")
+    @MemberOrder(sequence = "1")
+    public Order getOrder() {
+        return order;
+    }
+
+    public void setOrder(final Order order) {
+        this.order = order;
+    }
+    //endregion
+
+    //region > name (property)
+
+    private String name;
+
+    @javax.jdo.annotations.Column(allowsNull="false", length = 255)
+    @MemberOrder(sequence = "2")
+    public String getName() {
+        return name;
+    }
+
+    public void setName(final String name) {
+        this.name = name;
+    }
+    //endregion
+
+    //region > size (property)
+
+    private long size;
+
+    @MemberOrder(sequence = "3")
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(final long size) {
+        this.size = size;
+    }
+    //endregion
+
+    //region > archivedAt (property)
+
+    @javax.jdo.annotations.Persistent(defaultFetchGroup="true")
+    private DateTime archivedAt;
+
+    @javax.jdo.annotations.Column(allowsNull="false")
+    @MemberOrder(sequence = "4")
+    public DateTime getArchivedAt() {
+        return archivedAt;
+    }
+
+    public void setArchivedAt(final DateTime archivedAt) {
+        this.archivedAt = archivedAt;
+    }
+    //endregion
+
+    //region > digest (property)
+
+    private String digest;
+
+    /**
+     * The SHA-256 digest of the document, by which the {@link PdfArchive} keeps it.
+     */
+    @javax.jdo.annotations.Column(allowsNull="false", length = 64)
+    @MemberOrder(sequence = "5")
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(final String digest) {
+        this.digest = digest;
+    }
+    //endregion
+
+    //region > download (action)
+
+    @ActionSemantics(Of.SAFE)
+    @MemberOrder(sequence = "1")
+    public Blob download() throws Exception {
+        return new Blob(getName(), CustomerConfirmation.MIME_TYPE, pdfArchive.read(getDigest()));
+    }
+
+    public String disableDownload() {
+        return !pdfArchive.contains(getDigest()) ? "Not in the archive" : null;
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfArchive pdfArchive;
+
+    //endregion
+}
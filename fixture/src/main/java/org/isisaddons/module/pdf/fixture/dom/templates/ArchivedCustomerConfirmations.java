@@ -0,0 +1,136 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.util.List;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.annotation.*;
+import org.apache.isis.applib.annotation.ActionSemantics.Of;
+import org.apache.isis.applib.query.QueryDefault;
+import org.apache.isis.applib.services.clock.ClockService;
+
+/**
+ * Archives customer confirmations in the {@link PdfArchive}, and records which order each was archived for.
+ *
+ * <p>
+ * A confirmation archived again for the same order, unchanged, is neither stored nor recorded again; a confirmation
+ * that happens to be identical to that of another order is stored only once, but recorded for each.
+ * </p>
+ */
+@DomainService(menuOrder = "30", repositoryFor = ArchivedCustomerConfirmation.class)
+public class ArchivedCustomerConfirmations {
+
+    //region > identification in the UI
+    // //////////////////////////////////////
+
+    public String getId() {
+        return "archivedCustomerConfirmations";
+    }
+
+    public String iconName() {
+        return "SimpleObject";
+    }
+
+    //endregion
+
+    //region > listAll (action)
+    // //////////////////////////////////////
+
+    @Bookmarkable
+    @ActionSemantics(Of.SAFE)
+    @MemberOrder(sequence = "1")
+    public List<ArchivedCustomerConfirmation> listAll() {
+        return container.allInstances(ArchivedCustomerConfirmation.class);
+    }
+
+    //endregion
+
+    //region > findByOrder, findByDigest (programmatic)
+    // //////////////////////////////////////
+
+    @Programmatic
+    public List<ArchivedCustomerConfirmation> findByOrder(final Order order) {
+        return container.allMatches(
+                new QueryDefault<>(ArchivedCustomerConfirmation.class,
+                        "findByOrder",
+                        "order", order));
+    }
+
+    @Programmatic
+    public ArchivedCustomerConfirmation findByOrderAndDigest(final Order order, final String digest) {
+        return container.firstMatch(
+                new QueryDefault<>(ArchivedCustomerConfirmation.class,
+                        "findByOrderAndDigest",
+                        "order", order,
+                        "digest", digest));
+    }
+
+    @Programmatic
+    public ArchivedCustomerConfirmation findByDigest(final String digest) {
+        return container.firstMatch(
+                new QueryDefault<>(ArchivedCustomerConfirmation.class,
+                        "findByDigest",
+                        "digest", digest));
+    }
+
+    //endregion
+
+    //region > archive (programmatic)
+    // //////////////////////////////////////
+
+    /**
+     * Archives the customer confirmation of the order, as rendered.
+     *
+     * @return The archived confirmation, which is the one archived before if the document has not changed since
+     */
+    @Programmatic
+    public ArchivedCustomerConfirmation archive(final Order order, final byte[] document) throws IOException {
+        final String digest = pdfArchive.archive(document);
+        final ArchivedCustomerConfirmation existing = findByOrderAndDigest(order, digest);
+        if (existing != null) {
+            return existing;
+        }
+        final ArchivedCustomerConfirmation archived = container.newTransientInstance(ArchivedCustomerConfirmation.class);
+        archived.setOrder(order);
+        archived.setName(customerConfirmation.nameOf(order));
+        archived.setSize(document.length);
+        archived.setArchivedAt(clockService.nowAsDateTime());
+        archived.setDigest(digest);
+        container.persistIfNotAlready(archived);
+        return archived;
+    }
+
+    //endregion
+
+    //region > injected services
+    // //////////////////////////////////////
+
+    @javax.inject.Inject
+    DomainObjectContainer container;
+
+    @javax.inject.Inject
+    ClockService clockService;
+
+    @javax.inject.Inject
+    CustomerConfirmation customerConfirmation;
+
+    @javax.inject.Inject
+    PdfArchive pdfArchive;
+
+    //endregion
+
+}
@@ -0,0 +1,76 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.net.URL;
+import com.google.common.base.Objects;
+import com.google.common.io.Resources;
+
+/**
+ * A template that is a resource on the classpath, next to its {@link PdfTemplateSnapshot snapshot} if the build
+ * wrote one.
+ */
+public class ClasspathPdfTemplateSource implements PdfTemplateSource {
+
+    private final Class<?> contextClass;
+    private final String resourceName;
+
+    /**
+     * @param contextClass The class relative to which the resource is looked up
+     * @param resourceName The name of the PDF resource
+     */
+    public ClasspathPdfTemplateSource(final Class<?> contextClass, final String resourceName) {
+        this.contextClass = contextClass;
+        this.resourceName = resourceName;
+    }
+
+    @Override
+    public String getName() {
+        return resourceName;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        return Resources.toByteArray(Resources.getResource(contextClass, resourceName));
+    }
+
+    @Override
+    public URL getSnapshot() {
+        return contextClass.getResource(resourceName + PdfTemplateSnapshot.SUFFIX);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ClasspathPdfTemplateSource)) {
+            return false;
+        }
+        final ClasspathPdfTemplateSource other = (ClasspathPdfTemplateSource) obj;
+        return contextClass == other.contextClass && resourceName.equals(other.resourceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(contextClass, resourceName);
+    }
+
+    @Override
+    public String toString() {
+        return resourceName + " (relative to " + contextClass.getName() + ")";
+    }
+}
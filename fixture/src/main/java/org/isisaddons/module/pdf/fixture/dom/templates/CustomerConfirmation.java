@@ -14,37 +14,58 @@
  */
 package org.isisaddons.module.pdf.fixture.dom.templates;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.List;
-import java.util.SortedSet;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import javax.annotation.PostConstruct;
-import com.google.common.io.Resources;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
-import org.apache.pdfbox.pdmodel.interactive.form.PDField;
 import org.isisaddons.module.pdf.fixture.dom.Order;
 import org.isisaddons.module.pdf.fixture.dom.OrderLine;
+import org.joda.time.LocalDate;
 import org.apache.isis.applib.annotation.ActionSemantics;
 import org.apache.isis.applib.annotation.ActionSemantics.Of;
 import org.apache.isis.applib.annotation.DomainService;
 import org.apache.isis.applib.annotation.MemberOrder;
 import org.apache.isis.applib.annotation.NotContributed;
 import org.apache.isis.applib.annotation.NotInServiceMenu;
+import org.apache.isis.applib.annotation.Programmatic;
 import org.apache.isis.applib.value.Blob;
 
 @DomainService
 public class CustomerConfirmation {
 
+    public static final String MIME_TYPE = "application/pdf";
+    public static final String ZIP_MIME_TYPE = "application/zip";
+
     //region > init
 
-    private byte[] pdfAsBytes;
+    /**
+     * Whether the confirmations are flattened, that is have their form fields baked into the page content.
+     */
+    static final String FLATTEN_KEY = "isis.module.pdf.customerConfirmation.flatten";
+
+    private final Type type = new Type();
+    private boolean flatten;
 
     @PostConstruct
-    public void init() throws IOException {
-        pdfAsBytes = Resources.toByteArray(Resources.getResource(this.getClass(), "CustomerConfirmation.pdf"));
+    public void init(final Map<String, String> properties) {
+        flatten = Boolean.parseBoolean(properties.get(FLATTEN_KEY));
+
+        pdfDocuments.register(type);
+    }
+
+    /**
+     * The document type of the confirmations, rendered from <tt>CustomerConfirmation.pdf</tt> and bound by
+     * <tt>CustomerConfirmation.bindings.properties</tt>.
+     */
+    @Programmatic
+    public PdfDocumentType<Order> getType() {
+        return type;
     }
     //endregion
 
@@ -57,67 +78,312 @@ public void init() throws IOException {
     public Blob downloadCustomerConfirmation(
             final Order order) throws Exception {
 
-        try (PDDocument pdfDocument = loadAndPopulateTemplate(order)) {
+        return new Blob(nameOf(order), MIME_TYPE, renderCustomerConfirmation(order, flatten));
+    }
+    //endregion (
+
+    //region > archiveCustomerConfirmation (action)
+
+    /**
+     * Keeps the customer confirmation for the order, as it is now, in the {@link PdfArchive}.
+     *
+     * <p>
+     * Archiving the confirmation again while the order is unchanged returns the confirmation archived before.
+     * </p>
+     */
+    @NotContributed(NotContributed.As.ASSOCIATION) // ie contributed as action
+    @NotInServiceMenu
+    @ActionSemantics(Of.IDEMPOTENT)
+    @MemberOrder(sequence = "12")
+    public ArchivedCustomerConfirmation archiveCustomerConfirmation(
+            final Order order) throws Exception {
+
+        return archivedCustomerConfirmations.archive(order, renderCustomerConfirmation(order, flatten));
+    }
 
-            final ByteArrayOutputStream target = new ByteArrayOutputStream();
-            pdfDocument.save(target);
+    public String disableArchiveCustomerConfirmation(final Order order) {
+        return !pdfArchive.isEnabled() ? "No archive configured" : null;
+    }
+    //endregion
 
-            final String name = "customerConfirmation-" + order.getNumber() + ".pdf";
-            final String mimeType = "application/pdf";
-            final byte[] bytes = target.toByteArray();
+    //region > archivedCustomerConfirmations (contributed collection)
 
-            return new Blob(name, mimeType, bytes);
-        }
+    @NotContributed(NotContributed.As.ACTION) // ie contributed as collection
+    @NotInServiceMenu
+    @ActionSemantics(Of.SAFE)
+    public List<ArchivedCustomerConfirmation> archivedCustomerConfirmations(
+            final Order order) {
+
+        return archivedCustomerConfirmations.findByOrder(order);
     }
-    //endregion (
+    //endregion
+
+    //region > renderCustomerConfirmationInBackground (action)
 
     /**
-     * Loads the template pdf file and populates it with the order details
+     * Queues the customer confirmation for the order to be rendered in the background, and returns at once.
+     *
+     * <p>
+     * The confirmation can be downloaded from the returned job once it has been rendered.
+     * </p>
+     */
+    @NotContributed(NotContributed.As.ASSOCIATION) // ie contributed as action
+    @NotInServiceMenu
+    @ActionSemantics(Of.NON_IDEMPOTENT)
+    @MemberOrder(sequence = "11")
+    public CustomerConfirmationJob renderCustomerConfirmationInBackground(
+            final Order order) {
+
+        return customerConfirmationJobs.enqueue(order, flatten);
+    }
+    //endregion
+
+    //region > writeCustomerConfirmation (programmatic)
+
+    /**
+     * Writes the customer confirmation for the order to the target stream, for example a servlet response.
+     *
+     * <p>
+     * The confirmation is flattened if so configured by the <tt>isis.module.pdf.customerConfirmation.flatten</tt>
+     * configuration property.
+     * </p>
      *
      * @param order The order with the details for the pdf document
-     * @return The populated PDF document
-     * @throws Exception If the loading or the populating of the document fails for some reason
-     */
-    private PDDocument loadAndPopulateTemplate(Order order) throws Exception {
-        PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(pdfAsBytes));
-
-        PDAcroForm pdfForm = pdfDocument.getDocumentCatalog().getAcroForm();
-
-        List<PDField> fields = pdfForm.getFields();
-        SortedSet<OrderLine> orderLines = order.getOrderLines();
-        for (PDField field : fields) {
-
-            String fullyQualifiedName = field.getFullyQualifiedName();
-            if ("orderDate".equals(fullyQualifiedName)) {
-                field.setValue(order.getDate().toString());
-            } else if ("orderNumber".equals(fullyQualifiedName)) {
-                field.setValue(order.getNumber());
-            } else if ("customerName".equals(fullyQualifiedName)) {
-                field.setValue(order.getCustomerName());
-            } else if ("message".equals(fullyQualifiedName)) {
-                String message = "You have ordered '" + orderLines.size() +"' products";
-                field.setValue(message);
-            } else if ("preferences".equals(fullyQualifiedName)) {
-                field.setValue(order.getPreferences());
-            }
+     * @param target The stream to write the pdf document to; it is not closed
+     * @throws Exception If the populating or the writing of the document fails for some reason
+     */
+    @Programmatic
+    public void writeCustomerConfirmation(
+            final Order order,
+            final OutputStream target) throws Exception {
+        writeCustomerConfirmation(order, flatten, target);
+    }
+
+    /**
+     * As {@link #writeCustomerConfirmation(Order, OutputStream)}, but flattening the confirmation or not regardless
+     * of the configuration.
+     *
+     * <p>
+     * A flattened confirmation can no longer be edited, but it is smaller and viewers and printers render it
+     * faster, because they need not generate the appearances of the form fields.
+     * </p>
+     *
+     * <p>
+     * A confirmation that has to be rendered is written to the target while it is saved, see
+     * {@link PdfDocuments#write(PdfDocumentType, Object, boolean, OutputStream)}.
+     * </p>
+     */
+    @Programmatic
+    public void writeCustomerConfirmation(
+            final Order order,
+            final boolean flatten,
+            final OutputStream target) throws Exception {
+        pdfDocuments.write(type, order, flatten, target);
+    }
+
+    /**
+     * As {@link #writeCustomerConfirmation(Order, OutputStream)}, telling the length of the confirmation before it is
+     * written if it is taken from the cache, for example to set the <tt>Content-Length</tt> of a response.
+     */
+    @Programmatic
+    public void writeCustomerConfirmation(
+            final Order order,
+            final OutputStream target,
+            final PdfDocuments.Length length) throws Exception {
+        pdfDocuments.write(type, order, flatten, target, length);
+    }
+
+    /**
+     * The customer confirmation for the order.
+     *
+     * <p>
+     * The confirmation is rendered only if neither the order nor any of its lines have changed since it was last
+     * rendered; otherwise it is taken from the {@link PdfDocumentCache}.
+     * </p>
+     */
+    @Programmatic
+    public byte[] renderCustomerConfirmation(
+            final Order order,
+            final boolean flatten) throws Exception {
+
+        return pdfDocuments.render(type, order, flatten);
+    }
+
+    /**
+     * As {@link #renderCustomerConfirmation(Order, boolean)}, but reading the order up front, so that the returned
+     * renderer does not touch the order and may be called on any thread.
+     */
+    @Programmatic
+    public Callable<byte[]> rendererOf(
+            final Order order,
+            final boolean flatten) {
+
+        return pdfDocuments.rendererOf(type, order, flatten);
+    }
+
+    /**
+     * As {@link #renderCustomerConfirmation(Order, boolean)}, flattening the confirmation as configured.
+     */
+    @Programmatic
+    public byte[] renderCustomerConfirmation(
+            final Order order) throws Exception {
+
+        return renderCustomerConfirmation(order, flatten);
+    }
+
+    /**
+     * The version of the customer confirmation for the order, as configured, which changes whenever the order, any of
+     * its lines or the template change.
+     *
+     * @return The version, or <tt>null</tt> if the order has not been persisted yet
+     * @see PdfDocuments#versionOf(PdfDocumentType, Object, boolean)
+     */
+    @Programmatic
+    public String versionOf(final Order order) {
+        return pdfDocuments.versionOf(type, order, flatten);
+    }
+
+    /**
+     * The file name of the customer confirmation for the order.
+     */
+    @Programmatic
+    public String nameOf(final Order order) {
+        return type.fileNameOf(order);
+    }
+    //endregion
+
+    //region > writeCustomerConfirmations (programmatic)
+
+    /**
+     * Writes a ZIP archive with the customer confirmation of each of the orders to the target stream.
+     *
+     * <p>
+     * The orders are read on the calling thread, but the documents are rendered in parallel by the
+     * {@link PdfRenderingService}.
+     * </p>
+     *
+     * @return The number of confirmations written
+     */
+    @Programmatic
+    public int writeCustomerConfirmations(
+            final List<Order> orders,
+            final OutputStream target) throws Exception {
+
+        return pdfDocuments.writeZip(type, orders, flatten, target);
+    }
+
+    /**
+     * A ZIP archive with the customer confirmation of each of the orders.
+     */
+    @Programmatic
+    public Blob downloadCustomerConfirmations(final List<Order> orders) throws Exception {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        writeCustomerConfirmations(orders, target);
+        return new Blob("customerConfirmations.zip", ZIP_MIME_TYPE, target.toByteArray());
+    }
+
+    /**
+     * Writes a single PDF document with the (flattened) customer confirmations of all the orders, one after the
+     * other, to the target stream.
+     *
+     * <p>
+     * The copies share the fonts and other resources of the template, so the document grows only with the
+     * details of each order.
+     * </p>
+     *
+     * @return The number of confirmations written
+     */
+    @Programmatic
+    public int writeMergedCustomerConfirmations(
+            final List<Order> orders,
+            final OutputStream target) throws Exception {
+        return pdfDocuments.mergeAll(type, orders, target);
+    }
+
+    /**
+     * A single PDF document with the customer confirmations of all the orders.
+     */
+    @Programmatic
+    public Blob downloadMergedCustomerConfirmations(final List<Order> orders) throws Exception {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        writeMergedCustomerConfirmations(orders, target);
+        return new Blob("customerConfirmations.pdf", MIME_TYPE, target.toByteArray());
+    }
+    //endregion
+
+    //region > Type
+
+    static class Type extends AbstractPdfDocumentType<Order> {
+
+        Type() {
+            super("CustomerConfirmation", Order.class);
         }
 
-        int i = 1;
-        Iterator<OrderLine> orderLineIterator = orderLines.iterator();
-        while (i < 7 && orderLineIterator.hasNext()) {
-            OrderLine orderLine = orderLineIterator.next();
+        @Override
+        public PdfBinder<Order> newBinder(final PdfTemplate template) throws IOException {
+            final PdfBinder<Order> binding = super.newBinder(template);
+            final int message = template.getFieldIndex().slotOf("message");
+            return new PdfBinder<Order>() {
+                @Override
+                public PdfFieldValues valuesOf(final Order order) {
+                    final PdfFieldValues values = binding.valuesOf(order);
+                    values.set(message, "You have ordered '" + order.getOrderLines().size() + "' products");
+                    return values;
+                }
+            };
+        }
 
-            String descriptionFieldName = "orderLine|"+i+"|desc";
-            pdfForm.getField(descriptionFieldName).setValue(orderLine.getDescription());
+        @Override
+        public Object[] dependenciesOf(final Order order) {
+            return new Object[] { order, order.getOrderLines() };
+        }
 
-            String costFieldName = "orderLine|"+i+"|cost";
-            pdfForm.getField(costFieldName).setValue(orderLine.getDescription());
+        @Override
+        public String fileNameOf(final Order order) {
+            return "customerConfirmation-" + order.getNumber() + ".pdf";
+        }
 
-            String quantityFieldName = "orderLine|"+i+"|quantity";
-            pdfForm.getField(quantityFieldName).setValue(orderLine.getDescription());
-            i++;
+        /**
+         * An order that fits on the template's page, and one whose lines continue on a further page.
+         */
+        @Override
+        public List<Order> newSamples() {
+            return Arrays.asList(newSample("S-1", 3), newSample("S-2", 7));
         }
 
-        return pdfDocument;
+        private static Order newSample(final String number, final int lineCount) {
+            final Order order = new Order();
+            order.setNumber(number);
+            order.setDate(new LocalDate(2015, 1, 1));
+            order.setCustomerName("Sample Customer " + number);
+            order.setPreferences("Sample preferences");
+            order.setOrderLines(new TreeSet<OrderLine>());
+            for (int i = 0; i < lineCount; i++) {
+                final OrderLine orderLine = new OrderLine();
+                orderLine.setOrder(order);
+                orderLine.setDescription("Sample product " + i);
+                orderLine.setCost(new BigDecimal("9.99"));
+                orderLine.setQuantity(1 + i);
+                order.addToOrderLines(orderLine);
+            }
+            return order;
+        }
     }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfDocuments pdfDocuments;
+
+    @javax.inject.Inject
+    private CustomerConfirmationJobs customerConfirmationJobs;
+
+    @javax.inject.Inject
+    private ArchivedCustomerConfirmations archivedCustomerConfirmations;
+
+    @javax.inject.Inject
+    private PdfArchive pdfArchive;
+
+    //endregion
 }
@@ -0,0 +1,239 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.VersionStrategy;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.joda.time.DateTime;
+import org.apache.isis.applib.annotation.*;
+import org.apache.isis.applib.annotation.ActionSemantics.Of;
+import org.apache.isis.applib.value.Blob;
+
+/**
+ * A customer confirmation being rendered in the background, by {@link CustomerConfirmationJobs}.
+ *
+ * <p>
+ * The job is persisted when it is queued, so it can be found again, and rendered again if need be, after a restart.
+ * The rendered document is stored with the job when the job is {@link #refresh() refreshed} after it has completed.
+ * </p>
+ */
+@javax.jdo.annotations.PersistenceCapable(identityType=IdentityType.DATASTORE)
+@javax.jdo.annotations.DatastoreIdentity(
+        strategy=javax.jdo.annotations.IdGeneratorStrategy.IDENTITY,
+         column="id")
+@javax.jdo.annotations.Version(
+        strategy=VersionStrategy.VERSION_NUMBER,
+        column="version")
+@javax.jdo.annotations.Queries({
+        @javax.jdo.annotations.Query(
+                name = "findByHandle", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmationJob "
+                        + "WHERE handle == :handle"),
+        @javax.jdo.annotations.Query(
+                name = "findByOrder", language = "JDOQL",
+                value = "SELECT "
+                        + "FROM org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmationJob "
+                        + "WHERE this.order == :order "
+                        + "ORDER BY queuedAt DESC")
+})
+@javax.jdo.annotations.Unique(name = "CustomerConfirmationJob_handle_UNQ", members = {"handle"})
+@ObjectType("CUSTOMERCONFIRMATIONJOB")
+@Bookmarkable
+@Immutable
+public class CustomerConfirmationJob {
+
+    public enum Status {
+        QUEUED,
+        COMPLETED,
+        FAILED
+    }
+
+    //region > title
+
+    public String title() {
+        return "Confirmation of " + getOrder().getNumber() + " (" + getStatus() + ")";
+    }
+    //endregion
+
+    //region > handle (property)
+
+    private String handle;
+
+    /**
+     * Identifies the job to the {@link CustomerConfirmationJobs}, that keep track of the renders in progress.
+     */
+    @javax.jdo.annotations.Column(allowsNull="false", length = 36)
+    @Hidden
+    public String getHandle() {
+        return handle;
+    }
+
+    public void setHandle(final String handle) {
+        this.handle = handle;
+    }
+    //endregion
+
+    //region > order (property)
+
+    private Order order;
+
+    @javax.jdo.annotations.Column(allowsNull="false")
+    @MemberOrder(sequence = "1")
+    public Order getOrder() {
+        return order;
+    }
+
+    public void setOrder(final Order order) {
+        this.order = order;
+    }
+    //endregion
+
+    //region > flatten (property)
+
+    private boolean flatten;
+
+    @MemberOrder(sequence = "2")
+    public boolean isFlatten() {
+        return flatten;
+    }
+
+    public void setFlatten(final boolean flatten) {
+        this.flatten = flatten;
+    }
+    //endregion
+
+    //region > status (property)
+
+    private Status status;
+
+    @javax.jdo.annotations.Column(allowsNull="false", length = 16)
+    @MemberOrder(sequence = "3")
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(final Status status) {
+        this.status = status;
+    }
+    //endregion
+
+    //region > queuedAt (property)
+
+    @javax.jdo.annotations.Persistent(defaultFetchGroup="true")
+    private DateTime queuedAt;
+
+    @javax.jdo.annotations.Column(allowsNull="false")
+    @MemberOrder(sequence = "4")
+    public DateTime getQueuedAt() {
+        return queuedAt;
+    }
+
+    public void setQueuedAt(final DateTime queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+    //endregion
+
+    //region > completedAt (property)
+
+    @javax.jdo.annotations.Persistent(defaultFetchGroup="true")
+    private DateTime completedAt;
+
+    @javax.jdo.annotations.Column(allowsNull="true")
+    @MemberOrder(sequence = "5")
+    public DateTime getCompletedAt() {
+        return completedAt;
+    }
+
+    public void setCompletedAt(final DateTime completedAt) {
+        this.completedAt = completedAt;
+    }
+    //endregion
+
+    //region > failure (property)
+
+    private String failure;
+
+    @javax.jdo.annotations.Column(allowsNull="true", length = 2000)
+    @MemberOrder(sequence = "6")
+    @MultiLine(numberOfLines = 4)
+    public String getFailure() {
+        return failure;
+    }
+
+    public void setFailure(final String failure) {
+        this.failure = failure;
+    }
+    //endregion
+
+    //region > document (property)
+
+    // only loaded when downloaded
+    @javax.jdo.annotations.Persistent(defaultFetchGroup="false", columns = {
+            @javax.jdo.annotations.Column(name = "document_name"),
+            @javax.jdo.annotations.Column(name = "document_mimetype"),
+            @javax.jdo.annotations.Column(name = "document_bytes", jdbcType = "BLOB", sqlType = "BLOB")
+    })
+    private Blob document;
+
+    @javax.jdo.annotations.Column(allowsNull="true")
+    @Hidden
+    public Blob getDocument() {
+        return document;
+    }
+
+    public void setDocument(final Blob document) {
+        this.document = document;
+    }
+    //endregion
+
+    //region > refresh (action)
+
+    /**
+     * Stores the document if it has been rendered in the meantime.
+     */
+    @ActionSemantics(Of.IDEMPOTENT)
+    @MemberOrder(sequence = "1")
+    public CustomerConfirmationJob refresh() {
+        customerConfirmationJobs.poll(this);
+        return this;
+    }
+
+    public String disableRefresh() {
+        return getStatus() != Status.QUEUED ? "Job is " + getStatus() : null;
+    }
+    //endregion
+
+    //region > download (action)
+
+    @ActionSemantics(Of.SAFE)
+    @MemberOrder(sequence = "2")
+    public Blob download() {
+        return getDocument();
+    }
+
+    public String disableDownload() {
+        return getStatus() != Status.COMPLETED ? "Job is " + getStatus() : null;
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private CustomerConfirmationJobs customerConfirmationJobs;
+
+    //endregion
+}
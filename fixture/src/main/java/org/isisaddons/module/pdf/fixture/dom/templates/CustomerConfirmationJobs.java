@@ -0,0 +1,236 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.annotation.*;
+import org.apache.isis.applib.annotation.ActionSemantics.Of;
+import org.apache.isis.applib.query.QueryDefault;
+import org.apache.isis.applib.services.clock.ClockService;
+import org.apache.isis.applib.value.Blob;
+
+/**
+ * Renders customer confirmations in the background, so that the request that asks for one need not wait for it.
+ *
+ * <p>
+ * Each request is recorded as a {@link CustomerConfirmationJob} and rendered on the pool of the
+ * {@link PdfRenderingService}, so background renders count against the same limit on concurrent renders as all the
+ * others. Rendering threads have no persistence session, so the rendered document is only stored with its job when
+ * the job is next {@link #poll(CustomerConfirmationJob) polled}. Until then it is held by the {@link PdfDocumentCache},
+ * so it counts against the maximum weight of that cache and may be spilled to disk or evicted like any other document;
+ * a job whose document has been lost, for example to eviction or a restart, is queued again at that point.
+ * </p>
+ */
+@DomainService(menuOrder = "20", repositoryFor = CustomerConfirmationJob.class)
+public class CustomerConfirmationJobs {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CustomerConfirmationJobs.class);
+
+    /**
+     * Renders that are never polled are forgotten after this many hours; their documents are evicted from the
+     * {@link PdfDocumentCache} in time.
+     */
+    private static final int UNPOLLED_EXPIRY_HOURS = 1;
+
+    // as mapped by CustomerConfirmationJob
+    private static final int MAXIMUM_FAILURE_LENGTH = 2000;
+
+    // the documents themselves are held by the document cache, so a render only holds on to its outcome
+    private final Cache<String, Future<?>> renders = CacheBuilder.newBuilder()
+            .expireAfterWrite(UNPOLLED_EXPIRY_HOURS, TimeUnit.HOURS)
+            .build();
+
+    //region > identification in the UI
+    // //////////////////////////////////////
+
+    public String getId() {
+        return "customerConfirmationJobs";
+    }
+
+    public String iconName() {
+        return "SimpleObject";
+    }
+
+    //endregion
+
+    //region > listAll (action)
+    // //////////////////////////////////////
+
+    @Bookmarkable
+    @ActionSemantics(Of.SAFE)
+    @MemberOrder(sequence = "1")
+    public List<CustomerConfirmationJob> listAll() {
+        return container.allInstances(CustomerConfirmationJob.class);
+    }
+
+    //endregion
+
+    //region > findByHandle, findByOrder (programmatic)
+    // //////////////////////////////////////
+
+    @Programmatic
+    public CustomerConfirmationJob findByHandle(final String handle) {
+        return container.firstMatch(
+                new QueryDefault<>(CustomerConfirmationJob.class,
+                        "findByHandle",
+                        "handle", handle));
+    }
+
+    @Programmatic
+    public List<CustomerConfirmationJob> findByOrder(final Order order) {
+        return container.allMatches(
+                new QueryDefault<>(CustomerConfirmationJob.class,
+                        "findByOrder",
+                        "order", order));
+    }
+
+    //endregion
+
+    //region > enqueue, poll (programmatic)
+    // //////////////////////////////////////
+
+    /**
+     * Records a job for the customer confirmation of the order and starts rendering it in the background.
+     *
+     * @return The job, to be {@link #poll(CustomerConfirmationJob) polled} for the document
+     */
+    @Programmatic
+    public CustomerConfirmationJob enqueue(final Order order, final boolean flatten) {
+        final CustomerConfirmationJob job = container.newTransientInstance(CustomerConfirmationJob.class);
+        job.setHandle(UUID.randomUUID().toString());
+        job.setOrder(order);
+        job.setFlatten(flatten);
+        job.setStatus(CustomerConfirmationJob.Status.QUEUED);
+        job.setQueuedAt(clockService.nowAsDateTime());
+        container.persistIfNotAlready(job);
+
+        submit(job);
+        return job;
+    }
+
+    /**
+     * Stores the document with the job if it has been rendered, or the cause if the render failed.
+     *
+     * <p>
+     * A queued job that is not being rendered (any more) is queued again.
+     * </p>
+     *
+     * @return Whether the job is no longer queued
+     */
+    @Programmatic
+    public boolean poll(final CustomerConfirmationJob job) {
+        if (job.getStatus() != CustomerConfirmationJob.Status.QUEUED) {
+            return true;
+        }
+        final Future<?> render = renders.getIfPresent(job.getHandle());
+        if (render == null) {
+            LOG.info("Queueing the render of {} again", job.getHandle());
+            submit(job);
+            return false;
+        }
+        if (!render.isDone()) {
+            return false;
+        }
+        renders.invalidate(job.getHandle());
+        try {
+            render.get();
+            final String key = documentKeyOf(job);
+            final byte[] document = pdfDocumentCache.getIfPresent(key);
+            if (document == null) {
+                LOG.info("Queueing the render of {} again, its document has been evicted", job.getHandle());
+                submit(job);
+                return false;
+            }
+            pdfDocumentCache.invalidate(key);
+            job.setDocument(new Blob(customerConfirmation.nameOf(job.getOrder()), CustomerConfirmation.MIME_TYPE, document));
+            job.setStatus(CustomerConfirmationJob.Status.COMPLETED);
+        } catch (ExecutionException e) {
+            LOG.warn("Unable to render {}", job.getHandle(), e.getCause());
+            final String failure = String.valueOf(e.getCause());
+            job.setFailure(failure.length() > MAXIMUM_FAILURE_LENGTH ? failure.substring(0, MAXIMUM_FAILURE_LENGTH) : failure);
+            job.setStatus(CustomerConfirmationJob.Status.FAILED);
+        } catch (InterruptedException e) {
+            // cannot happen, the render is done
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        job.setCompletedAt(clockService.nowAsDateTime());
+        return true;
+    }
+
+    private void submit(final CustomerConfirmationJob job) {
+        final Callable<byte[]> renderer = customerConfirmation.rendererOf(job.getOrder(), job.isFlatten());
+        final String key = documentKeyOf(job);
+        renders.put(job.getHandle(), pdfRenderingService.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                pdfDocumentCache.put(key, renderer.call());
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * The key the document of the job is held by in the {@link PdfDocumentCache} until the job is polled; a digest,
+     * as the keys of other documents are, so that it may be spilled.
+     */
+    private static String documentKeyOf(final CustomerConfirmationJob job) {
+        return Hashing.sha1().hashString("job:" + job.getHandle(), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * The render of the job in progress, if any, to wait for rather than {@link #poll(CustomerConfirmationJob) poll}
+     * repeatedly; for tests.
+     */
+    Future<?> renderOf(final CustomerConfirmationJob job) {
+        return renders.getIfPresent(job.getHandle());
+    }
+
+    //endregion
+
+    //region > injected services
+    // //////////////////////////////////////
+
+    @javax.inject.Inject
+    DomainObjectContainer container;
+
+    @javax.inject.Inject
+    ClockService clockService;
+
+    @javax.inject.Inject
+    CustomerConfirmation customerConfirmation;
+
+    @javax.inject.Inject
+    PdfDocumentCache pdfDocumentCache;
+
+    @javax.inject.Inject
+    PdfRenderingService pdfRenderingService;
+
+    //endregion
+
+}
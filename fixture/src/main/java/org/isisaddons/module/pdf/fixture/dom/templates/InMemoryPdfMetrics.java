@@ -0,0 +1,214 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * The default {@link PdfMetrics}, which keeps counters and histograms in memory since startup (or the last
+ * {@link #reset()}), for {@link #report() reporting} on demand.
+ *
+ * <p>
+ * Histograms have one bucket per power of two, so percentiles are reported as the upper bound of their bucket, that
+ * is to within a factor of two.
+ * </p>
+ */
+@DomainService
+public class InMemoryPdfMetrics implements PdfMetrics {
+
+    private final ConcurrentMap<String, TemplateMetrics> templates = new ConcurrentHashMap<>();
+
+    //region > record
+
+    @Programmatic
+    @Override
+    public void recordTime(final String template, final Stage stage, final long nanos) {
+        metricsOf(template).times[stage.ordinal()].record(nanos);
+    }
+
+    @Programmatic
+    @Override
+    public void recordFailure(final String template, final Stage stage) {
+        metricsOf(template).failures.incrementAndGet(stage.ordinal());
+    }
+
+    @Programmatic
+    @Override
+    public void recordDocument(final String template, final long bytes) {
+        metricsOf(template).sizes.record(bytes);
+    }
+
+    @Programmatic
+    @Override
+    public void recordCacheHit(final String template) {
+        metricsOf(template).cacheHits.incrementAndGet();
+    }
+
+    @Programmatic
+    @Override
+    public void recordCacheMiss(final String template) {
+        metricsOf(template).cacheMisses.incrementAndGet();
+    }
+
+    private TemplateMetrics metricsOf(final String template) {
+        TemplateMetrics metrics = templates.get(template);
+        if (metrics == null) {
+            final TemplateMetrics created = new TemplateMetrics();
+            metrics = templates.putIfAbsent(template, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+    //endregion
+
+    //region > report, reset
+
+    /**
+     * A plain text table of the measurements of each template.
+     *
+     * <p>
+     * Times are in milliseconds and sizes in bytes.
+     * </p>
+     */
+    @Programmatic
+    public String report() {
+        final StringBuilder report = new StringBuilder();
+        for (final Map.Entry<String, TemplateMetrics> entry : new TreeMap<>(templates).entrySet()) {
+            final TemplateMetrics metrics = entry.getValue();
+            report.append(entry.getKey()).append('\n');
+            report.append(String.format(Locale.ROOT, "  %-10s %10s %10s %10s %10s %10s %10s %8s%n",
+                    "stage", "count", "mean", "p50", "p90", "p99", "max", "failures"));
+            for (final Stage stage : Stage.values()) {
+                final Histogram times = metrics.times[stage.ordinal()];
+                final long failures = metrics.failures.get(stage.ordinal());
+                if (times.getCount() == 0 && failures == 0) {
+                    continue;
+                }
+                report.append(String.format(Locale.ROOT, "  %-10s %10d %10.2f %10.2f %10.2f %10.2f %10.2f %8d%n",
+                        stage, times.getCount(),
+                        millis(times.getMean()), millis(times.percentile(0.5)), millis(times.percentile(0.9)),
+                        millis(times.percentile(0.99)), millis(times.getMaximum()), failures));
+            }
+            final Histogram sizes = metrics.sizes;
+            report.append(String.format(Locale.ROOT, "  documents %d, bytes %d (mean %.0f, p90 %d, max %d)%n",
+                    sizes.getCount(), sizes.getTotal(), sizes.getMean(), sizes.percentile(0.9), sizes.getMaximum()));
+            report.append(String.format(Locale.ROOT, "  cache hits %d, misses %d%n",
+                    metrics.cacheHits.get(), metrics.cacheMisses.get()));
+        }
+        return report.toString();
+    }
+
+    private static double millis(final double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Discards all measurements.
+     */
+    @Programmatic
+    public void reset() {
+        templates.clear();
+    }
+    //endregion
+
+    //region > TemplateMetrics, Histogram
+
+    private static class TemplateMetrics {
+
+        final Histogram[] times = new Histogram[Stage.values().length];
+        final AtomicLongArray failures = new AtomicLongArray(Stage.values().length);
+        final Histogram sizes = new Histogram();
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong cacheMisses = new AtomicLong();
+
+        TemplateMetrics() {
+            for (int i = 0; i < times.length; i++) {
+                times[i] = new Histogram();
+            }
+        }
+    }
+
+    /**
+     * Counts non-negative values in buckets of powers of two, without locking.
+     */
+    static class Histogram {
+
+        // bucket i holds the values below 2^i, and at least 2^(i-1)
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong maximum = new AtomicLong();
+
+        void record(final long value) {
+            final long v = Math.max(value, 0);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            total.addAndGet(v);
+            long current;
+            while (v > (current = maximum.get()) && !maximum.compareAndSet(current, v)) {
+                // another thread raised the maximum; compare again
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getTotal() {
+            return total.get();
+        }
+
+        long getMaximum() {
+            return maximum.get();
+        }
+
+        double getMean() {
+            final long n = count.get();
+            return n == 0 ? 0 : (double) total.get() / n;
+        }
+
+        /**
+         * The upper bound of the bucket holding the given fraction of the values, but no more than the maximum.
+         */
+        long percentile(final double fraction) {
+            final long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    final long upperBound = i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upperBound, getMaximum());
+                }
+            }
+            return getMaximum();
+        }
+    }
+    //endregion
+}
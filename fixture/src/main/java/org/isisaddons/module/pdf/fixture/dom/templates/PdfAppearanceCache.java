@@ -0,0 +1,260 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextbox;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Keeps the appearance streams that PDFBox generates for the values of text fields, so that a value that recurs
+ * across documents - a product description, a date - is laid out only once per field.
+ *
+ * <p>
+ * Setting the value of a text field has PDFBox parse the field's appearance stream, measure the value in the
+ * field's font and write the stream anew. What it writes depends only on the field (its default appearance, its
+ * rectangle and font, and the appearance stream of the template) and on the value. The streams are therefore kept
+ * by the digest of the template, the slot of the field in the template's {@link PdfFieldIndex} and the value, and
+ * written into the fields of further copies of the template as they are.
+ * </p>
+ *
+ * <p>
+ * A value is only kept if setting it changed nothing but the content of the field's appearance streams; fields
+ * whose appearance PDFBox has to create or whose resources it has to extend are populated by PDFBox every time.
+ * The total size of the streams held is bounded by the <tt>isis.module.pdf.appearances.maximumWeight</tt>
+ * configuration property (in bytes); <tt>0</tt> turns the cache off.
+ * </p>
+ */
+@DomainService
+public class PdfAppearanceCache {
+
+    //region > init
+
+    static final String MAXIMUM_WEIGHT_KEY = "isis.module.pdf.appearances.maximumWeight";
+    static final long MAXIMUM_WEIGHT_DEFAULT = 4L * 1024 * 1024;
+
+    // the key, the value and the arrays, roughly
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private long maximumWeight = MAXIMUM_WEIGHT_DEFAULT;
+
+    private volatile Cache<Key, byte[][]> appearances;
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        final String maximumWeightProperty = properties.get(MAXIMUM_WEIGHT_KEY);
+        if (maximumWeightProperty != null) {
+            maximumWeight = Long.parseLong(maximumWeightProperty.trim());
+        }
+        // templates may already have been populated while other services were being initialized
+        appearances = null;
+    }
+
+    private Cache<Key, byte[][]> getAppearances() {
+        Cache<Key, byte[][]> cache = appearances;
+        if (cache == null) {
+            synchronized (this) {
+                cache = appearances;
+                if (cache == null) {
+                    cache = appearances = CacheBuilder.newBuilder()
+                            .maximumWeight(maximumWeight)
+                            .weigher(new Weigher<Key, byte[][]>() {
+                                @Override
+                                public int weigh(final Key key, final byte[][] contents) {
+                                    int weight = ENTRY_OVERHEAD + 2 * key.value.length();
+                                    for (final byte[] content : contents) {
+                                        weight += content.length;
+                                    }
+                                    return weight;
+                                }
+                            })
+                            .recordStats()
+                            .build();
+                }
+            }
+        }
+        return cache;
+    }
+    //endregion
+
+    //region > setValue
+
+    /**
+     * Sets the value of the text field, in the given slot of a copy of the template with the given digest, reusing
+     * the appearance generated for the same value of the same field before.
+     */
+    void setValue(final String digest, final int slot, final PDTextbox field, final String value) throws IOException {
+        final List<COSStream> streams = appearanceStreamsOf(field.getDictionary());
+        if (streams == null || maximumWeight <= 0) {
+            field.setValue(value);
+            return;
+        }
+        final Cache<Key, byte[][]> cache = getAppearances();
+        final Key key = new Key(digest, slot, value);
+        final byte[][] contents = cache.getIfPresent(key);
+        if (contents != null && contents.length == streams.size()) {
+            // as PDVariableText#setValue and PDAppearance#writeToStream do
+            field.getDictionary().setItem(COSName.V, new COSString(value));
+            for (int i = 0; i < contents.length; i++) {
+                final OutputStream out = streams.get(i).createUnfilteredStream();
+                out.write(contents[i]);
+                out.flush();
+            }
+            return;
+        }
+
+        final int[] before = shapesOf(streams);
+        field.setValue(value);
+        if (Arrays.equals(shapesOf(streams), before)) {
+            cache.put(key, contentsOf(streams));
+        }
+    }
+
+    /**
+     * The normal appearance streams of the field's widgets, or <tt>null</tt> if any widget lacks one.
+     */
+    private static List<COSStream> appearanceStreamsOf(final COSDictionary field) {
+        final List<COSStream> streams = new ArrayList<>(1);
+        final COSBase kids = field.getDictionaryObject(COSName.KIDS);
+        if (kids instanceof COSArray) {
+            for (int i = 0; i < ((COSArray) kids).size(); i++) {
+                final COSBase kid = ((COSArray) kids).getObject(i);
+                final COSStream stream = kid instanceof COSDictionary ? appearanceStreamOf((COSDictionary) kid) : null;
+                if (stream == null) {
+                    return null;
+                }
+                streams.add(stream);
+            }
+            return streams.isEmpty() ? null : streams;
+        }
+        final COSStream stream = appearanceStreamOf(field);
+        if (stream == null) {
+            return null;
+        }
+        streams.add(stream);
+        return streams;
+    }
+
+    private static COSStream appearanceStreamOf(final COSDictionary widget) {
+        final COSBase appearance = widget.getDictionaryObject(COSName.AP);
+        if (!(appearance instanceof COSDictionary)) {
+            return null;
+        }
+        final COSBase normal = ((COSDictionary) appearance).getDictionaryObject(COSName.N);
+        return normal instanceof COSStream ? (COSStream) normal : null;
+    }
+
+    /**
+     * The number of entries of each stream's dictionary and of its fonts, which grow if PDFBox has to add the
+     * field's font to the stream's resources.
+     */
+    private static int[] shapesOf(final List<COSStream> streams) {
+        final int[] shapes = new int[2 * streams.size()];
+        for (int i = 0; i < streams.size(); i++) {
+            final COSStream stream = streams.get(i);
+            shapes[2 * i] = stream.size();
+            final COSBase resources = stream.getDictionaryObject(COSName.RESOURCES);
+            if (resources instanceof COSDictionary) {
+                final COSBase fonts = ((COSDictionary) resources).getDictionaryObject(COSName.FONT);
+                shapes[2 * i + 1] = fonts instanceof COSDictionary ? ((COSDictionary) fonts).size() : -1;
+            }
+        }
+        return shapes;
+    }
+
+    private static byte[][] contentsOf(final List<COSStream> streams) throws IOException {
+        final byte[][] contents = new byte[streams.size()][];
+        for (int i = 0; i < contents.length; i++) {
+            try (InputStream input = streams.get(i).getUnfilteredStream()) {
+                contents[i] = ByteStreams.toByteArray(input);
+            }
+        }
+        return contents;
+    }
+    //endregion
+
+    //region > statistics
+
+    /**
+     * Discards all appearances, for example after PDFBox has been upgraded.
+     */
+    @Programmatic
+    public void invalidateAll() {
+        getAppearances().invalidateAll();
+    }
+
+    /**
+     * The hit/miss counts of the appearances of text fields since startup.
+     */
+    @Programmatic
+    public CacheStats getStats() {
+        return getAppearances().stats();
+    }
+    //endregion
+
+    //region > Key
+
+    private static class Key {
+
+        private final String digest;
+        private final int slot;
+        private final String value;
+        private final int hashCode;
+
+        Key(final String digest, final int slot, final String value) {
+            this.digest = digest;
+            this.slot = slot;
+            this.value = value;
+            this.hashCode = 31 * (31 * digest.hashCode() + slot) + value.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return slot == other.slot && value.equals(other.value) && digest.equals(other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,199 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Keeps rendered documents for good, so that a document once issued can be read back exactly as it was, without
+ * being rendered again.
+ *
+ * <p>
+ * The archive is enabled by setting <tt>isis.module.pdf.archive.directory</tt>. Documents are kept there in a
+ * {@link PdfArchiveStore content-addressed store}: each is identified by the SHA-256 digest of its content, and
+ * documents with the same content are kept only once, however often they are archived. The documents are appended to
+ * segment files of up to <tt>isis.module.pdf.archive.segmentSize</tt> bytes (64MB by default), and can be
+ * {@link #transferTo(String, long, long, WritableByteChannel) transferred} from there to a response, in parts rather
+ * than read into a single array first.
+ * </p>
+ *
+ * <p>
+ * What a document was archived for is up to the caller to record, as {@link ArchivedCustomerConfirmations} does for
+ * the confirmations of orders.
+ * </p>
+ */
+@DomainService
+public class PdfArchive {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PdfArchive.class);
+
+    //region > init, shutdown
+
+    static final String DIRECTORY_KEY = "isis.module.pdf.archive.directory";
+    static final String SEGMENT_SIZE_KEY = "isis.module.pdf.archive.segmentSize";
+    static final long SEGMENT_SIZE_DEFAULT = 64L * 1024 * 1024;
+
+    private PdfArchiveStore store;
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        shutdown();
+        final String directoryProperty = properties.get(DIRECTORY_KEY);
+        if (directoryProperty == null || directoryProperty.trim().isEmpty()) {
+            return;
+        }
+        final String segmentSizeProperty = properties.get(SEGMENT_SIZE_KEY);
+        final long segmentSize = segmentSizeProperty != null
+                ? Long.parseLong(segmentSizeProperty.trim())
+                : SEGMENT_SIZE_DEFAULT;
+        final File directory = new File(directoryProperty.trim());
+        try {
+            store = new PdfArchiveStore(directory, segmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open the archive in " + directory + " (" + DIRECTORY_KEY + ")", e);
+        }
+        LOG.info("Archiving documents in {}, which holds {} already", directory, store.size());
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (store == null) {
+            return;
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close the archive", e);
+        }
+        store = null;
+    }
+
+    /**
+     * Whether an archive directory has been configured.
+     */
+    @Programmatic
+    public synchronized boolean isEnabled() {
+        return store != null;
+    }
+
+    private synchronized PdfArchiveStore getStore() {
+        if (store == null) {
+            throw new IllegalStateException("No archive directory configured (" + DIRECTORY_KEY + ")");
+        }
+        return store;
+    }
+    //endregion
+
+    //region > archive
+
+    /**
+     * Archives the document, unless a document with the same content has been archived before.
+     *
+     * @return The digest of the document, by which it can be read back
+     * @throws IllegalStateException If the archive is not {@link #isEnabled() enabled}
+     */
+    @Programmatic
+    public String archive(final byte[] document) throws IOException {
+        final PdfArchiveStore.Receipt receipt = getStore().put(document);
+        archived.incrementAndGet();
+        if (!receipt.isStored()) {
+            deduplicated.incrementAndGet();
+        }
+        return receipt.getDigest();
+    }
+    //endregion
+
+    //region > contains, sizeOf, read, transferTo
+
+    @Programmatic
+    public boolean contains(final String digest) {
+        return isEnabled() && getStore().locate(digest) != null;
+    }
+
+    /**
+     * The size of the archived document in bytes, or <tt>-1</tt> if there is no such document.
+     */
+    @Programmatic
+    public long sizeOf(final String digest) {
+        final PdfArchiveStore.Location location = isEnabled() ? getStore().locate(digest) : null;
+        return location != null ? location.getLength() : -1;
+    }
+
+    /**
+     * The archived document, or <tt>null</tt> if there is no such document.
+     */
+    @Programmatic
+    public byte[] read(final String digest) throws IOException {
+        final PdfArchiveStore store = getStore();
+        final PdfArchiveStore.Location location = store.locate(digest);
+        return location != null ? store.read(location) : null;
+    }
+
+    /**
+     * Transfers the bytes from <tt>position</tt> to <tt>position + count</tt> (exclusive) of the archived document
+     * from the archive to the target.
+     *
+     * <p>
+     * Only if the target is a file or socket channel can the operating system transfer the bytes without copying them
+     * through the heap; to any other channel, such as one wrapping a servlet output stream, they are copied through a
+     * small buffer.
+     * </p>
+     *
+     * @return The number of bytes transferred, or <tt>-1</tt> if there is no such document
+     */
+    @Programmatic
+    public long transferTo(
+            final String digest,
+            final long position,
+            final long count,
+            final WritableByteChannel target) throws IOException {
+        final PdfArchiveStore store = getStore();
+        final PdfArchiveStore.Location location = store.locate(digest);
+        return location != null ? store.transferTo(location, position, count, target) : -1;
+    }
+    //endregion
+
+    //region > statistics
+
+    /**
+     * The number of documents archived so far by this run, including those that were already in the archive.
+     */
+    @Programmatic
+    public long getArchivedCount() {
+        return archived.get();
+    }
+
+    /**
+     * The number of documents archived so far by this run that were already in the archive, so were not stored again.
+     */
+    @Programmatic
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+    //endregion
+}
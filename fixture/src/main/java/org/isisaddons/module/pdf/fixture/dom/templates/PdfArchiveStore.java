@@ -0,0 +1,329 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * An append-only store of documents on disk, addressed by the SHA-256 digest of their content, so that a document
+ * stored twice is kept only once.
+ *
+ * <p>
+ * Documents are appended to numbered segment files (<tt>00000001.segment</tt>, ...), a new one being started whenever
+ * the current one would grow beyond the segment size. Where each document is kept is recorded in the
+ * <tt>index</tt> file, which is memory-mapped and read into memory on opening; a record is written only once its
+ * document has been forced to disk, so a crash leaves at worst some bytes at the end of the last segment that no
+ * record refers to, which are cut off when the store is opened again.
+ * </p>
+ *
+ * <p>
+ * Segments and records are never rewritten, so documents may be read, or transferred from their segment file to a
+ * channel, while others are being appended.
+ * </p>
+ */
+final class PdfArchiveStore implements Closeable {
+
+    static final String INDEX_NAME = "index";
+    static final String SEGMENT_SUFFIX = ".segment";
+
+    private static final byte[] MAGIC = "PDFARC01".getBytes(StandardCharsets.US_ASCII);
+    private static final int DIGEST_LENGTH = 32;
+    // digest, segment (int), offset (long), length (int)
+    private static final int RECORD_LENGTH = DIGEST_LENGTH + 4 + 8 + 4;
+    private static final int RECORDS_PER_EXTENT = 16 * 1024;
+
+    /**
+     * Where a document is kept.
+     */
+    static final class Location {
+
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        Location(final int segment, final long offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int getSegment() {
+            return segment;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * The outcome of {@link #put(byte[]) putting} a document.
+     */
+    static final class Receipt {
+
+        private final String digest;
+        private final boolean stored;
+
+        Receipt(final String digest, final boolean stored) {
+            this.digest = digest;
+            this.stored = stored;
+        }
+
+        /**
+         * The digest of the document, as lower case hexadecimal digits, by which it can be read back.
+         */
+        String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Whether the document was stored, rather than found to have been stored before.
+         */
+        boolean isStored() {
+            return stored;
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+
+    private final Map<String, Location> locations = new ConcurrentHashMap<>();
+    private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+
+    private final RandomAccessFile indexFile;
+    private MappedByteBuffer index;
+    private int records;
+
+    private int segment;
+    private long segmentLength;
+
+    /**
+     * Opens the store in the directory, creating it if need be.
+     */
+    PdfArchiveStore(final File directory, final long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the directory " + directory);
+        }
+        final File[] segmentFiles = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (final File segmentFile : segmentFiles != null ? segmentFiles : new File[0]) {
+            final String name = segmentFile.getName();
+            final int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            segments.put(number, new RandomAccessFile(segmentFile, "rw").getChannel());
+            segment = Math.max(segment, number);
+        }
+        indexFile = new RandomAccessFile(new File(directory, INDEX_NAME), "rw");
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(indexFile.length(), MAGIC.length + (long) RECORDS_PER_EXTENT * RECORD_LENGTH));
+        readIndex();
+    }
+
+    private void readIndex() throws IOException {
+        final byte[] magic = new byte[MAGIC.length];
+        index.get(magic);
+        if (Arrays.equals(magic, new byte[MAGIC.length])) {
+            for (int i = 0; i < MAGIC.length; i++) {
+                index.put(i, MAGIC[i]);
+            }
+        } else if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an archive index: " + new File(directory, INDEX_NAME));
+        }
+        long currentSegmentEnd = 0;
+        final byte[] digest = new byte[DIGEST_LENGTH];
+        while (positionOf(records + 1) <= index.capacity()) {
+            index.position(positionOf(records));
+            index.get(digest);
+            final Location location = new Location(index.getInt(), index.getLong(), index.getInt());
+            final FileChannel channel = segments.get(location.getSegment());
+            // the first empty record ends the index; a record beyond its segment can only have been torn by a crash
+            if (channel == null || location.getOffset() + location.getLength() > channel.size()) {
+                break;
+            }
+            locations.put(HashCode.fromBytes(digest).toString(), location);
+            if (location.getSegment() == segment) {
+                currentSegmentEnd = Math.max(currentSegmentEnd, location.getOffset() + location.getLength());
+            }
+            records++;
+        }
+        // the rest may hold a torn record
+        for (int position = positionOf(records); position < index.capacity(); position++) {
+            if (index.get(position) != 0) {
+                index.put(position, (byte) 0);
+            }
+        }
+        final FileChannel current = segments.get(segment);
+        if (current != null) {
+            if (current.size() > currentSegmentEnd) {
+                current.truncate(currentSegmentEnd);
+            }
+            segmentLength = currentSegmentEnd;
+        }
+    }
+
+    /**
+     * The position of the record in the index; for tests.
+     */
+    static int positionOf(final int record) {
+        return MAGIC.length + record * RECORD_LENGTH;
+    }
+
+    //region > put
+
+    /**
+     * Stores the document, unless a document with the same content has been stored before.
+     *
+     * @return The digest of the document, and whether it has been stored by this call; of concurrent calls for the
+     *         same content, exactly one stores it
+     */
+    Receipt put(final byte[] document) throws IOException {
+        final HashCode digest = Hashing.sha256().hashBytes(document);
+        final String key = digest.toString();
+        if (locations.containsKey(key)) {
+            return new Receipt(key, false);
+        }
+        synchronized (this) {
+            if (locations.containsKey(key)) {
+                return new Receipt(key, false);
+            }
+            if (segment == 0 || segmentLength > 0 && segmentLength + document.length > segmentSize) {
+                startSegment(segment + 1);
+            }
+            final FileChannel channel = segments.get(segment);
+            final ByteBuffer buffer = ByteBuffer.wrap(document);
+            long position = segmentLength;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+
+            final Location location = new Location(segment, segmentLength, document.length);
+            writeRecord(digest.asBytes(), location);
+            segmentLength += document.length;
+            locations.put(key, location);
+        }
+        return new Receipt(key, true);
+    }
+
+    private void startSegment(final int number) throws IOException {
+        final File segmentFile = new File(directory, String.format("%08d", number) + SEGMENT_SUFFIX);
+        segments.put(number, new RandomAccessFile(segmentFile, "rw").getChannel());
+        segment = number;
+        segmentLength = 0;
+    }
+
+    private void writeRecord(final byte[] digest, final Location location) throws IOException {
+        if (positionOf(records + 1) > index.capacity()) {
+            index.force();
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    index.capacity() + (long) RECORDS_PER_EXTENT * RECORD_LENGTH);
+        }
+        index.position(positionOf(records));
+        index.put(digest);
+        index.putInt(location.getSegment());
+        index.putLong(location.getOffset());
+        index.putInt(location.getLength());
+        index.force();
+        records++;
+    }
+    //endregion
+
+    //region > locate, read, transferTo
+
+    /**
+     * Where the document with the digest is kept, or <tt>null</tt> if there is no such document.
+     */
+    Location locate(final String digest) {
+        return locations.get(digest);
+    }
+
+    byte[] read(final Location location) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(location.getLength());
+        final FileChannel channel = segments.get(location.getSegment());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, location.getOffset() + buffer.position()) < 0) {
+                throw new IOException("Segment " + location.getSegment() + " ends before its documents");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Transfers (part of) the document from its segment file to the target with {@link FileChannel#transferTo}, which
+     * copies it without going through the heap only if the target is a file or socket channel.
+     *
+     * @param position The first byte of the document to transfer
+     * @param count The number of bytes to transfer
+     * @return The number of bytes transferred
+     */
+    long transferTo(
+            final Location location,
+            final long position,
+            final long count,
+            final WritableByteChannel target) throws IOException {
+        final FileChannel channel = segments.get(location.getSegment());
+        final long end = location.getOffset() + Math.min(position + count, location.getLength());
+        long next = location.getOffset() + position;
+        while (next < end) {
+            final long transferred = channel.transferTo(next, end - next, target);
+            if (transferred <= 0) {
+                break;
+            }
+            next += transferred;
+        }
+        return next - location.getOffset() - position;
+    }
+
+    /**
+     * The number of (distinct) documents stored.
+     */
+    int size() {
+        return locations.size();
+    }
+    //endregion
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.force();
+        indexFile.close();
+        for (final FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+    }
+}
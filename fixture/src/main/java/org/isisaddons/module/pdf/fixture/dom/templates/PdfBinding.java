@@ -0,0 +1,263 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import com.google.common.io.Resources;
+
+/**
+ * Binds the properties of a domain entity to the fields of a template, as described by a binding descriptor.
+ *
+ * <p>
+ * The descriptor is a properties file with one entry per field:
+ * </p>
+ * <pre>
+ * # &lt;field&gt;=&lt;property of the entity&gt;
+ * orderNumber=number
+ *
+ * # &lt;grid&gt;=&lt;collection property of the entity&gt;
+ * orderLine=orderLines
+ * # &lt;grid&gt;|*|&lt;column&gt;=&lt;property of the collection's elements&gt;
+ * orderLine|*|desc=description
+ * </pre>
+ *
+ * <p>
+ * The descriptor is checked against the template and the entity type when the binding is
+ * {@link #compile(PdfFieldIndex, Class, Properties) compiled}, and the getters are resolved to
+ * {@link MethodHandle}s at that time, so that no reflective lookups are needed per document.
+ * </p>
+ */
+public class PdfBinding<T> implements PdfBinder<T> {
+
+    private static final String ROW_WILDCARD = "|*|";
+
+    private final PdfFieldIndex index;
+    private final int[] slots;
+    private final MethodHandle[] getters;
+    private final List<RowBinding> rowBindings;
+
+    private PdfBinding(
+            final PdfFieldIndex index,
+            final int[] slots,
+            final MethodHandle[] getters,
+            final List<RowBinding> rowBindings) {
+        this.index = index;
+        this.slots = slots;
+        this.getters = getters;
+        this.rowBindings = rowBindings;
+    }
+
+    //region > compile
+
+    /**
+     * Loads a binding descriptor from the classpath.
+     */
+    public static Properties loadDescriptor(final Class<?> contextClass, final String resourceName) throws IOException {
+        final Properties descriptor = new Properties();
+        try (InputStream input = Resources.getResource(contextClass, resourceName).openStream()) {
+            descriptor.load(input);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Compiles the descriptor into a binding for the template's fields and the entity type.
+     *
+     * @throws IllegalStateException If the descriptor refers to a field the template does not have,
+     *                               or to a property the entity type does not have
+     */
+    public static <T> PdfBinding<T> compile(final PdfFieldIndex index, final Class<T> entityType, final Properties descriptor) {
+        final List<Integer> slots = new ArrayList<>();
+        final List<MethodHandle> getters = new ArrayList<>();
+        final Map<String, RowBinding> rowBindingsByGroup = new LinkedHashMap<>();
+
+        // grids first, so that their columns can be bound to the element type of the collection
+        for (final String fieldName : descriptor.stringPropertyNames()) {
+            if (fieldName.contains(ROW_WILDCARD) || index.slotOf(fieldName) >= 0) {
+                continue;
+            }
+            final PdfFieldIndex.Grid grid = index.grid(fieldName);
+            if (grid == null) {
+                throw new IllegalStateException("Template has no field or grid '" + fieldName + "'");
+            }
+            final String propertyName = descriptor.getProperty(fieldName).trim();
+            final Method getter = getterFor(entityType, propertyName);
+            if (!Iterable.class.isAssignableFrom(getter.getReturnType())) {
+                throw new IllegalStateException(entityType.getName() + "#" + propertyName + " is not a collection");
+            }
+            rowBindingsByGroup.put(fieldName, new RowBinding(grid, handleFor(getter), elementTypeOf(getter)));
+        }
+
+        for (final String fieldName : descriptor.stringPropertyNames()) {
+            final String propertyName = descriptor.getProperty(fieldName).trim();
+            final int wildcard = fieldName.indexOf(ROW_WILDCARD);
+            if (wildcard >= 0) {
+                final String group = fieldName.substring(0, wildcard);
+                final String column = fieldName.substring(wildcard + ROW_WILDCARD.length());
+                final RowBinding rowBinding = rowBindingsByGroup.get(group);
+                if (rowBinding == null) {
+                    throw new IllegalStateException("No collection is bound to grid '" + group + "' (required by '" + fieldName + "')");
+                }
+                rowBinding.bindColumn(column, propertyName);
+            } else {
+                final int slot = index.slotOf(fieldName);
+                if (slot >= 0) {
+                    slots.add(slot);
+                    getters.add(handleFor(getterFor(entityType, propertyName)));
+                }
+            }
+        }
+
+        final int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new PdfBinding<>(
+                index,
+                slotArray,
+                getters.toArray(new MethodHandle[getters.size()]),
+                new ArrayList<>(rowBindingsByGroup.values()));
+    }
+
+    private static Method getterFor(final Class<?> type, final String propertyName) {
+        final String suffix = Character.toUpperCase(propertyName.charAt(0)) + propertyName.substring(1);
+        for (final String prefix : new String[] {"get", "is"}) {
+            try {
+                final Method method = type.getMethod(prefix + suffix);
+                if (method.getReturnType() != void.class) {
+                    return method;
+                }
+            } catch (NoSuchMethodException e) {
+                // try next prefix
+            }
+        }
+        throw new IllegalStateException(type.getName() + " has no property '" + propertyName + "'");
+    }
+
+    private static MethodHandle handleFor(final Method getter) {
+        try {
+            return MethodHandles.publicLookup()
+                    .unreflect(getter)
+                    .asType(MethodType.methodType(Object.class, Object.class));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access " + getter, e);
+        }
+    }
+
+    private static Class<?> elementTypeOf(final Method getter) {
+        final Type returnType = getter.getGenericReturnType();
+        if (returnType instanceof ParameterizedType) {
+            final Type[] typeArguments = ((ParameterizedType) returnType).getActualTypeArguments();
+            if (typeArguments.length == 1 && typeArguments[0] instanceof Class) {
+                return (Class<?>) typeArguments[0];
+            }
+        }
+        throw new IllegalStateException("Cannot determine the element type of " + getter);
+    }
+    //endregion
+
+    //region > valuesOf
+
+    /**
+     * Reads the bound properties of the entity.
+     */
+    @Override
+    public PdfFieldValues valuesOf(final T entity) {
+        final PdfFieldValues values = new PdfFieldValues(index);
+        for (int i = 0; i < slots.length; i++) {
+            values.set(slots[i], format(invoke(getters[i], entity)));
+        }
+        for (final RowBinding rowBinding : rowBindings) {
+            rowBinding.addRows(entity, values);
+        }
+        return values;
+    }
+
+    private static Object invoke(final MethodHandle getter, final Object target) {
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String format(final Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        return value.toString();
+    }
+    //endregion
+
+    //region > RowBinding
+
+    private static class RowBinding {
+
+        private final PdfFieldIndex.Grid grid;
+        private final MethodHandle collectionGetter;
+        private final Class<?> elementType;
+        private final MethodHandle[] columnGetters;
+
+        RowBinding(final PdfFieldIndex.Grid grid, final MethodHandle collectionGetter, final Class<?> elementType) {
+            this.grid = grid;
+            this.collectionGetter = collectionGetter;
+            this.elementType = elementType;
+            this.columnGetters = new MethodHandle[grid.getColumnCount()];
+        }
+
+        void bindColumn(final String column, final String propertyName) {
+            final int columnIndex = grid.columnOf(column);
+            if (columnIndex < 0) {
+                throw new IllegalStateException("Grid '" + grid.getGroup() + "' has no column '" + column + "'");
+            }
+            columnGetters[columnIndex] = handleFor(getterFor(elementType, propertyName));
+        }
+
+        void addRows(final Object entity, final PdfFieldValues values) {
+            final Iterable<?> elements = (Iterable<?>) invoke(collectionGetter, entity);
+            if (elements == null) {
+                return;
+            }
+            for (final Object element : elements) {
+                final String[] row = new String[columnGetters.length];
+                for (int column = 0; column < columnGetters.length; column++) {
+                    if (columnGetters[column] != null) {
+                        row[column] = format(invoke(columnGetters[column], element));
+                    }
+                }
+                values.addRow(grid, row);
+            }
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,432 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Saves a document in full, as compactly as PDF 1.5 allows, for archiving.
+ *
+ * <p>
+ * PDFBox writes every object on its own and lists them in a cross-reference table, with only the streams
+ * compressed. This writer packs all the objects other than streams into compressed object streams, of up to
+ * {@value #OBJECTS_PER_STREAM} objects each, and lists them in a compressed cross-reference stream. Streams that are
+ * not compressed are compressed at the deflate level given; the others are written as they are, as recompressing
+ * the fonts of a template for every document costs much time and saves next to nothing.
+ * </p>
+ *
+ * <p>
+ * As when PDFBox saves a document, the streams, the dictionaries that are not direct and any object referred to
+ * indirectly are written as objects of their own; everything else is written inline. An encrypted document cannot
+ * be written, and has to be saved by PDFBox.
+ * </p>
+ */
+public class PdfCompactWriter {
+
+    static final int OBJECTS_PER_STREAM = 100;
+
+    private static final float VERSION = 1.5f;
+    // a comment of binary characters, marking the file as binary
+    private static final byte[] BINARY = { '%', (byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n' };
+
+    private final int deflateLevel;
+
+    public PdfCompactWriter() {
+        this(Deflater.BEST_COMPRESSION);
+    }
+
+    /**
+     * @param deflateLevel The level to compress the streams at, or {@link Deflater#NO_COMPRESSION} to leave them as
+     *                     they are (the object streams are then not compressed either)
+     */
+    public PdfCompactWriter(final int deflateLevel) {
+        this.deflateLevel = deflateLevel;
+    }
+
+    //region > write
+
+    /**
+     * Writes the whole document to the target.
+     *
+     * @return <tt>false</tt> (having written nothing) if the document cannot be written compactly
+     */
+    public boolean write(final PDDocument document, final OutputStream target) throws IOException {
+        final COSDictionary trailer = document.getDocument().getTrailer();
+        if (trailer == null
+                || trailer.getDictionaryObject(COSName.ENCRYPT) != null
+                || !(trailer.getDictionaryObject(COSName.ROOT) instanceof COSDictionary)) {
+            return false;
+        }
+        final Numbering numbering = new Numbering(trailer);
+        final int objectCount = numbering.objects.size();
+        int streamCount = 0;
+        for (final COSBase object : numbering.objects) {
+            if (object instanceof COSStream) {
+                streamCount++;
+            }
+        }
+        final int objectStreamCount = (objectCount - streamCount + OBJECTS_PER_STREAM - 1) / OBJECTS_PER_STREAM;
+        // the object streams are numbered after the objects, and the cross-reference stream last
+        final XrefEntries entries = new XrefEntries(objectCount + objectStreamCount + 2);
+
+        final CountingOutputStream out = new CountingOutputStream(target);
+        final float version = Math.max(VERSION, document.getDocument().getVersion());
+        write(out, String.format(Locale.ROOT, "%%PDF-%.1f\n", version));
+        out.write(BINARY);
+
+        final ObjectStream objectStream = new ObjectStream();
+        int objectStreamNumber = objectCount + 1;
+        for (int number = 1; number <= objectCount; number++) {
+            final COSBase object = numbering.objects.get(number - 1);
+            if (object instanceof COSStream) {
+                entries.set(number, 1, out.getCount(), 0);
+                write(out, number + " 0 obj\n");
+                writeStream(out, (COSStream) object, numbering);
+                write(out, "\nendobj\n");
+                continue;
+            }
+            entries.set(number, 2, objectStreamNumber, objectStream.size());
+            objectStream.add(number, object, numbering);
+            if (objectStream.size() == OBJECTS_PER_STREAM) {
+                entries.set(objectStreamNumber, 1, out.getCount(), 0);
+                objectStream.writeTo(out, objectStreamNumber++);
+            }
+        }
+        if (objectStream.size() > 0) {
+            entries.set(objectStreamNumber, 1, out.getCount(), 0);
+            objectStream.writeTo(out, objectStreamNumber++);
+        }
+
+        final int xrefNumber = objectStreamNumber;
+        final long xref = out.getCount();
+        entries.set(xrefNumber, 1, xref, 0);
+        writeXrefStream(out, xrefNumber, entries, trailer, numbering);
+        write(out, "startxref\n" + xref + "\n%%EOF\n");
+        out.flush();
+        return true;
+    }
+
+    private void writeStream(final OutputStream out, final COSStream stream, final Numbering numbering) throws IOException {
+        byte[] data = filteredBytesOf(stream);
+        boolean compressed = false;
+        if (PdfCompression.isUncompressed(stream)) {
+            final byte[] deflated = PdfCompression.deflate(data, deflateLevel);
+            if (deflated != null) {
+                data = deflated;
+                compressed = true;
+            }
+        }
+        write(out, "<<");
+        for (final Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+            if (!COSName.LENGTH.equals(entry.getKey()) && !(compressed && COSName.FILTER.equals(entry.getKey()))) {
+                entry.getKey().writePDF(out);
+                write(out, " ");
+                writeValue(out, entry.getValue(), numbering, false);
+            }
+        }
+        if (compressed) {
+            write(out, "/Filter /FlateDecode");
+        }
+        write(out, "/Length " + data.length + ">>\nstream\r\n");
+        out.write(data);
+        write(out, "\nendstream");
+    }
+
+    private void writeXrefStream(
+            final OutputStream out,
+            final int number,
+            final XrefEntries entries,
+            final COSDictionary trailer,
+            final Numbering numbering) throws IOException {
+        final int width = XrefEntries.widthOf(entries.maximumField());
+        byte[] data = entries.toBytes(width);
+        final byte[] deflated = PdfCompression.deflate(data, deflateLevel);
+        if (deflated != null) {
+            data = deflated;
+        }
+        write(out, number + " 0 obj\n<</Type /XRef /Size " + entries.size() + " /W [1 " + width + " 2]");
+        write(out, "/Root ");
+        writeValue(out, trailer.getDictionaryObject(COSName.ROOT), numbering, false);
+        final COSBase info = trailer.getDictionaryObject(COSName.INFO);
+        if (info instanceof COSDictionary) {
+            write(out, "/Info ");
+            writeValue(out, info, numbering, false);
+        }
+        final COSBase id = trailer.getDictionaryObject(COSName.ID);
+        if (id != null) {
+            write(out, "/ID ");
+            writeValue(out, id, numbering, false);
+        }
+        if (deflated != null) {
+            write(out, "/Filter /FlateDecode");
+        }
+        write(out, "/Length " + data.length + ">>\nstream\r\n");
+        out.write(data);
+        write(out, "\nendstream\nendobj\n");
+    }
+    //endregion
+
+    //region > serialization
+
+    private static void writeValue(
+            final OutputStream out,
+            final COSBase value,
+            final Numbering numbering,
+            final boolean topLevel) throws IOException {
+        if (value == null || value instanceof COSNull) {
+            write(out, "null");
+            return;
+        }
+        if (value instanceof COSObject) {
+            // indirect primitives are written inline
+            writeValue(out, ((COSObject) value).getObject(), numbering, false);
+            return;
+        }
+        final Long number = numbering.numbers.get(value);
+        if (!topLevel && number != null) {
+            write(out, number + " 0 R");
+            return;
+        }
+        if (value instanceof COSDictionary) {
+            write(out, "<<");
+            for (final Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+                entry.getKey().writePDF(out);
+                write(out, " ");
+                writeValue(out, entry.getValue(), numbering, false);
+            }
+            write(out, ">>");
+        } else if (value instanceof COSArray) {
+            write(out, "[");
+            for (int i = 0; i < ((COSArray) value).size(); i++) {
+                if (i > 0) {
+                    write(out, " ");
+                }
+                writeValue(out, ((COSArray) value).get(i), numbering, false);
+            }
+            write(out, "]");
+        } else if (value instanceof COSName) {
+            ((COSName) value).writePDF(out);
+        } else if (value instanceof COSString) {
+            ((COSString) value).writePDF(out);
+        } else if (value instanceof COSInteger) {
+            ((COSInteger) value).writePDF(out);
+        } else if (value instanceof COSFloat) {
+            ((COSFloat) value).writePDF(out);
+        } else if (value instanceof COSBoolean) {
+            ((COSBoolean) value).writePDF(out);
+        } else {
+            throw new IOException("Cannot write " + value.getClass().getSimpleName() + " compactly");
+        }
+    }
+
+    private static byte[] filteredBytesOf(final COSStream stream) throws IOException {
+        try (InputStream input = stream.getFilteredStream()) {
+            return ByteStreams.toByteArray(input);
+        }
+    }
+
+    private static void write(final OutputStream out, final String string) throws IOException {
+        out.write(string.getBytes(StandardCharsets.US_ASCII));
+    }
+    //endregion
+
+    //region > Numbering
+
+    /**
+     * The objects of the document that are written as objects of their own, numbered from 1 in the order they are
+     * reached from the trailer.
+     */
+    private static class Numbering {
+
+        private final List<COSBase> objects = new ArrayList<>();
+        private final Map<COSBase, Long> numbers = new IdentityHashMap<>();
+        private final Set<COSBase> reached = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        private final Deque<COSBase> pending = new ArrayDeque<>();
+
+        Numbering(final COSDictionary trailer) {
+            reach(trailer.getDictionaryObject(COSName.ROOT), true);
+            reach(trailer.getDictionaryObject(COSName.INFO), true);
+            while (!pending.isEmpty()) {
+                final COSBase object = pending.remove();
+                if (object instanceof COSDictionary) {
+                    for (final COSBase value : ((COSDictionary) object).getValues()) {
+                        reach(value);
+                    }
+                } else {
+                    for (int i = 0; i < ((COSArray) object).size(); i++) {
+                        reach(((COSArray) object).get(i));
+                    }
+                }
+            }
+        }
+
+        private void reach(final COSBase value) {
+            if (value instanceof COSObject) {
+                reach(((COSObject) value).getObject(), true);
+            } else {
+                reach(value, value instanceof COSStream || value instanceof COSDictionary && !value.isDirect());
+            }
+        }
+
+        private void reach(final COSBase object, final boolean indirect) {
+            if (!(object instanceof COSDictionary || object instanceof COSArray)) {
+                return;
+            }
+            if (indirect && !numbers.containsKey(object)) {
+                objects.add(object);
+                numbers.put(object, (long) objects.size());
+            }
+            if (reached.add(object)) {
+                pending.add(object);
+            }
+        }
+    }
+    //endregion
+
+    //region > ObjectStream
+
+    /**
+     * The objects to be packed into the next object stream.
+     */
+    private class ObjectStream {
+
+        private final StringBuilder offsets = new StringBuilder();
+        private final ByteArrayOutputStream objects = new ByteArrayOutputStream();
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void add(final int number, final COSBase object, final Numbering numbering) throws IOException {
+            offsets.append(number).append(' ').append(objects.size()).append(' ');
+            writeValue(objects, object, numbering, true);
+            objects.write('\n');
+            size++;
+        }
+
+        void writeTo(final OutputStream out, final int number) throws IOException {
+            final byte[] header = offsets.toString().getBytes(StandardCharsets.US_ASCII);
+            final ByteArrayOutputStream content = new ByteArrayOutputStream(header.length + objects.size());
+            content.write(header);
+            objects.writeTo(content);
+            final byte[] deflated = PdfCompression.deflate(content.toByteArray(), deflateLevel);
+            final byte[] data = deflated != null ? deflated : content.toByteArray();
+
+            write(out, number + " 0 obj\n<</Type /ObjStm /N " + size + " /First " + header.length);
+            if (deflated != null) {
+                write(out, "/Filter /FlateDecode");
+            }
+            write(out, "/Length " + data.length + ">>\nstream\r\n");
+            out.write(data);
+            write(out, "\nendstream\nendobj\n");
+
+            offsets.setLength(0);
+            objects.reset();
+            size = 0;
+        }
+    }
+    //endregion
+
+    //region > XrefEntries
+
+    /**
+     * The entries of the cross-reference stream: the type of each object (0 free, 1 written on its own, 2 in an
+     * object stream), its offset or the number of its object stream, and its generation or its index therein.
+     */
+    private static class XrefEntries {
+
+        private final byte[] types;
+        private final long[] fields;
+        private final int[] indexes;
+
+        XrefEntries(final int size) {
+            types = new byte[size];
+            fields = new long[size];
+            indexes = new int[size];
+            // the head of the list of free objects
+            indexes[0] = 0xffff;
+        }
+
+        int size() {
+            return types.length;
+        }
+
+        void set(final int number, final int type, final long field, final int index) {
+            types[number] = (byte) type;
+            fields[number] = field;
+            indexes[number] = index;
+        }
+
+        long maximumField() {
+            long maximum = 0;
+            for (final long field : fields) {
+                maximum = Math.max(maximum, field);
+            }
+            return maximum;
+        }
+
+        static int widthOf(final long value) {
+            int width = 1;
+            while (width < 8 && value >>> (8 * width) != 0) {
+                width++;
+            }
+            return width;
+        }
+
+        byte[] toBytes(final int width) {
+            final byte[] bytes = new byte[types.length * (width + 3)];
+            int position = 0;
+            for (int number = 0; number < types.length; number++) {
+                bytes[position++] = types[number];
+                for (int shift = 8 * (width - 1); shift >= 0; shift -= 8) {
+                    bytes[position++] = (byte) (fields[number] >>> shift);
+                }
+                bytes[position++] = (byte) (indexes[number] >>> 8);
+                bytes[position++] = (byte) indexes[number];
+            }
+            return bytes;
+        }
+    }
+    //endregion
+}
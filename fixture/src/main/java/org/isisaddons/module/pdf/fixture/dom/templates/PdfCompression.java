@@ -0,0 +1,123 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.zip.Deflater;
+import com.google.common.io.ByteStreams;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Compresses the streams of documents at a given level, which PDFBox does not allow to choose.
+ */
+final class PdfCompression {
+
+    private PdfCompression() {
+    }
+
+    /**
+     * The data compressed with the <tt>FlateDecode</tt> filter at the level, or <tt>null</tt> if that does not make
+     * it smaller.
+     */
+    static byte[] deflate(final byte[] data, final int level) {
+        if (level == Deflater.NO_COMPRESSION || data.length == 0) {
+            return null;
+        }
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= data.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Whether the stream has no filter, and so is not compressed.
+     */
+    static boolean isUncompressed(final COSStream stream) {
+        final COSBase filters = stream.getFilters();
+        return filters == null || filters instanceof COSArray && ((COSArray) filters).size() == 0;
+    }
+
+    /**
+     * Compresses, in place, those streams of the document that are not compressed yet; for documents that are about to
+     * be saved in full.
+     */
+    static void compress(final PDDocument document, final int level) throws IOException {
+        if (level == Deflater.NO_COMPRESSION) {
+            return;
+        }
+        final Set<COSBase> seen = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        final Deque<COSBase> pending = new ArrayDeque<>();
+        pending.add(document.getDocument().getTrailer());
+        while (!pending.isEmpty()) {
+            COSBase object = pending.remove();
+            if (object instanceof COSObject) {
+                object = ((COSObject) object).getObject();
+            }
+            if (object == null || !seen.add(object)) {
+                continue;
+            }
+            if (object instanceof COSStream && isUncompressed((COSStream) object)) {
+                compress((COSStream) object, level);
+            }
+            if (object instanceof COSDictionary) {
+                pending.addAll(((COSDictionary) object).getValues());
+            } else if (object instanceof COSArray) {
+                for (int i = 0; i < ((COSArray) object).size(); i++) {
+                    pending.add(((COSArray) object).get(i));
+                }
+            }
+        }
+    }
+
+    private static void compress(final COSStream stream, final int level) throws IOException {
+        final byte[] compressed;
+        try (InputStream input = stream.getUnfilteredStream()) {
+            compressed = deflate(ByteStreams.toByteArray(input), level);
+        }
+        if (compressed == null) {
+            return;
+        }
+        try (OutputStream output = stream.createFilteredStream()) {
+            output.write(compressed);
+        }
+        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+    }
+}
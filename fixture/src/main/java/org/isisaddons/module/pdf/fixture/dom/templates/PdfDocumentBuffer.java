@@ -0,0 +1,157 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+
+/**
+ * Holds the streams of one document on the heap, and is reused for one document after the other.
+ *
+ * <p>
+ * PDFBox gives every stream of a document kept on the heap a {@link RandomAccessBuffer#clone() copy} of the
+ * document's buffer, at least 32KB for even the smallest appearance stream. All the streams of a document share
+ * this buffer instead, each appending its data at the end, just as they share the scratch file of a document that
+ * is kept in one (see {@link PdfDocumentStorage}). The chunks the data is kept in are retained for the next document
+ * rather than becoming garbage with this one.
+ * </p>
+ *
+ * <p>
+ * The buffer ignores {@link #close()}, which PDFBox calls for the document and for each of its streams; the owner
+ * {@link #reset() resets} it once the document has been closed.
+ * </p>
+ */
+final class PdfDocumentBuffer extends RandomAccessBuffer {
+
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private long length;
+    private long position;
+
+    /**
+     * Empties the buffer for the next document, keeping at most <tt>maximumRetained</tt> bytes of its chunks.
+     */
+    void reset(final long maximumRetained) {
+        length = 0;
+        position = 0;
+        final long retained = Math.max(0, maximumRetained / CHUNK_SIZE);
+        for (int i = chunks.size() - 1; i >= retained; i--) {
+            chunks.remove(i);
+        }
+    }
+
+    void reset() {
+        reset(Long.MAX_VALUE);
+    }
+
+    /**
+     * The bytes held in chunks, whether in use or not.
+     */
+    long capacity() {
+        return (long) chunks.size() * CHUNK_SIZE;
+    }
+
+    //region > RandomAccessBuffer
+
+    /**
+     * Returns this very buffer, for the streams of the document to share.
+     */
+    @Override
+    public RandomAccessBuffer clone() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        // see reset()
+    }
+
+    @Override
+    public void seek(final long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Invalid position " + position);
+        }
+        this.position = position;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read() {
+        if (position >= length) {
+            return -1;
+        }
+        final int b = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)] & 0xff;
+        position++;
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int offset, final int length) {
+        if (position >= this.length) {
+            return -1;
+        }
+        final int count = (int) Math.min(length, this.length - position);
+        int done = 0;
+        while (done < count) {
+            final int within = (int) (position % CHUNK_SIZE);
+            final int n = Math.min(count - done, CHUNK_SIZE - within);
+            System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), within, b, offset + done, n);
+            position += n;
+            done += n;
+        }
+        return count;
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCapacity(position + 1);
+        chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)] = (byte) b;
+        position++;
+        length = Math.max(length, position);
+    }
+
+    @Override
+    public void write(final byte[] b, final int offset, final int length) {
+        ensureCapacity(position + length);
+        int done = 0;
+        while (done < length) {
+            final int within = (int) (position % CHUNK_SIZE);
+            final int n = Math.min(length - done, CHUNK_SIZE - within);
+            System.arraycopy(b, offset + done, chunks.get((int) (position / CHUNK_SIZE)), within, n);
+            position += n;
+            done += n;
+        }
+        this.length = Math.max(this.length, position);
+    }
+
+    private void ensureCapacity(final long capacity) {
+        while (capacity() < capacity) {
+            chunks.add(new byte[CHUNK_SIZE]);
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,389 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import javax.annotation.PostConstruct;
+import javax.jdo.JDOHelper;
+import javax.jdo.spi.PersistenceCapable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Keeps rendered documents, so that a document whose content cannot have changed is not rendered again.
+ *
+ * <p>
+ * Documents are keyed by {@link #keyOf(PdfTemplate, Object...)}, which combines the identity and the version of the
+ * (JDO) domain objects a document was rendered from with the digest of the template. Any change to those objects
+ * therefore results in a new key, and the documents of former versions are simply evicted in time.
+ * </p>
+ *
+ * <p>
+ * The total size of the documents held in memory is bounded by the <tt>isis.module.pdf.documents.maximumWeight</tt>
+ * configuration property (in bytes). If <tt>isis.module.pdf.documents.spillDirectory</tt> is set, documents evicted
+ * from memory are written to that directory, bounded in turn by <tt>isis.module.pdf.documents.spillMaximumWeight</tt>,
+ * and read back from there when requested again.
+ * </p>
+ */
+@DomainService
+public class PdfDocumentCache {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PdfDocumentCache.class);
+
+    //region > init
+
+    static final String MAXIMUM_WEIGHT_KEY = "isis.module.pdf.documents.maximumWeight";
+    static final long MAXIMUM_WEIGHT_DEFAULT = 32L * 1024 * 1024;
+
+    static final String SPILL_DIRECTORY_KEY = "isis.module.pdf.documents.spillDirectory";
+    static final String SPILL_MAXIMUM_WEIGHT_KEY = "isis.module.pdf.documents.spillMaximumWeight";
+    static final long SPILL_MAXIMUM_WEIGHT_DEFAULT = 256L * 1024 * 1024;
+
+    // the key, a SHA-1 digest, and the suffix; see spill()
+    private static final Pattern SPILLED_FILE_NAME = Pattern.compile("[0-9a-f]{40}\\.pdf");
+
+    private long maximumWeight = MAXIMUM_WEIGHT_DEFAULT;
+    private File spillDirectory;
+    private long spillMaximumWeight = SPILL_MAXIMUM_WEIGHT_DEFAULT;
+
+    private volatile Cache<String, byte[]> documents;
+    // assigned before the documents, and only read after them
+    private volatile Cache<String, File> spilledDocuments;
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        final String maximumWeightProperty = properties.get(MAXIMUM_WEIGHT_KEY);
+        if (maximumWeightProperty != null) {
+            maximumWeight = Long.parseLong(maximumWeightProperty.trim());
+        }
+        final String spillDirectoryProperty = properties.get(SPILL_DIRECTORY_KEY);
+        if (spillDirectoryProperty != null && !spillDirectoryProperty.trim().isEmpty()) {
+            spillDirectory = new File(spillDirectoryProperty.trim());
+            if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+                throw new IllegalStateException("Cannot create the directory " + spillDirectory + " (" + SPILL_DIRECTORY_KEY + ")");
+            }
+            // documents spilled by a former run are not known to this one; other files are left alone
+            final File[] files = spillDirectory.listFiles();
+            for (final File file : files != null ? files : new File[0]) {
+                if (SPILLED_FILE_NAME.matcher(file.getName()).matches()) {
+                    file.delete();
+                }
+            }
+        }
+        final String spillMaximumWeightProperty = properties.get(SPILL_MAXIMUM_WEIGHT_KEY);
+        if (spillMaximumWeightProperty != null) {
+            spillMaximumWeight = Long.parseLong(spillMaximumWeightProperty.trim());
+        }
+        // nothing is lost by starting afresh
+        documents = null;
+        spilledDocuments = null;
+    }
+
+    private Cache<String, byte[]> getDocuments() {
+        Cache<String, byte[]> cache = documents;
+        if (cache == null) {
+            synchronized (this) {
+                cache = documents;
+                if (cache == null) {
+                    if (spillDirectory != null) {
+                        spilledDocuments = CacheBuilder.newBuilder()
+                                .maximumWeight(spillMaximumWeight)
+                                .weigher(new Weigher<String, File>() {
+                                    @Override
+                                    public int weigh(final String key, final File file) {
+                                        return (int) Math.min(file.length(), Integer.MAX_VALUE);
+                                    }
+                                })
+                                .removalListener(new RemovalListener<String, File>() {
+                                    @Override
+                                    public void onRemoval(final RemovalNotification<String, File> notification) {
+                                        // a replaced entry refers to the very same file
+                                        if (notification.getCause() != RemovalCause.REPLACED
+                                                && notification.getValue() != null) {
+                                            notification.getValue().delete();
+                                        }
+                                    }
+                                })
+                                .build();
+                    }
+                    cache = documents = CacheBuilder.newBuilder()
+                            .maximumWeight(maximumWeight)
+                            .weigher(new Weigher<String, byte[]>() {
+                                @Override
+                                public int weigh(final String key, final byte[] document) {
+                                    return document.length;
+                                }
+                            })
+                            .removalListener(new RemovalListener<String, byte[]>() {
+                                @Override
+                                public void onRemoval(final RemovalNotification<String, byte[]> notification) {
+                                    if (notification.getCause() == RemovalCause.SIZE) {
+                                        spill(notification.getKey(), notification.getValue());
+                                    }
+                                }
+                            })
+                            .recordStats()
+                            .build();
+                }
+            }
+        }
+        return cache;
+    }
+    //endregion
+
+    //region > keyOf
+
+    /**
+     * Computes the key of the document rendered from the template and the parts.
+     *
+     * <p>
+     * Persistent (JDO) domain objects contribute their identity and version, the elements of {@link Iterable}s
+     * (for example the child objects of a collection) contribute each in turn, and any other part contributes its
+     * string representation.
+     * </p>
+     *
+     * @return The key, or <tt>null</tt> if any of the domain objects is not persistent or not versioned, or has been
+     *         changed in the current transaction, so that its version does not account for the change yet; in which
+     *         case the document must not be cached
+     */
+    @Programmatic
+    public String keyOf(final PdfTemplate template, final Object... parts) {
+        final Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(template.getDigest(), StandardCharsets.UTF_8);
+        for (final Object part : parts) {
+            if (!putPart(hasher, part)) {
+                return null;
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    private static boolean putPart(final Hasher hasher, final Object part) {
+        if (part instanceof Iterable) {
+            hasher.putChar('[');
+            for (final Object element : (Iterable<?>) part) {
+                if (!putPart(hasher, element)) {
+                    return false;
+                }
+            }
+            hasher.putChar(']');
+            return true;
+        }
+        if (part instanceof PersistenceCapable) {
+            if (JDOHelper.isDirty(part)) {
+                return false;
+            }
+            final Object objectId = JDOHelper.getObjectId(part);
+            final Object version = JDOHelper.getVersion(part);
+            if (objectId == null || version == null) {
+                return false;
+            }
+            hasher.putString(objectId.toString(), StandardCharsets.UTF_8).putChar('@')
+                  .putString(version.toString(), StandardCharsets.UTF_8).putChar(';');
+            return true;
+        }
+        hasher.putString(String.valueOf(part), StandardCharsets.UTF_8).putChar(';');
+        return true;
+    }
+    //endregion
+
+    //region > get
+
+    /**
+     * Returns the document held for the key, calling the renderer to create it if there is none.
+     *
+     * <p>
+     * Concurrent requests for the same key render the document only once.
+     * </p>
+     *
+     * @param key The key of the document, or <tt>null</tt> to always render it
+     */
+    @Programmatic
+    public byte[] get(final String key, final Callable<byte[]> renderer) throws Exception {
+        if (key == null) {
+            return renderer.call();
+        }
+        try {
+            return getDocuments().get(key, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    final byte[] spilled = unspill(key);
+                    return spilled != null ? spilled : renderer.call();
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * As {@link #get(String, Callable)}, recording a {@link PdfMetrics#recordCacheHit(String) hit} or a
+     * {@link PdfMetrics#recordCacheMiss(String) miss} against the template.
+     */
+    @Programmatic
+    public byte[] get(final PdfTemplate template, final String key, final Callable<byte[]> renderer) throws Exception {
+        final AtomicBoolean rendered = new AtomicBoolean();
+        final byte[] document = get(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                rendered.set(true);
+                return renderer.call();
+            }
+        });
+        if (rendered.get()) {
+            pdfMetrics.recordCacheMiss(template.getName());
+        } else {
+            pdfMetrics.recordCacheHit(template.getName());
+        }
+        return document;
+    }
+
+    /**
+     * The document held for the key, or <tt>null</tt> if there is none, recording a hit or a miss against the
+     * template; for callers that rather render a missing document themselves, and {@link #put(String, byte[]) put} it
+     * afterwards.
+     */
+    @Programmatic
+    public byte[] getIfPresent(final PdfTemplate template, final String key) {
+        final byte[] document = getIfPresent(key);
+        if (document != null) {
+            pdfMetrics.recordCacheHit(template.getName());
+        } else {
+            pdfMetrics.recordCacheMiss(template.getName());
+        }
+        return document;
+    }
+
+    /**
+     * The document held for the key, or <tt>null</tt> if there is none.
+     */
+    @Programmatic
+    public byte[] getIfPresent(final String key) {
+        if (key == null) {
+            return null;
+        }
+        byte[] document = getDocuments().getIfPresent(key);
+        if (document == null) {
+            document = unspill(key);
+            if (document != null) {
+                getDocuments().put(key, document);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Holds the document for the key.
+     */
+    @Programmatic
+    public void put(final String key, final byte[] document) {
+        getDocuments().put(key, document);
+    }
+
+    /**
+     * Discards the document held for the key, if any.
+     */
+    @Programmatic
+    public void invalidate(final String key) {
+        getDocuments().invalidate(key);
+        if (spilledDocuments != null) {
+            spilledDocuments.invalidate(key);
+        }
+    }
+
+    /**
+     * Discards all documents, for example after the way they are rendered has changed.
+     */
+    @Programmatic
+    public void invalidateAll() {
+        getDocuments().invalidateAll();
+        if (spilledDocuments != null) {
+            spilledDocuments.invalidateAll();
+        }
+    }
+
+    /**
+     * The hit/miss counts of the documents held in memory since startup.
+     */
+    @Programmatic
+    public CacheStats getStats() {
+        return getDocuments().stats();
+    }
+    //endregion
+
+    //region > spill
+
+    private void spill(final String key, final byte[] document) {
+        if (spilledDocuments == null) {
+            return;
+        }
+        final File file = new File(spillDirectory, key + ".pdf");
+        try {
+            Files.write(document, file);
+            spilledDocuments.put(key, file);
+        } catch (IOException e) {
+            LOG.warn("Unable to spill document to {}", file, e);
+            file.delete();
+        }
+    }
+
+    private byte[] unspill(final String key) {
+        if (spilledDocuments == null) {
+            return null;
+        }
+        final File file = spilledDocuments.getIfPresent(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Files.toByteArray(file);
+        } catch (IOException e) {
+            LOG.warn("Unable to read spilled document {}", file, e);
+            return null;
+        } finally {
+            // it is held in memory again now
+            spilledDocuments.invalidate(key);
+        }
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfMetrics pdfMetrics;
+
+    //endregion
+}
@@ -0,0 +1,204 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Decides where the content of the documents being rendered is kept: on the heap, or in a scratch file.
+ *
+ * <p>
+ * The streams of a document (page content, fonts, images) make up most of its size. If
+ * <tt>isis.module.pdf.scratch.directory</tt> is set, documents are given a scratch file in that directory to hold
+ * their streams in, rather than the heap, when
+ * </p>
+ * <ul>
+ *     <li>their estimated size is at least <tt>isis.module.pdf.scratch.threshold</tt> (in bytes), or</li>
+ *     <li>their size is not known in advance, as for merged documents, or</li>
+ *     <li>the documents on the heap would exceed <tt>isis.module.pdf.scratch.heapBudget</tt> (in bytes, by default a
+ *     quarter of the maximum heap size) together.</li>
+ * </ul>
+ *
+ * <p>
+ * The scratch file of a document is deleted when the document is closed. If no directory is set, all documents are
+ * kept on the heap.
+ * </p>
+ */
+@DomainService
+public class PdfDocumentStorage implements PdfTemplate.DocumentFactory {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PdfDocumentStorage.class);
+
+    //region > init
+
+    static final String DIRECTORY_KEY = "isis.module.pdf.scratch.directory";
+    static final String THRESHOLD_KEY = "isis.module.pdf.scratch.threshold";
+    static final long THRESHOLD_DEFAULT = 8L * 1024 * 1024;
+    static final String HEAP_BUDGET_KEY = "isis.module.pdf.scratch.heapBudget";
+
+    // the names PDFBox gives its scratch files
+    private static final String SCRATCH_FILE_PREFIX = "pdfbox";
+    private static final String SCRATCH_FILE_SUFFIX = ".tmp";
+
+    private File directory;
+    private long threshold = THRESHOLD_DEFAULT;
+    private long heapBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    private final AtomicLong heapReserved = new AtomicLong();
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        directory = null;
+        final String directoryProperty = properties.get(DIRECTORY_KEY);
+        if (directoryProperty != null && !directoryProperty.trim().isEmpty()) {
+            directory = new File(directoryProperty.trim());
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Cannot create the directory " + directory + " (" + DIRECTORY_KEY + ")");
+            }
+            // scratch files are left behind only if a former run did not close its documents
+            final File[] files = directory.listFiles();
+            for (final File file : files != null ? files : new File[0]) {
+                final String name = file.getName();
+                if (name.startsWith(SCRATCH_FILE_PREFIX) && name.endsWith(SCRATCH_FILE_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        final String thresholdProperty = properties.get(THRESHOLD_KEY);
+        threshold = thresholdProperty != null ? Long.parseLong(thresholdProperty.trim()) : THRESHOLD_DEFAULT;
+        final String heapBudgetProperty = properties.get(HEAP_BUDGET_KEY);
+        if (heapBudgetProperty != null) {
+            heapBudget = Long.parseLong(heapBudgetProperty.trim());
+        }
+    }
+    //endregion
+
+    //region > newDocument
+
+    /**
+     * A new, empty document, kept on the heap or in a scratch file according to its estimated size.
+     *
+     * @param estimatedSize The expected size of the saved document in bytes, or <tt>-1</tt> if it is unknown
+     */
+    @Programmatic
+    @Override
+    public PDDocument newDocument(final long estimatedSize) throws IOException {
+        return newDocument(estimatedSize, null);
+    }
+
+    /**
+     * As {@link #newDocument(long)}, but keeping the streams of a document that is kept on the heap in a buffer of the
+     * context (if any) rather than in buffers of its own.
+     */
+    PDDocument newDocument(final long estimatedSize, final PdfRenderingContext context) throws IOException {
+        if (directory == null) {
+            return context != null ? new HeapDocument(0, context) : new PDDocument();
+        }
+        if (estimatedSize < 0 || estimatedSize >= threshold || !reserve(estimatedSize)) {
+            LOG.debug("scratch file for a document of estimated size {}", estimatedSize);
+            return new PDDocument(newCOSDocument(new COSDocument(directory)));
+        }
+        return new HeapDocument(estimatedSize, context);
+    }
+
+    /**
+     * Sets up the empty document as {@link PDDocument#PDDocument()} does, whatever its streams are kept in.
+     */
+    private static COSDocument newCOSDocument(final COSDocument document) {
+        final COSDictionary trailer = new COSDictionary();
+        document.setTrailer(trailer);
+        final COSDictionary catalog = new COSDictionary();
+        trailer.setItem(COSName.ROOT, catalog);
+        catalog.setItem(COSName.TYPE, COSName.CATALOG);
+        catalog.setItem(COSName.VERSION, COSName.getPDFName("1.4"));
+        final COSDictionary pages = new COSDictionary();
+        catalog.setItem(COSName.PAGES, pages);
+        pages.setItem(COSName.TYPE, COSName.PAGES);
+        pages.setItem(COSName.KIDS, new COSArray());
+        pages.setItem(COSName.COUNT, COSInteger.ZERO);
+        return document;
+    }
+
+    /**
+     * The bytes of the documents currently kept on the heap, as estimated.
+     */
+    @Programmatic
+    public long getHeapReserved() {
+        return heapReserved.get();
+    }
+
+    private boolean reserve(final long size) {
+        long reserved;
+        do {
+            reserved = heapReserved.get();
+            if (reserved + size > heapBudget) {
+                return false;
+            }
+        } while (!heapReserved.compareAndSet(reserved, reserved + size));
+        return true;
+    }
+
+    /**
+     * Gives back its share of the heap budget, and the buffer of the context it kept its streams in, when closed.
+     */
+    private class HeapDocument extends PDDocument {
+
+        private final long size;
+        private final PdfRenderingContext context;
+        private final PdfDocumentBuffer buffer;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        HeapDocument(final long size, final PdfRenderingContext context) throws IOException {
+            this(size, context, context != null ? context.allocate() : null);
+        }
+
+        private HeapDocument(final long size, final PdfRenderingContext context, final PdfDocumentBuffer buffer) throws IOException {
+            super(newCOSDocument(buffer != null ? new COSDocument(buffer, false) : new COSDocument()));
+            this.size = size;
+            this.context = context;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    heapReserved.addAndGet(-size);
+                    if (buffer != null) {
+                        context.free(buffer);
+                    }
+                }
+            }
+        }
+    }
+    //endregion
+}
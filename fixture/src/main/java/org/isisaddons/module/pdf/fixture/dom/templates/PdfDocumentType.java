@@ -0,0 +1,67 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A kind of document that is generated from a template for an entity, such as the {@link CustomerConfirmation} of an
+ * order.
+ *
+ * <p>
+ * Document types are {@link PdfDocuments#register(PdfDocumentType) registered} with {@link PdfDocuments}, which
+ * renders them all through the same pipeline: templates are parsed once, values are bound on the calling thread and
+ * rendered on the pool of the {@link PdfRenderingService}, documents are cached by the {@link PdfDocumentCache} and
+ * measured through {@link PdfMetrics}.
+ * </p>
+ *
+ * @see AbstractPdfDocumentType
+ */
+public interface PdfDocumentType<T> {
+
+    /**
+     * The name of the document type, unique within the application.
+     */
+    String getName();
+
+    Class<T> getEntityType();
+
+    PdfTemplateSource getTemplateSource();
+
+    /**
+     * Creates the binder of the entities' values to the template's fields; called once, when the type is registered.
+     */
+    PdfBinder<T> newBinder(PdfTemplate template) throws IOException;
+
+    /**
+     * The (persistent) objects the document of the entity is rendered from, usually the entity and its children, whose
+     * versions determine whether a cached document is still current.
+     */
+    Object[] dependenciesOf(T entity);
+
+    /**
+     * The file name of the document of the entity.
+     */
+    String fileNameOf(T entity);
+
+    /**
+     * Creates entities with made-up values, never to be persisted, for the {@link PdfWarmUp} to render through the
+     * binder; they should vary as real ones do, for example by having more children than fit into the template.
+     *
+     * @return The samples, or an empty list to have the warm-up make up values for the fields of the template instead
+     */
+    List<T> newSamples();
+}
@@ -0,0 +1,464 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Generates the documents of all registered {@link PdfDocumentType}s through one pipeline.
+ *
+ * <p>
+ * A document type is added by {@link #register(PdfDocumentType) registering} it, typically from the
+ * <tt>@PostConstruct</tt> method of the domain service that contributes its actions; the template is loaded and the
+ * binder compiled at that time, so that a broken template or binding fails at startup. Rendering, caching, merging
+ * and the metrics are then the same for every type, and are tuned in one place.
+ * </p>
+ *
+ * <p>
+ * A binder is compiled against the {@link PdfFieldIndex} of one template, so it is compiled again whenever the
+ * {@link PdfTemplateRegistry} hands out another template for the type, for example after templates have been
+ * redeployed.
+ * </p>
+ */
+@DomainService
+public class PdfDocuments {
+
+    /**
+     * Told the length of a document {@link #write(PdfDocumentType, Object, boolean, OutputStream, Length) written}
+     * before any of it is written, where the length is known by then; for example to set the <tt>Content-Length</tt>
+     * of a response.
+     */
+    public interface Length {
+
+        Length IGNORED = new Length() {
+            @Override
+            public void known(final int length) {
+            }
+        };
+
+        /**
+         * Called only for a document taken from the {@link PdfDocumentCache}; the length of a document that is
+         * written while it is saved is not known until it has been written.
+         */
+        void known(int length);
+    }
+
+    private final ConcurrentMap<String, Registration<?>> registrations = new ConcurrentHashMap<>();
+
+    //region > register
+
+    /**
+     * Registers the document type.
+     *
+     * @throws IllegalStateException If another document type has been registered under the same name, or the
+     *                               template or binding of the type cannot be loaded
+     */
+    @Programmatic
+    public <T> void register(final PdfDocumentType<T> type) {
+        final PdfTemplate template = pdfTemplateRegistry.lookup(type.getTemplateSource());
+        final Registration<?> existing = registrations.putIfAbsent(type.getName(), new Registration<>(type, compile(type, template)));
+        if (existing != null && existing.type != type) {
+            throw new IllegalStateException("Document type '" + type.getName() + "' is registered already");
+        }
+    }
+
+    /**
+     * Returns the document type registered under the name, or <tt>null</tt> if there is none.
+     */
+    @Programmatic
+    public PdfDocumentType<?> lookup(final String name) {
+        final Registration<?> registration = registrations.get(name);
+        return registration != null ? registration.type : null;
+    }
+
+    /**
+     * All registered document types.
+     */
+    @Programmatic
+    public List<PdfDocumentType<?>> getTypes() {
+        final List<PdfDocumentType<?>> types = new ArrayList<>();
+        for (final Registration<?> registration : registrations.values()) {
+            types.add(registration.type);
+        }
+        return types;
+    }
+    //endregion
+
+    //region > render
+
+    /**
+     * The document of the entity, taken from the {@link PdfDocumentCache} if none of its
+     * {@link PdfDocumentType#dependenciesOf(Object) dependencies} has changed since it was last rendered.
+     */
+    @Programmatic
+    public <T> byte[] render(final PdfDocumentType<T> type, final T entity, final boolean flatten) throws Exception {
+        return render(type, entity, flatten, pdfRenderingService.profileOf(templateOf(type)));
+    }
+
+    /**
+     * As {@link #render(PdfDocumentType, Object, boolean)}, saving the document as the given
+     * {@link PdfOutputProfile profile} asks; documents of different profiles are cached apart.
+     */
+    @Programmatic
+    public <T> byte[] render(
+            final PdfDocumentType<T> type,
+            final T entity,
+            final boolean flatten,
+            final PdfOutputProfile profile) throws Exception {
+        final PdfTemplate template = templateOf(type);
+        return pdfDocumentCache.get(template, keyOf(type, template, entity, flatten, profile), new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return pdfRenderingService.render(template, valuesOf(type, template, entity), flatten, profile);
+            }
+        });
+    }
+
+    /**
+     * As {@link #render(PdfDocumentType, Object, boolean)}, but writing the document to the target stream as it is
+     * saved, rather than collecting its bytes first.
+     *
+     * <p>
+     * A document that is not cached yet is written to the target and, for the cache, to a buffer at the same time; a
+     * document that cannot be cached, because its version is not known, is only written to the target.
+     * </p>
+     *
+     * @param target The stream to write the document to; it is not closed
+     */
+    @Programmatic
+    public <T> void write(
+            final PdfDocumentType<T> type,
+            final T entity,
+            final boolean flatten,
+            final OutputStream target) throws Exception {
+        write(type, entity, flatten, target, Length.IGNORED);
+    }
+
+    /**
+     * As {@link #write(PdfDocumentType, Object, boolean, OutputStream)}, telling the length of the document before it
+     * is written if it is cached.
+     */
+    @Programmatic
+    public <T> void write(
+            final PdfDocumentType<T> type,
+            final T entity,
+            final boolean flatten,
+            final OutputStream target,
+            final Length length) throws Exception {
+        final PdfTemplate template = templateOf(type);
+        final PdfOutputProfile profile = pdfRenderingService.profileOf(template);
+        final String key = keyOf(type, template, entity, flatten, profile);
+        if (key == null) {
+            pdfRenderingService.write(template, valuesOf(type, template, entity), flatten, profile, target);
+            return;
+        }
+        final byte[] cached = pdfDocumentCache.getIfPresent(template, key);
+        if (cached != null) {
+            length.known(cached.length);
+            target.write(cached);
+            return;
+        }
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream(template.getLength());
+        pdfRenderingService.write(template, valuesOf(type, template, entity), flatten, profile, new Tee(target, copy));
+        pdfDocumentCache.put(key, copy.toByteArray());
+    }
+
+    /**
+     * The version of the document of the entity, which changes whenever the template or any of the entity's
+     * {@link PdfDocumentType#dependenciesOf(Object) dependencies} change; for example as an HTTP entity tag.
+     *
+     * <p>
+     * Computing the version does not render the document.
+     * </p>
+     *
+     * @return The version, or <tt>null</tt> if any of the dependencies is not persistent or not versioned
+     */
+    @Programmatic
+    public <T> String versionOf(final PdfDocumentType<T> type, final T entity, final boolean flatten) {
+        final PdfTemplate template = templateOf(type);
+        return keyOf(type, template, entity, flatten, pdfRenderingService.profileOf(template));
+    }
+
+    /**
+     * As {@link #render(PdfDocumentType, Object, boolean)}, but reading the entity up front, so that the returned
+     * renderer does not touch the entity and may be called on any thread.
+     */
+    @Programmatic
+    public <T> Callable<byte[]> rendererOf(final PdfDocumentType<T> type, final T entity, final boolean flatten) {
+        final PdfTemplate template = templateOf(type);
+        final PdfOutputProfile profile = pdfRenderingService.profileOf(template);
+        final String key = keyOf(type, template, entity, flatten, profile);
+        final PdfFieldValues values = valuesOf(type, template, entity);
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return pdfDocumentCache.get(template, key, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return pdfRenderingService.render(template, values, flatten, profile);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Renders the document of each of the entities in parallel, and hands them to the sink in the order of the
+     * entities.
+     *
+     * @return The number of documents rendered
+     */
+    @Programmatic
+    public <T> int renderAll(
+            final PdfDocumentType<T> type,
+            final List<T> entities,
+            final boolean flatten,
+            final PdfOutputSink<T> sink) throws Exception {
+        return renderAll(type, entities, flatten, sink, PdfRenderingService.Progress.NONE);
+    }
+
+    /**
+     * As {@link #renderAll(PdfDocumentType, List, boolean, PdfOutputSink)}, telling the progress of the documents as
+     * they are handed to the sink.
+     */
+    @Programmatic
+    public <T> int renderAll(
+            final PdfDocumentType<T> type,
+            final List<T> entities,
+            final boolean flatten,
+            final PdfOutputSink<T> sink,
+            final PdfRenderingService.Progress progress) throws Exception {
+        final PdfTemplate template = templateOf(type);
+        return pdfRenderingService.renderAll(template, valuesOf(type, template, entities), flatten, new PdfRenderingService.Sink() {
+            @Override
+            public void accept(final int index, final byte[] document) throws IOException {
+                sink.accept(entities.get(index), document);
+            }
+        }, progress);
+    }
+
+    /**
+     * Writes a ZIP archive with the document of each of the entities to the target stream, which is not closed.
+     *
+     * @return The number of documents written
+     */
+    @Programmatic
+    public <T> int writeZip(
+            final PdfDocumentType<T> type,
+            final List<T> entities,
+            final boolean flatten,
+            final OutputStream target) throws Exception {
+        final PdfZipOutputSink<T> sink = new PdfZipOutputSink<>(type, target);
+        final int count = renderAll(type, entities, flatten, sink);
+        sink.finish();
+        return count;
+    }
+
+    /**
+     * Writes a single PDF document with the (flattened) documents of all the entities, one after the other, to the
+     * target stream.
+     *
+     * @return The number of documents merged
+     */
+    @Programmatic
+    public <T> int mergeAll(
+            final PdfDocumentType<T> type,
+            final List<T> entities,
+            final OutputStream target) throws Exception {
+        return mergeAll(type, entities, target, PdfRenderingService.Progress.NONE);
+    }
+
+    /**
+     * As {@link #mergeAll(PdfDocumentType, List, OutputStream)}, telling the progress of the documents as they are
+     * merged.
+     */
+    @Programmatic
+    public <T> int mergeAll(
+            final PdfDocumentType<T> type,
+            final List<T> entities,
+            final OutputStream target,
+            final PdfRenderingService.Progress progress) throws Exception {
+        final PdfTemplate template = templateOf(type);
+        return pdfRenderingService.mergeAll(template, valuesOf(type, template, entities), target, progress);
+    }
+    //endregion
+
+    //region > helpers
+
+    PdfTemplate templateOf(final PdfDocumentType<?> type) {
+        return pdfTemplateRegistry.lookup(type.getTemplateSource());
+    }
+
+    private <T> String keyOf(
+            final PdfDocumentType<T> type,
+            final PdfTemplate template,
+            final T entity,
+            final boolean flatten,
+            final PdfOutputProfile profile) {
+        // several types may share a template
+        final Object[] dependencies = type.dependenciesOf(entity);
+        final Object[] parts = new Object[dependencies.length + 3];
+        parts[0] = type.getName();
+        parts[1] = flatten;
+        parts[2] = profile;
+        System.arraycopy(dependencies, 0, parts, 3, dependencies.length);
+        return pdfDocumentCache.keyOf(template, parts);
+    }
+
+    /**
+     * Binds the entity's values for the current template of the type, on the calling thread.
+     */
+    @Programmatic
+    public <T> PdfFieldValues valuesOf(final PdfDocumentType<T> type, final T entity) {
+        return valuesOf(type, templateOf(type), entity);
+    }
+
+    /**
+     * Binds the entity's values for the template, which the values are only good for.
+     */
+    private <T> PdfFieldValues valuesOf(final PdfDocumentType<T> type, final PdfTemplate template, final T entity) {
+        final PdfBinder<T> binder = binderOf(type, template);
+        final long start = System.nanoTime();
+        final PdfFieldValues values = binder.valuesOf(entity);
+        pdfMetrics.recordTime(type.getTemplateSource().getName(), PdfMetrics.Stage.BIND, System.nanoTime() - start);
+        return values;
+    }
+
+    private <T> Iterator<PdfFieldValues> valuesOf(
+            final PdfDocumentType<T> type,
+            final PdfTemplate template,
+            final List<T> entities) {
+        final PdfBinder<T> binder = binderOf(type, template);
+        return Iterators.transform(entities.iterator(), new Function<T, PdfFieldValues>() {
+            @Override
+            public PdfFieldValues apply(final T entity) {
+                final long start = System.nanoTime();
+                final PdfFieldValues values = binder.valuesOf(entity);
+                pdfMetrics.recordTime(type.getTemplateSource().getName(), PdfMetrics.Stage.BIND, System.nanoTime() - start);
+                return values;
+            }
+        });
+    }
+
+    /**
+     * The binder of the type compiled against the template, compiling it again if it was compiled against another.
+     */
+    <T> PdfBinder<T> binderOf(final PdfDocumentType<T> type, final PdfTemplate template) {
+        final Registration<T> registration = registrationOf(type);
+        Compiled<T> compiled = registration.compiled;
+        if (compiled.template != template) {
+            compiled = compile(type, template);
+            registration.compiled = compiled;
+        }
+        return compiled.binder;
+    }
+
+    private static <T> Compiled<T> compile(final PdfDocumentType<T> type, final PdfTemplate template) {
+        try {
+            return new Compiled<>(template, type.newBinder(template));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load the binding of document type '" + type.getName() + "'", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Registration<T> registrationOf(final PdfDocumentType<T> type) {
+        final Registration<?> registration = registrations.get(type.getName());
+        if (registration == null || registration.type != type) {
+            throw new IllegalStateException("Document type '" + type.getName() + "' is not registered");
+        }
+        return (Registration<T>) registration;
+    }
+
+    /**
+     * Writes to two streams at once.
+     */
+    private static class Tee extends FilterOutputStream {
+
+        private final OutputStream copy;
+
+        Tee(final OutputStream target, final OutputStream copy) {
+            super(target);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+    }
+
+    private static class Registration<T> {
+
+        private final PdfDocumentType<T> type;
+        private volatile Compiled<T> compiled;
+
+        Registration(final PdfDocumentType<T> type, final Compiled<T> compiled) {
+            this.type = type;
+            this.compiled = compiled;
+        }
+    }
+
+    /**
+     * A binder, with the template it was compiled against.
+     */
+    private static class Compiled<T> {
+
+        private final PdfTemplate template;
+        private final PdfBinder<T> binder;
+
+        Compiled(final PdfTemplate template, final PdfBinder<T> binder) {
+            this.template = template;
+            this.binder = binder;
+        }
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfTemplateRegistry pdfTemplateRegistry;
+
+    @javax.inject.Inject
+    private PdfRenderingService pdfRenderingService;
+
+    @javax.inject.Inject
+    private PdfDocumentCache pdfDocumentCache;
+
+    @javax.inject.Inject
+    private PdfMetrics pdfMetrics;
+
+    //endregion
+}
@@ -0,0 +1,301 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+
+/**
+ * An index of the AcroForm fields of a {@link PdfTemplate}, built once when the template is parsed.
+ *
+ * <p>
+ * Each terminal field is assigned a <i>slot</i>, an integer that identifies it in every copy of the
+ * template. Fields named <tt>group|row|column</tt> (for example <tt>orderLine|1|desc</tt>) are
+ * additionally arranged in a {@link Grid}, so that repeating rows can be populated without building
+ * field names.
+ * </p>
+ */
+public class PdfFieldIndex {
+
+    private static final String GRID_SEPARATOR = "|";
+
+    private final List<String> names = new ArrayList<>();
+    private final List<int[]> paths = new ArrayList<>();
+    private final List<Integer> pages = new ArrayList<>();
+    private final Map<String, Integer> slotsByName = new HashMap<>();
+    private final Map<String, Grid> gridsByGroup = new HashMap<>();
+
+    PdfFieldIndex(final PDDocument document) {
+        final PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm();
+        if (acroForm != null) {
+            final COSBase fields = acroForm.getDictionary().getDictionaryObject(COSName.FIELDS);
+            if (fields instanceof COSArray) {
+                analyse((COSArray) fields, null, new int[0], pagesOfWidgets(document));
+            }
+        }
+        buildGrids();
+    }
+
+    /**
+     * Restores an index from the slots of a {@link PdfTemplateSnapshot}, without analysing the template again.
+     */
+    PdfFieldIndex(final List<String> names, final List<int[]> paths, final List<Integer> pages) {
+        for (int slot = 0; slot < names.size(); slot++) {
+            slotsByName.put(names.get(slot), slot);
+        }
+        this.names.addAll(names);
+        this.paths.addAll(paths);
+        this.pages.addAll(pages);
+        buildGrids();
+    }
+
+    private static Map<COSBase, Integer> pagesOfWidgets(final PDDocument document) {
+        final Map<COSBase, Integer> pagesOfWidgets = new IdentityHashMap<>();
+        final List<?> pages = document.getDocumentCatalog().getAllPages();
+        for (int page = 0; page < pages.size(); page++) {
+            final COSBase annotations = ((PDPage) pages.get(page)).getCOSDictionary().getDictionaryObject(COSName.ANNOTS);
+            if (annotations instanceof COSArray) {
+                for (int i = 0; i < ((COSArray) annotations).size(); i++) {
+                    pagesOfWidgets.put(((COSArray) annotations).getObject(i), page);
+                }
+            }
+        }
+        return pagesOfWidgets;
+    }
+
+    private void analyse(
+            final COSArray fields,
+            final String parentName,
+            final int[] parentPath,
+            final Map<COSBase, Integer> pagesOfWidgets) {
+        for (int i = 0; i < fields.size(); i++) {
+            final COSBase base = fields.getObject(i);
+            if (!(base instanceof COSDictionary)) {
+                continue;
+            }
+            final COSDictionary field = (COSDictionary) base;
+            final String partialName = field.getString(COSName.T);
+            final String name = partialName == null
+                    ? parentName
+                    : parentName == null ? partialName : parentName + "." + partialName;
+
+            final int[] path = Arrays.copyOf(parentPath, parentPath.length + 1);
+            path[parentPath.length] = i;
+
+            final COSBase kids = field.getDictionaryObject(COSName.KIDS);
+            if (kids instanceof COSArray && hasChildFields((COSArray) kids)) {
+                analyse((COSArray) kids, name, path, pagesOfWidgets);
+            } else if (name != null && !slotsByName.containsKey(name)) {
+                // a terminal field is its own widget, unless it has several
+                final COSBase widget = kids instanceof COSArray && ((COSArray) kids).size() > 0
+                        ? ((COSArray) kids).getObject(0)
+                        : field;
+                final Integer page = pagesOfWidgets.get(widget);
+
+                slotsByName.put(name, names.size());
+                names.add(name);
+                paths.add(path);
+                pages.add(page != null ? page : -1);
+            }
+        }
+    }
+
+    /**
+     * Kids are either further fields, identified by their partial name, or widget annotations of a terminal field.
+     */
+    private static boolean hasChildFields(final COSArray kids) {
+        for (int i = 0; i < kids.size(); i++) {
+            final COSBase kid = kids.getObject(i);
+            if (kid instanceof COSDictionary && ((COSDictionary) kid).getItem(COSName.T) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void buildGrids() {
+        final Map<String, SortedMap<Integer, Map<String, Integer>>> cellsByGroup = new HashMap<>();
+        for (int slot = 0; slot < names.size(); slot++) {
+            final String[] parts = names.get(slot).split("\\" + GRID_SEPARATOR, -1);
+            if (parts.length != 3) {
+                continue;
+            }
+            final int row;
+            try {
+                row = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            SortedMap<Integer, Map<String, Integer>> rows = cellsByGroup.get(parts[0]);
+            if (rows == null) {
+                rows = new TreeMap<>();
+                cellsByGroup.put(parts[0], rows);
+            }
+            Map<String, Integer> cells = rows.get(row);
+            if (cells == null) {
+                cells = new HashMap<>();
+                rows.put(row, cells);
+            }
+            cells.put(parts[2], slot);
+        }
+        for (final Map.Entry<String, SortedMap<Integer, Map<String, Integer>>> entry : cellsByGroup.entrySet()) {
+            gridsByGroup.put(entry.getKey(), new Grid(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    //region > slots
+
+    /**
+     * The number of slots, that is of terminal fields, in the template.
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Returns the slot of the field with the given fully qualified name, or <tt>-1</tt> if the template has no such field.
+     */
+    public int slotOf(final String name) {
+        final Integer slot = slotsByName.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * The fully qualified name of the field in the given slot.
+     */
+    public String nameOf(final int slot) {
+        return names.get(slot);
+    }
+
+    /**
+     * The fully qualified names of all fields, in slot order.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * The indices to follow through the <tt>/Fields</tt> array and the nested <tt>/Kids</tt> arrays to reach the field.
+     */
+    int[] pathOf(final int slot) {
+        return paths.get(slot);
+    }
+
+    /**
+     * Returns the (zero-based) index of the page the field is shown on, or <tt>-1</tt> if it is not shown on any.
+     */
+    public int pageOf(final int slot) {
+        return pages.get(slot);
+    }
+    //endregion
+
+    //region > grids
+
+    /**
+     * Returns the grid of fields named <tt>group|row|column</tt>, or <tt>null</tt> if the template has no such fields.
+     */
+    public Grid grid(final String group) {
+        return gridsByGroup.get(group);
+    }
+
+    /**
+     * Fields of a repeating section, addressed by (zero-based) row and column rather than by name.
+     */
+    public static class Grid {
+
+        private final String group;
+        private final Map<String, Integer> columnsByName = new HashMap<>();
+        private final int[][] slots;
+
+        Grid(final String group, final SortedMap<Integer, Map<String, Integer>> cellsByRow) {
+            this.group = group;
+            for (final Map<String, Integer> cells : cellsByRow.values()) {
+                for (final String column : cells.keySet()) {
+                    if (!columnsByName.containsKey(column)) {
+                        columnsByName.put(column, columnsByName.size());
+                    }
+                }
+            }
+            slots = new int[cellsByRow.size()][columnsByName.size()];
+            int row = 0;
+            for (final Map<String, Integer> cells : cellsByRow.values()) {
+                Arrays.fill(slots[row], -1);
+                for (final Map.Entry<String, Integer> cell : cells.entrySet()) {
+                    slots[row][columnsByName.get(cell.getKey())] = cell.getValue();
+                }
+                row++;
+            }
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public int getRowCount() {
+            return slots.length;
+        }
+
+        public int getColumnCount() {
+            return columnsByName.size();
+        }
+
+        /**
+         * Returns the index of the named column, or <tt>-1</tt> if no row of the grid has such a column.
+         */
+        public int columnOf(final String column) {
+            final Integer index = columnsByName.get(column);
+            return index != null ? index : -1;
+        }
+
+        /**
+         * Returns the slot of the cell, or <tt>-1</tt> if that row has no field for the column.
+         */
+        public int slotOf(final int row, final int column) {
+            return column < 0 ? -1 : slots[row][column];
+        }
+    }
+    //endregion
+
+    //region > fieldsOf
+
+    /**
+     * Provides slot-based access to the fields of a copy of the template this index was built for.
+     */
+    public PdfFormFields fieldsOf(final PDDocument document) {
+        return new PdfFormFields(this, document.getDocumentCatalog().getAcroForm());
+    }
+
+    /**
+     * As {@link #fieldsOf(PDDocument)}, taking the appearances of text fields from the cache.
+     */
+    PdfFormFields fieldsOf(final PDDocument document, final PdfAppearanceCache appearanceCache, final String digest) {
+        return new PdfFormFields(this, document.getDocumentCatalog().getAcroForm(), appearanceCache, digest);
+    }
+    //endregion
+}
@@ -0,0 +1,159 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values to populate a copy of a template with, held by slot of the template's {@link PdfFieldIndex}.
+ *
+ * <p>
+ * The values are plain strings read from the domain objects up front, so they can be written into
+ * the document without touching the domain objects again.
+ * </p>
+ */
+public class PdfFieldValues {
+
+    private final PdfFieldIndex index;
+    private final String[] values;
+    private final Map<PdfFieldIndex.Grid, List<String[]>> rowsByGrid = new LinkedHashMap<>();
+
+    public PdfFieldValues(final PdfFieldIndex index) {
+        this.index = index;
+        this.values = new String[index.size()];
+    }
+
+    /**
+     * The index of the template the values are for; the slots and grids of no other template fit them.
+     */
+    public PdfFieldIndex getFieldIndex() {
+        return index;
+    }
+
+    //region > values
+
+    /**
+     * Sets the value for the given slot; a negative slot is ignored.
+     */
+    public void set(final int slot, final String value) {
+        if (slot < 0) {
+            return;
+        }
+        values[slot] = value;
+    }
+
+    public String get(final int slot) {
+        return values[slot];
+    }
+    //endregion
+
+    //region > rows
+
+    /**
+     * Appends a row to the grid; the row holds one value per column of the grid.
+     */
+    public void addRow(final PdfFieldIndex.Grid grid, final String[] row) {
+        List<String[]> rows = rowsByGrid.get(grid);
+        if (rows == null) {
+            rows = new ArrayList<>();
+            rowsByGrid.put(grid, rows);
+        }
+        rows.add(row);
+    }
+
+    public List<String[]> rowsOf(final PdfFieldIndex.Grid grid) {
+        final List<String[]> rows = rowsByGrid.get(grid);
+        return rows != null ? rows : Collections.<String[]>emptyList();
+    }
+
+    /**
+     * The grids that have more rows than fit into them.
+     */
+    public List<PdfFieldIndex.Grid> overflowingGrids() {
+        final List<PdfFieldIndex.Grid> grids = new ArrayList<>();
+        for (final Map.Entry<PdfFieldIndex.Grid, List<String[]>> entry : rowsByGrid.entrySet()) {
+            if (entry.getValue().size() > entry.getKey().getRowCount()) {
+                grids.add(entry.getKey());
+            }
+        }
+        return grids;
+    }
+
+    /**
+     * The number of times the grids must be filled to hold all of their rows; at least one.
+     */
+    public int getRowPageCount() {
+        int rowPageCount = 1;
+        for (final Map.Entry<PdfFieldIndex.Grid, List<String[]>> entry : rowsByGrid.entrySet()) {
+            final int rowCount = entry.getKey().getRowCount();
+            if (rowCount > 0) {
+                rowPageCount = Math.max(rowPageCount, (entry.getValue().size() + rowCount - 1) / rowCount);
+            }
+        }
+        return rowPageCount;
+    }
+    //endregion
+
+    //region > writeTo
+
+    /**
+     * Writes the values into the fields of a copy of the template, with as many rows as fit into each grid.
+     *
+     * <p>
+     * Fields without a value are left as they are in the template.
+     * </p>
+     *
+     * @see #writeTo(PdfFormFields, int)
+     */
+    public void writeTo(final PdfFormFields fields) throws IOException {
+        writeTo(fields, 0);
+    }
+
+    /**
+     * Writes the values into the fields of a copy of the template, with the given page of rows in each grid.
+     *
+     * <p>
+     * The first page (<tt>0</tt>) holds as many rows as the grid has, the second page the rows following those, and
+     * so on up to {@link #getRowPageCount()}. The values of the fields outside the grids are written on every page.
+     * </p>
+     */
+    public void writeTo(final PdfFormFields fields, final int rowPage) throws IOException {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                fields.setValue(slot, values[slot]);
+            }
+        }
+        for (final Map.Entry<PdfFieldIndex.Grid, List<String[]>> entry : rowsByGrid.entrySet()) {
+            final PdfFieldIndex.Grid grid = entry.getKey();
+            final List<String[]> rows = entry.getValue();
+            final int first = rowPage * grid.getRowCount();
+            final int rowCount = Math.min(grid.getRowCount(), rows.size() - first);
+            for (int row = 0; row < rowCount; row++) {
+                final String[] cells = rows.get(first + row);
+                for (int column = 0; column < cells.length; column++) {
+                    if (cells[column] != null) {
+                        fields.setValue(grid.slotOf(row, column), cells[column]);
+                    }
+                }
+            }
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,229 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+
+/**
+ * Bakes the appearances of the form fields of a populated document into its page content and drops the AcroForm.
+ *
+ * <p>
+ * Each visible widget's normal appearance stream is drawn as a form XObject at the position of the widget,
+ * from a content stream appended to the page, and the widget annotation is removed. The result can no longer
+ * be edited, but viewers and printers no longer need to regenerate appearances and the field tree is gone.
+ * </p>
+ */
+public final class PdfFlattener {
+
+    private static final String XOBJECT_PREFIX = "Flattened";
+
+    private PdfFlattener() {
+    }
+
+    /**
+     * Flattens the document in place.
+     */
+    public static void flatten(final PDDocument document) throws IOException {
+        @SuppressWarnings("unchecked")
+        final List<PDPage> pages = document.getDocumentCatalog().getAllPages();
+        for (final PDPage page : pages) {
+            flatten(document, page);
+        }
+        document.getDocumentCatalog().getCOSDictionary().removeItem(COSName.ACRO_FORM);
+    }
+
+    private static void flatten(final PDDocument document, final PDPage page) throws IOException {
+        final List<PDAnnotation> annotations = page.getAnnotations();
+        if (annotations.isEmpty()) {
+            return;
+        }
+        final List<PDAnnotation> remaining = new ArrayList<>();
+        final StringBuilder commands = new StringBuilder();
+        COSDictionary xobjects = null;
+        for (final PDAnnotation annotation : annotations) {
+            if (!(annotation instanceof PDAnnotationWidget)) {
+                remaining.add(annotation);
+                continue;
+            }
+            if (annotation.isHidden() || annotation.isInvisible() || annotation.isNoView()) {
+                continue;
+            }
+            final COSStream appearance = normalAppearanceOf(annotation.getDictionary());
+            final PDRectangle rectangle = annotation.getRectangle();
+            if (appearance == null || rectangle == null) {
+                continue;
+            }
+            if (xobjects == null) {
+                xobjects = xobjectsOf(page);
+            }
+            appearance.setItem(COSName.TYPE, COSName.XOBJECT);
+            appearance.setItem(COSName.SUBTYPE, COSName.FORM);
+            final String name = uniqueName(xobjects);
+            xobjects.setItem(name, appearance);
+
+            commands.append("q ");
+            appendTransform(commands, appearance, rectangle);
+            commands.append(" cm /").append(name).append(" Do Q\n");
+        }
+        if (commands.length() > 0) {
+            appendContent(document, page, commands.toString());
+        }
+        if (remaining.isEmpty()) {
+            page.getCOSDictionary().removeItem(COSName.ANNOTS);
+        } else {
+            page.setAnnotations(remaining);
+        }
+    }
+
+    /**
+     * The <tt>/N</tt> entry of the widget's appearance dictionary, selecting the widget's <tt>/AS</tt> state
+     * if there is one appearance per state (as for check boxes).
+     */
+    private static COSStream normalAppearanceOf(final COSDictionary widget) {
+        final COSBase appearances = widget.getDictionaryObject(COSName.AP);
+        if (!(appearances instanceof COSDictionary)) {
+            return null;
+        }
+        final COSBase normal = ((COSDictionary) appearances).getDictionaryObject(COSName.N);
+        if (normal instanceof COSStream) {
+            return (COSStream) normal;
+        }
+        if (normal instanceof COSDictionary) {
+            final COSBase state = widget.getDictionaryObject(COSName.AS);
+            if (state instanceof COSName) {
+                final COSBase stateAppearance = ((COSDictionary) normal).getDictionaryObject((COSName) state);
+                if (stateAppearance instanceof COSStream) {
+                    return (COSStream) stateAppearance;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A new XObject dictionary, in a new resource dictionary of the page.
+     *
+     * <p>
+     * Appearance streams commonly share the resources of the page, and must not see the XObjects that draw them.
+     * </p>
+     */
+    private static COSDictionary xobjectsOf(final PDPage page) {
+        final COSDictionary resources = new COSDictionary();
+        resources.addAll(page.findResources().getCOSDictionary());
+        final COSDictionary xobjects = new COSDictionary();
+        final COSBase existing = resources.getDictionaryObject(COSName.XOBJECT);
+        if (existing instanceof COSDictionary) {
+            xobjects.addAll((COSDictionary) existing);
+        }
+        resources.setItem(COSName.XOBJECT, xobjects);
+        page.getCOSDictionary().setItem(COSName.RESOURCES, resources);
+        return xobjects;
+    }
+
+    private static String uniqueName(final COSDictionary xobjects) {
+        int i = xobjects.size();
+        while (xobjects.containsKey(COSName.getPDFName(XOBJECT_PREFIX + i))) {
+            i++;
+        }
+        return XOBJECT_PREFIX + i;
+    }
+
+    /**
+     * Maps the appearance's bounding box, as transformed by its <tt>/Matrix</tt>, onto the widget's rectangle
+     * (section 12.5.5 of ISO 32000-1).
+     */
+    private static void appendTransform(final StringBuilder commands, final COSStream appearance, final PDRectangle rectangle) {
+        final float[] matrix = {1, 0, 0, 1, 0, 0};
+        final COSBase matrixArray = appearance.getDictionaryObject(COSName.MATRIX);
+        if (matrixArray instanceof COSArray && ((COSArray) matrixArray).size() == 6) {
+            for (int i = 0; i < 6; i++) {
+                final COSBase element = ((COSArray) matrixArray).getObject(i);
+                if (element instanceof COSNumber) {
+                    matrix[i] = ((COSNumber) element).floatValue();
+                }
+            }
+        }
+        final COSBase bboxArray = appearance.getDictionaryObject(COSName.BBOX);
+        final PDRectangle bbox = bboxArray instanceof COSArray
+                ? new PDRectangle((COSArray) bboxArray)
+                : new PDRectangle(rectangle.getWidth(), rectangle.getHeight());
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (final float x : new float[] {bbox.getLowerLeftX(), bbox.getUpperRightX()}) {
+            for (final float y : new float[] {bbox.getLowerLeftY(), bbox.getUpperRightY()}) {
+                final float tx = matrix[0] * x + matrix[2] * y + matrix[4];
+                final float ty = matrix[1] * x + matrix[3] * y + matrix[5];
+                minX = Math.min(minX, tx);
+                minY = Math.min(minY, ty);
+                maxX = Math.max(maxX, tx);
+                maxY = Math.max(maxY, ty);
+            }
+        }
+        final float scaleX = maxX > minX ? rectangle.getWidth() / (maxX - minX) : 1;
+        final float scaleY = maxY > minY ? rectangle.getHeight() / (maxY - minY) : 1;
+        commands.append(format(scaleX)).append(" 0 0 ").append(format(scaleY)).append(' ')
+                .append(format(rectangle.getLowerLeftX() - minX * scaleX)).append(' ')
+                .append(format(rectangle.getLowerLeftY() - minY * scaleY));
+    }
+
+    private static String format(final float value) {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    /**
+     * Brackets the existing content in <tt>q</tt>/<tt>Q</tt>, so that it cannot leave a transformation in place,
+     * and appends the commands after it.
+     */
+    private static void appendContent(final PDDocument document, final PDPage page, final String commands) throws IOException {
+        final COSDictionary pageDictionary = page.getCOSDictionary();
+        final COSBase existing = pageDictionary.getDictionaryObject(COSName.CONTENTS);
+
+        final COSArray contents = new COSArray();
+        contents.add(newContentStream(document, "q\n"));
+        if (existing instanceof COSArray) {
+            contents.addAll((COSArray) existing);
+        } else if (existing != null) {
+            contents.add(existing);
+        }
+        contents.add(newContentStream(document, "Q\n" + commands));
+        pageDictionary.setItem(COSName.CONTENTS, contents);
+    }
+
+    private static COSStream newContentStream(final PDDocument document, final String commands) throws IOException {
+        final PDStream stream = new PDStream(document);
+        stream.getStream().setFilters(COSName.FLATE_DECODE);
+        try (OutputStream output = stream.createOutputStream()) {
+            output.write(commands.getBytes(StandardCharsets.US_ASCII));
+        }
+        return stream.getStream();
+    }
+}
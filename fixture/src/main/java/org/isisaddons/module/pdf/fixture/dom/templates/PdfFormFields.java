@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDFieldFactory;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextbox;
+
+/**
+ * The fields of one copy of a template, addressed by the slots of its {@link PdfFieldIndex}.
+ *
+ * <p>
+ * Fields are resolved on first access by following the path recorded in the index, rather than by
+ * searching the field tree for their name. The appearances of text fields are taken from a
+ * {@link PdfAppearanceCache}, if there is one.
+ * </p>
+ */
+public class PdfFormFields {
+
+    private final PdfFieldIndex index;
+    private final PDAcroForm acroForm;
+    private final PDField[] fields;
+    private final PdfAppearanceCache appearanceCache;
+    private final String digest;
+
+    PdfFormFields(final PdfFieldIndex index, final PDAcroForm acroForm) {
+        this(index, acroForm, null, null);
+    }
+
+    /**
+     * @param appearanceCache The cache of appearances, or <tt>null</tt> if there is none
+     * @param digest The digest of the template the document is a copy of
+     */
+    PdfFormFields(final PdfFieldIndex index, final PDAcroForm acroForm, final PdfAppearanceCache appearanceCache, final String digest) {
+        this.index = index;
+        this.acroForm = acroForm;
+        this.fields = new PDField[index.size()];
+        this.appearanceCache = appearanceCache;
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the field in the given slot.
+     */
+    public PDField get(final int slot) throws IOException {
+        PDField field = fields[slot];
+        if (field == null) {
+            field = PDFieldFactory.createField(acroForm, resolve(index.pathOf(slot)));
+            fields[slot] = field;
+        }
+        return field;
+    }
+
+    /**
+     * Sets the value of the field in the given slot.
+     *
+     * <p>
+     * A negative slot, as returned by the index for fields that are absent from the template, is ignored.
+     * </p>
+     */
+    public void setValue(final int slot, final String value) throws IOException {
+        if (slot < 0) {
+            return;
+        }
+        final PDField field = get(slot);
+        if (appearanceCache != null && field instanceof PDTextbox) {
+            appearanceCache.setValue(digest, slot, (PDTextbox) field, value);
+        } else {
+            field.setValue(value);
+        }
+    }
+
+    private COSDictionary resolve(final int[] path) {
+        COSBase current = acroForm.getDictionary().getDictionaryObject(COSName.FIELDS);
+        for (final int i : path) {
+            if (current instanceof COSDictionary) {
+                current = ((COSDictionary) current).getDictionaryObject(COSName.KIDS);
+            }
+            current = ((COSArray) current).getObject(i);
+        }
+        return (COSDictionary) current;
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.persistence.util.COSObjectKey;
+import org.apache.pdfbox.util.PDFCloneUtility;
+
+/**
+ * Saves a populated copy of a {@link PdfTemplate} as the template's own bytes, unchanged, followed by an
+ * incremental update holding only the objects of the form that differ from the template: the fields whose values
+ * were set and their appearance streams.
+ *
+ * <p>
+ * Fonts, images and page content are therefore neither compared nor written again, which makes saving much
+ * cheaper than {@link PDDocument#save(OutputStream) saving} the whole document, at the cost of a slightly larger
+ * result.
+ * </p>
+ *
+ * <p>
+ * The copy must be made through {@link #newDocument(PdfFieldValues, PdfTemplate.DocumentFactory)}, which records
+ * which of its objects were copied from which objects of the template. Only the form may be changed afterwards; a
+ * {@link PdfFlattener flattened} copy, a copy with continuation pages or a copy of a template that uses a
+ * cross-reference stream or is encrypted cannot be written incrementally, and has to be saved in full.
+ * </p>
+ *
+ * <p>
+ * Streams of the update that are not compressed, such as the appearances PDFBox generates, are compressed at the
+ * deflate level given (if any).
+ * </p>
+ */
+public class PdfIncrementalWriter {
+
+    private static final byte[] EOL = "\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int STARTXREF_WINDOW = 1024;
+
+    private final PdfTemplate template;
+    private final int deflateLevel;
+    // the objects of the copy that were copied from indirect objects of the template
+    private final Map<COSBase, COSObject> originals = new IdentityHashMap<>();
+    private boolean continued;
+
+    public PdfIncrementalWriter(final PdfTemplate template) {
+        this(template, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * @param deflateLevel The level to compress new streams at, or {@link Deflater#NO_COMPRESSION}
+     */
+    public PdfIncrementalWriter(final PdfTemplate template, final int deflateLevel) {
+        this.template = template;
+        this.deflateLevel = deflateLevel;
+    }
+
+    //region > newDocument
+
+    /**
+     * As {@link PdfTemplate#newDocument(PdfFieldValues, PdfTemplate.DocumentFactory)}, for writing incrementally.
+     */
+    public PDDocument newDocument(final PdfFieldValues values, final PdfTemplate.DocumentFactory factory) throws IOException {
+        continued = values.getRowPageCount() > 1;
+        return template.newDocument(values, factory, this);
+    }
+
+    PDFCloneUtility newCloner(final PDDocument copy) {
+        return new PDFCloneUtility(copy) {
+            @Override
+            public COSBase cloneForNewDocument(final Object base) throws IOException {
+                final COSBase clone = super.cloneForNewDocument(base);
+                // names and small numbers are shared rather than copied, so only containers can be told apart
+                if (base instanceof COSObject && (clone instanceof COSDictionary || clone instanceof COSArray)) {
+                    originals.put(clone, (COSObject) base);
+                }
+                return clone;
+            }
+        };
+    }
+    //endregion
+
+    //region > write
+
+    /**
+     * Writes the whole document, that is the template followed by the update, to the target.
+     *
+     * @return <tt>false</tt> (having written nothing) if the document cannot be written incrementally
+     */
+    public boolean write(final PDDocument copy, final OutputStream target) throws IOException {
+        final byte[] bytes = template.getBytes();
+        final COSDictionary trailer = template.getTrailer();
+        final long startXref = startXrefOf(bytes);
+        if (continued
+                || startXref < 0
+                || trailer.getDictionaryObject(COSName.ENCRYPT) != null
+                || !(trailer.getItem(COSName.ROOT) instanceof COSObject)
+                || copy.getDocumentCatalog().getCOSDictionary().getDictionaryObject(COSName.ACRO_FORM) == null
+                || copy.getNumberOfPages() != template.getPageCount()) {
+            return false;
+        }
+
+        final Update update = new Update(trailer.getInt(COSName.SIZE));
+        collectChanges(copy, update);
+
+        final CountingOutputStream out = new CountingOutputStream(target);
+        out.write(bytes);
+        if (bytes.length > 0 && bytes[bytes.length - 1] != '\n' && bytes[bytes.length - 1] != '\r') {
+            out.write(EOL);
+        }
+        final SortedMap<Long, Long> offsets = new TreeMap<>();
+        while (!update.pending.isEmpty()) {
+            final COSBase object = update.pending.remove();
+            final COSObjectKey key = update.keyOf(object);
+            offsets.put(key.getNumber(), out.getCount());
+            write(out, key.getNumber() + " " + key.getGeneration() + " obj\n");
+            if (object instanceof COSStream) {
+                writeStream(out, (COSStream) object, update);
+            } else {
+                writeValue(out, object, update, true);
+            }
+            write(out, "\nendobj\n");
+        }
+
+        final long xref = out.getCount();
+        writeXref(out, offsets, update);
+        write(out, "trailer\n<<");
+        write(out, "/Size " + update.size);
+        write(out, "/Root ");
+        writeReference(out, (COSObject) trailer.getItem(COSName.ROOT));
+        final COSBase info = trailer.getItem(COSName.INFO);
+        if (info instanceof COSObject) {
+            write(out, "/Info ");
+            writeReference(out, (COSObject) info);
+        }
+        final COSBase id = trailer.getDictionaryObject(COSName.ID);
+        if (id != null) {
+            write(out, "/ID ");
+            writeValue(out, id, update, false);
+        }
+        write(out, "/Prev " + startXref + ">>\nstartxref\n" + xref + "\n%%EOF\n");
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Finds the objects of the form that differ from their originals in the template.
+     */
+    private void collectChanges(final PDDocument copy, final Update update) throws IOException {
+        final COSDictionary acroForm = (COSDictionary) copy.getDocumentCatalog().getCOSDictionary().getDictionaryObject(COSName.ACRO_FORM);
+        check(acroForm, update);
+        final COSBase fields = acroForm.getDictionaryObject(COSName.FIELDS);
+        if (fields instanceof COSArray) {
+            check(fields, update);
+            for (int i = 0; i < ((COSArray) fields).size(); i++) {
+                collectFieldChanges(((COSArray) fields).getObject(i), update);
+            }
+        }
+    }
+
+    private void collectFieldChanges(final COSBase base, final Update update) throws IOException {
+        if (!(base instanceof COSDictionary)) {
+            return;
+        }
+        // a field, a widget, or both
+        final COSDictionary field = (COSDictionary) base;
+        check(field, update);
+        final COSBase appearance = field.getDictionaryObject(COSName.AP);
+        if (appearance instanceof COSDictionary) {
+            check(appearance, update);
+            for (final COSName state : Arrays.asList(COSName.N, COSName.D, COSName.R)) {
+                final COSBase streams = ((COSDictionary) appearance).getDictionaryObject(state);
+                if (streams instanceof COSStream) {
+                    collectAppearanceChanges((COSStream) streams, update);
+                } else if (streams instanceof COSDictionary) {
+                    check(streams, update);
+                    for (final COSBase stream : ((COSDictionary) streams).getValues()) {
+                        final COSBase resolved = stream instanceof COSObject ? ((COSObject) stream).getObject() : stream;
+                        if (resolved instanceof COSStream) {
+                            collectAppearanceChanges((COSStream) resolved, update);
+                        }
+                    }
+                }
+            }
+        }
+        final COSBase kids = field.getDictionaryObject(COSName.KIDS);
+        if (kids instanceof COSArray) {
+            check(kids, update);
+            for (int i = 0; i < ((COSArray) kids).size(); i++) {
+                collectFieldChanges(((COSArray) kids).getObject(i), update);
+            }
+        }
+    }
+
+    private void collectAppearanceChanges(final COSStream stream, final Update update) throws IOException {
+        check(stream, update);
+        final COSBase resources = stream.getDictionaryObject(COSName.RESOURCES);
+        if (resources instanceof COSDictionary) {
+            check(resources, update);
+            final COSBase fonts = ((COSDictionary) resources).getDictionaryObject(COSName.FONT);
+            if (fonts instanceof COSDictionary) {
+                check(fonts, update);
+            }
+        }
+    }
+
+    /**
+     * Schedules the object for writing if it was copied from an indirect object of the template and has changed since;
+     * objects that are new are written when first referred to.
+     */
+    private void check(final COSBase object, final Update update) throws IOException {
+        final COSObject original = originals.get(object);
+        if (original != null && !sameObject(object, original.getObject())) {
+            update.schedule(object);
+        }
+    }
+    //endregion
+
+    //region > comparison
+
+    private boolean sameObject(final COSBase copy, final COSBase original) throws IOException {
+        if (original instanceof COSStream) {
+            return copy instanceof COSStream
+                    && sameEntries((COSDictionary) copy, (COSDictionary) original, COSName.LENGTH)
+                    && Arrays.equals(filteredBytesOf((COSStream) copy), filteredBytesOf((COSStream) original));
+        }
+        if (original instanceof COSDictionary) {
+            return copy instanceof COSDictionary && !(copy instanceof COSStream)
+                    && sameEntries((COSDictionary) copy, (COSDictionary) original, null);
+        }
+        return sameValue(copy, original);
+    }
+
+    private boolean sameEntries(final COSDictionary copy, final COSDictionary original, final COSName ignored) {
+        if (copy.size() != original.size()) {
+            return false;
+        }
+        for (final COSName key : original.keySet()) {
+            if (!key.equals(ignored) && !sameValue(copy.getItem(key), original.getItem(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sameValue(final COSBase copy, final COSBase original) {
+        if (original instanceof COSObject) {
+            final COSObject copied = originals.get(copy);
+            if (copied == null) {
+                // indirect primitives are copied inline
+                final COSBase resolved = ((COSObject) original).getObject();
+                return !(resolved instanceof COSDictionary || resolved instanceof COSArray) && sameValue(copy, resolved);
+            }
+            return keyOf(copied).equals(keyOf((COSObject) original));
+        }
+        if (copy == null || original == null || originals.containsKey(copy)) {
+            return copy == original;
+        }
+        if (original instanceof COSDictionary) {
+            return copy instanceof COSDictionary && !(original instanceof COSStream)
+                    && sameEntries((COSDictionary) copy, (COSDictionary) original, null);
+        }
+        if (original instanceof COSArray) {
+            if (!(copy instanceof COSArray) || ((COSArray) copy).size() != ((COSArray) original).size()) {
+                return false;
+            }
+            for (int i = 0; i < ((COSArray) original).size(); i++) {
+                if (!sameValue(((COSArray) copy).get(i), ((COSArray) original).get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (original instanceof COSString) {
+            return copy instanceof COSString && Arrays.equals(((COSString) copy).getBytes(), ((COSString) original).getBytes());
+        }
+        return original.equals(copy);
+    }
+
+    private static byte[] filteredBytesOf(final COSStream stream) throws IOException {
+        try (InputStream input = stream.getFilteredStream()) {
+            return ByteStreams.toByteArray(input);
+        }
+    }
+    //endregion
+
+    //region > serialization
+
+    private void writeValue(final OutputStream out, final COSBase value, final Update update, final boolean topLevel) throws IOException {
+        if (value == null || value instanceof COSNull) {
+            write(out, "null");
+            return;
+        }
+        if (value instanceof COSObject) {
+            writeReference(out, (COSObject) value);
+            return;
+        }
+        if (!topLevel && (originals.containsKey(value) || value instanceof COSStream)) {
+            // streams are always indirect; new ones are appended
+            final COSObjectKey key = update.keyOf(value);
+            write(out, key.getNumber() + " " + key.getGeneration() + " R");
+            return;
+        }
+        if (value instanceof COSDictionary) {
+            write(out, "<<");
+            for (final Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+                entry.getKey().writePDF(out);
+                write(out, " ");
+                writeValue(out, entry.getValue(), update, false);
+            }
+            write(out, ">>");
+        } else if (value instanceof COSArray) {
+            write(out, "[");
+            for (int i = 0; i < ((COSArray) value).size(); i++) {
+                if (i > 0) {
+                    write(out, " ");
+                }
+                writeValue(out, ((COSArray) value).get(i), update, false);
+            }
+            write(out, "]");
+        } else if (value instanceof COSName) {
+            ((COSName) value).writePDF(out);
+        } else if (value instanceof COSString) {
+            ((COSString) value).writePDF(out);
+        } else if (value instanceof COSInteger) {
+            ((COSInteger) value).writePDF(out);
+        } else if (value instanceof COSFloat) {
+            ((COSFloat) value).writePDF(out);
+        } else if (value instanceof COSBoolean) {
+            ((COSBoolean) value).writePDF(out);
+        } else {
+            throw new IOException("Cannot write " + value.getClass().getSimpleName() + " incrementally");
+        }
+    }
+
+    private void writeStream(final OutputStream out, final COSStream stream, final Update update) throws IOException {
+        final byte[] filtered = filteredBytesOf(stream);
+        final byte[] compressed = PdfCompression.isUncompressed(stream) ? PdfCompression.deflate(filtered, deflateLevel) : null;
+        final byte[] data = compressed != null ? compressed : filtered;
+        write(out, "<<");
+        for (final Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+            if (!COSName.LENGTH.equals(entry.getKey()) && !(compressed != null && COSName.FILTER.equals(entry.getKey()))) {
+                entry.getKey().writePDF(out);
+                write(out, " ");
+                writeValue(out, entry.getValue(), update, false);
+            }
+        }
+        if (compressed != null) {
+            write(out, "/Filter /FlateDecode");
+        }
+        write(out, "/Length " + data.length + ">>\nstream\r\n");
+        out.write(data);
+        write(out, "\nendstream");
+    }
+
+    private static void writeReference(final OutputStream out, final COSObject object) throws IOException {
+        final COSObjectKey key = keyOf(object);
+        write(out, key.getNumber() + " " + key.getGeneration() + " R");
+    }
+
+    private static void writeXref(final OutputStream out, final SortedMap<Long, Long> offsets, final Update update) throws IOException {
+        write(out, "xref\n");
+        final Long[] numbers = offsets.keySet().toArray(new Long[offsets.size()]);
+        int start = 0;
+        while (start < numbers.length) {
+            int end = start + 1;
+            while (end < numbers.length && numbers[end] == numbers[end - 1] + 1) {
+                end++;
+            }
+            write(out, numbers[start] + " " + (end - start) + "\n");
+            for (int i = start; i < end; i++) {
+                final long generation = update.generationOf(numbers[i]);
+                write(out, String.format("%010d %05d n\r\n", offsets.get(numbers[i]), generation));
+            }
+            start = end;
+        }
+    }
+
+    private static void write(final OutputStream out, final String string) throws IOException {
+        out.write(string.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static COSObjectKey keyOf(final COSObject object) {
+        return new COSObjectKey(object.getObjectNumber().longValue(), object.getGenerationNumber().longValue());
+    }
+    //endregion
+
+    //region > startXref
+
+    /**
+     * The offset of the last cross-reference section of the template, or <tt>-1</tt> if it is not a cross-reference
+     * table (but a stream) or cannot be found.
+     */
+    private static long startXrefOf(final byte[] bytes) {
+        final int from = Math.max(0, bytes.length - STARTXREF_WINDOW);
+        final String tail = new String(bytes, from, bytes.length - from, StandardCharsets.ISO_8859_1);
+        final int keyword = tail.lastIndexOf("startxref");
+        if (keyword < 0) {
+            return -1;
+        }
+        final String[] tokens = tail.substring(keyword + "startxref".length()).trim().split("\\s+", 2);
+        final long offset;
+        try {
+            offset = Long.parseLong(tokens[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (offset < 0 || offset + 4 > bytes.length) {
+            return -1;
+        }
+        return new String(bytes, (int) offset, 4, StandardCharsets.ISO_8859_1).equals("xref") ? offset : -1;
+    }
+    //endregion
+
+    //region > Update
+
+    /**
+     * The objects to be written, and the numbers given to new ones.
+     */
+    private class Update {
+
+        private final Deque<COSBase> pending = new ArrayDeque<>();
+        private final Set<COSBase> scheduled = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        private final Map<COSBase, COSObjectKey> added = new IdentityHashMap<>();
+        private final Map<Long, Long> generations = new TreeMap<>();
+        private long size;
+
+        Update(final long size) {
+            this.size = size;
+        }
+
+        void schedule(final COSBase object) {
+            if (scheduled.add(object)) {
+                pending.add(object);
+                final COSObjectKey key = keyOf(object);
+                generations.put(key.getNumber(), key.getGeneration());
+            }
+        }
+
+        /**
+         * The key of an object copied from the template, or of a new object, which is numbered and scheduled for
+         * writing the first time it is asked for.
+         */
+        COSObjectKey keyOf(final COSBase object) {
+            final COSObject original = originals.get(object);
+            if (original != null) {
+                return PdfIncrementalWriter.keyOf(original);
+            }
+            COSObjectKey key = added.get(object);
+            if (key == null) {
+                key = new COSObjectKey(size++, 0);
+                added.put(object, key);
+                schedule(object);
+            }
+            return key;
+        }
+
+        long generationOf(final long number) {
+            final Long generation = generations.get(number);
+            return generation != null ? generation : 0;
+        }
+    }
+    //endregion
+}
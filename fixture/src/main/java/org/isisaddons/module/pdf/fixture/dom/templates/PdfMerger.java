@@ -0,0 +1,374 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Appends the pages of many populated documents to a single document, sharing the resources they have in common.
+ *
+ * <p>
+ * Every document appended is {@link PdfFlattener flattened} first. Its dictionaries and streams are then
+ * identified by a digest of their content, and any object with the same content as one appended before is
+ * replaced by that object. Copies of one template share their fonts, images and static page content this way,
+ * so the merged document grows only with the content that differs between the copies.
+ * </p>
+ *
+ * <p>
+ * Not thread-safe; the documents must be appended from a single thread.
+ * </p>
+ */
+public class PdfMerger implements Closeable {
+
+    private final PDDocument target;
+    private final boolean ownsTarget;
+    private final Map<String, COSBase> objectsByDigest = new HashMap<>();
+
+    private int documentCount;
+    private int sharedCount;
+
+    /**
+     * Merges into a new, empty document.
+     */
+    public PdfMerger() throws IOException {
+        target = new PDDocument();
+        ownsTarget = true;
+    }
+
+    /**
+     * Appends to the pages of an existing document, sharing the resources and the content of its pages.
+     *
+     * <p>
+     * The document is not closed by {@link #close()}.
+     * </p>
+     */
+    public PdfMerger(final PDDocument target) throws IOException {
+        this.target = target;
+        this.ownsTarget = false;
+
+        final Importer importer = new Importer();
+        final Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        @SuppressWarnings("unchecked")
+        final List<PDPage> pages = target.getDocumentCatalog().getAllPages();
+        for (final PDPage page : pages) {
+            importer.imported.put(page.getCOSDictionary(), page.getCOSDictionary());
+        }
+        for (final PDPage page : pages) {
+            importer.register(page.getCOSDictionary().getDictionaryObject(COSName.RESOURCES), visited);
+            importer.register(page.getCOSDictionary().getDictionaryObject(COSName.CONTENTS), visited);
+        }
+    }
+
+    //region > append
+
+    /**
+     * Flattens the document and appends its pages.
+     *
+     * <p>
+     * The document is modified and should be closed, rather than saved, by the caller afterwards.
+     * </p>
+     */
+    public void append(final PDDocument document) throws IOException {
+        append(document, null);
+    }
+
+    /**
+     * As {@link #append(PDDocument)}, but appending only some of the pages.
+     *
+     * @param pageIndexes The (zero-based) indexes of the pages to append, or <tt>null</tt> for all pages
+     */
+    public void append(final PDDocument document, final Collection<Integer> pageIndexes) throws IOException {
+        PdfFlattener.flatten(document);
+
+        @SuppressWarnings("unchecked")
+        final List<PDPage> allPages = document.getDocumentCatalog().getAllPages();
+        final List<PDPage> pages = new ArrayList<>();
+        for (int i = 0; i < allPages.size(); i++) {
+            if (pageIndexes == null || pageIndexes.contains(i)) {
+                pages.add(allPages.get(i));
+            }
+        }
+        final Importer importer = new Importer();
+
+        // map the pages first, so that references between them (eg from link annotations) are kept
+        final Map<PDPage, COSDictionary> targetPages = new IdentityHashMap<>();
+        for (final PDPage page : pages) {
+            final COSDictionary targetPage = new COSDictionary();
+            importer.imported.put(page.getCOSDictionary(), targetPage);
+            targetPages.put(page, targetPage);
+        }
+        for (final PDPage page : pages) {
+            final COSDictionary pageDictionary = page.getCOSDictionary();
+            final COSDictionary targetPage = targetPages.get(page);
+            for (final Map.Entry<COSName, COSBase> entry : pageDictionary.entrySet()) {
+                if (!COSName.PARENT.equals(entry.getKey())) {
+                    targetPage.setItem(entry.getKey(), importer.importObject(entry.getValue()));
+                }
+            }
+            // attributes inherited from the page tree of the document are not inherited in the merged document
+            if (!pageDictionary.containsKey(COSName.RESOURCES)) {
+                targetPage.setItem(COSName.RESOURCES, importer.importObject(page.findResources().getCOSDictionary()));
+            }
+            if (!pageDictionary.containsKey(COSName.MEDIA_BOX)) {
+                targetPage.setItem(COSName.MEDIA_BOX, importer.importObject(page.findMediaBox().getCOSArray()));
+            }
+            if (!pageDictionary.containsKey(COSName.ROTATE) && page.findRotation() != 0) {
+                targetPage.setInt(COSName.ROTATE, page.findRotation());
+            }
+            target.addPage(new PDPage(targetPage));
+        }
+        documentCount++;
+    }
+
+    /**
+     * The number of documents appended so far.
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * The number of objects of appended documents that were replaced by an object appended before.
+     */
+    public int getSharedCount() {
+        return sharedCount;
+    }
+    //endregion
+
+    //region > save, close
+
+    public void save(final OutputStream output) throws IOException {
+        try {
+            target.save(output);
+        } catch (COSVisitorException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsTarget) {
+            target.close();
+        }
+    }
+    //endregion
+
+    //region > Importer
+
+    /**
+     * Copies the objects of one document into the target document.
+     */
+    private class Importer {
+
+        private final Map<COSBase, COSBase> imported = new IdentityHashMap<>();
+        private final Map<COSBase, String> digests = new IdentityHashMap<>();
+
+        COSBase importObject(final COSBase object) throws IOException {
+            final COSBase base = object instanceof COSObject ? ((COSObject) object).getObject() : object;
+            if (!(base instanceof COSDictionary || base instanceof COSArray)) {
+                // numbers, names, strings and the like are immutable in practice and can be shared as they are
+                return base;
+            }
+            final COSBase existing = imported.get(base);
+            if (existing != null) {
+                return existing;
+            }
+
+            final String digest = base instanceof COSDictionary ? digestOf(base) : null;
+            if (digest != null) {
+                final COSBase shared = objectsByDigest.get(digest);
+                if (shared != null) {
+                    imported.put(base, shared);
+                    sharedCount++;
+                    return shared;
+                }
+            }
+
+            final COSBase copy;
+            if (base instanceof COSStream) {
+                final COSStream stream = (COSStream) base;
+                final COSStream streamCopy = target.getDocument().createCOSStream();
+                imported.put(base, streamCopy);
+                try (InputStream input = stream.getFilteredStream();
+                     OutputStream output = streamCopy.createFilteredStream()) {
+                    ByteStreams.copy(input, output);
+                }
+                for (final Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+                    streamCopy.setItem(entry.getKey(), importObject(entry.getValue()));
+                }
+                copy = streamCopy;
+            } else if (base instanceof COSDictionary) {
+                final COSDictionary dictionaryCopy = new COSDictionary();
+                imported.put(base, dictionaryCopy);
+                for (final Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet()) {
+                    dictionaryCopy.setItem(entry.getKey(), importObject(entry.getValue()));
+                }
+                copy = dictionaryCopy;
+            } else {
+                final COSArray array = (COSArray) base;
+                final COSArray arrayCopy = new COSArray();
+                imported.put(base, arrayCopy);
+                for (int i = 0; i < array.size(); i++) {
+                    arrayCopy.add(importObject(array.get(i)));
+                }
+                copy = arrayCopy;
+            }
+            if (digest != null) {
+                objectsByDigest.put(digest, copy);
+            }
+            return copy;
+        }
+
+        /**
+         * Makes the object, and the objects it refers to, available for sharing with the documents appended later.
+         */
+        void register(final COSBase object, final Set<COSBase> visited) throws IOException {
+            final COSBase base = object instanceof COSObject ? ((COSObject) object).getObject() : object;
+            if (!(base instanceof COSDictionary || base instanceof COSArray) || !visited.add(base)) {
+                return;
+            }
+            if (base instanceof COSDictionary) {
+                final String digest = digestOf(base);
+                if (digest != null && !objectsByDigest.containsKey(digest)) {
+                    objectsByDigest.put(digest, base);
+                }
+                for (final COSBase value : ((COSDictionary) base).getValues()) {
+                    register(value, visited);
+                }
+            } else {
+                for (final COSBase value : (COSArray) base) {
+                    register(value, visited);
+                }
+            }
+        }
+
+        /**
+         * A digest of the content of the dictionary or stream and of everything it refers to, or <tt>null</tt> if it
+         * refers to a page or is part of a cycle, in which case it is always copied.
+         */
+        private String digestOf(final COSBase base) throws IOException {
+            if (digests.containsKey(base)) {
+                return digests.get(base);
+            }
+            if (imported.containsKey(base)) {
+                // a page, or an object whose digest is being computed
+                return null;
+            }
+            digests.put(base, null);
+
+            final MessageDigest messageDigest = newMessageDigest();
+            final boolean complete = updateDictionary(messageDigest, (COSDictionary) base);
+            final String digest = complete ? BaseEncoding.base16().encode(messageDigest.digest()) : null;
+            digests.put(base, digest);
+            return digest;
+        }
+
+        private boolean update(final MessageDigest messageDigest, final COSBase object) throws IOException {
+            final COSBase base = object instanceof COSObject ? ((COSObject) object).getObject() : object;
+            if (base instanceof COSDictionary) {
+                final String digest = digestOf(base);
+                if (digest == null) {
+                    return false;
+                }
+                update(messageDigest, "R", digest);
+            } else if (base instanceof COSArray) {
+                final COSArray array = (COSArray) base;
+                update(messageDigest, "[", Integer.toString(array.size()));
+                for (int i = 0; i < array.size(); i++) {
+                    if (!update(messageDigest, array.get(i))) {
+                        return false;
+                    }
+                }
+            } else if (base instanceof COSName) {
+                update(messageDigest, "/", ((COSName) base).getName());
+            } else if (base instanceof COSString) {
+                update(messageDigest, "(", BaseEncoding.base16().encode(((COSString) base).getBytes()));
+            } else if (base instanceof COSNumber) {
+                update(messageDigest, "#", base.toString());
+            } else if (base instanceof COSBoolean) {
+                update(messageDigest, "?", Boolean.toString(((COSBoolean) base).getValue()));
+            } else if (base == null || base instanceof COSNull) {
+                update(messageDigest, "null", "");
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private boolean updateDictionary(final MessageDigest messageDigest, final COSDictionary dictionary) throws IOException {
+            update(messageDigest, "<<", Integer.toString(dictionary.size()));
+            for (final Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+                update(messageDigest, "/", entry.getKey().getName());
+                if (!update(messageDigest, entry.getValue())) {
+                    return false;
+                }
+            }
+            if (dictionary instanceof COSStream) {
+                update(messageDigest, "stream", "");
+                try (InputStream input = ((COSStream) dictionary).getFilteredStream()) {
+                    final byte[] buffer = new byte[8192];
+                    for (int n = input.read(buffer); n > 0; n = input.read(buffer)) {
+                        messageDigest.update(buffer, 0, n);
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void update(final MessageDigest messageDigest, final String tag, final String value) {
+            messageDigest.update(tag.getBytes(StandardCharsets.US_ASCII));
+            messageDigest.update(value.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+        }
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    //endregion
+}
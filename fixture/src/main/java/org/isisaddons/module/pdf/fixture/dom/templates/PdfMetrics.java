@@ -0,0 +1,75 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+/**
+ * Receives measurements of the generation of PDF documents, by template.
+ *
+ * <p>
+ * The module records through the domain service implementing this interface. {@link InMemoryPdfMetrics} is the
+ * default; to publish the measurements elsewhere, for example to a monitoring system, register another
+ * implementation as a domain service in its place. Implementations are called from many threads at once and should
+ * return quickly.
+ * </p>
+ */
+public interface PdfMetrics {
+
+    /**
+     * The stages of generating a document.
+     */
+    enum Stage {
+        /** Parsing a template, once per template. */
+        LOAD,
+        /** Reading the values of a document from the domain objects. */
+        BIND,
+        /** Waiting for one of the permits to render, while as many documents are being rendered already. */
+        WAIT,
+        /** Copying the template and filling in its form fields. */
+        POPULATE,
+        /** Baking the form fields into the page content. */
+        FLATTEN,
+        /** Appending a document to a merged document. */
+        MERGE,
+        /** Writing a document to bytes. */
+        SAVE,
+        /** Rendering synthetic documents at startup, once per template; see {@link PdfWarmUp}. */
+        WARM_UP
+    }
+
+    /**
+     * A stage completed.
+     */
+    void recordTime(String template, Stage stage, long nanos);
+
+    /**
+     * A stage failed.
+     */
+    void recordFailure(String template, Stage stage);
+
+    /**
+     * A document was generated.
+     */
+    void recordDocument(String template, long bytes);
+
+    /**
+     * A document was served from the {@link PdfDocumentCache} rather than generated.
+     */
+    void recordCacheHit(String template);
+
+    /**
+     * A document was not found in the {@link PdfDocumentCache} and had to be generated.
+     */
+    void recordCacheMiss(String template);
+}
@@ -0,0 +1,67 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.zip.Deflater;
+
+/**
+ * How a rendered document is written, trading the time taken to save it against its size.
+ *
+ * @see PdfRenderingService#render(PdfTemplate, PdfFieldValues, boolean, PdfOutputProfile)
+ */
+public enum PdfOutputProfile {
+
+    /**
+     * Writes the document as quickly as possible: as an {@link PdfIncrementalWriter incremental update} of the
+     * template where possible, and with its streams as they are, so that only those of the template are compressed.
+     */
+    FAST(Deflater.NO_COMPRESSION, true),
+
+    /**
+     * As {@link #FAST}, but compressing the streams that are not compressed yet, such as the appearances of the
+     * fields, at the default level.
+     */
+    DEFAULT(Deflater.DEFAULT_COMPRESSION, true),
+
+    /**
+     * Writes the document in full, as small as possible, for archiving: the streams not compressed yet are compressed
+     * at the best level, and the other objects are packed into compressed object streams with a cross-reference
+     * stream (PDF 1.5) by the {@link PdfCompactWriter}.
+     */
+    COMPACT(Deflater.BEST_COMPRESSION, false);
+
+    private final int deflateLevel;
+    private final boolean incremental;
+
+    PdfOutputProfile(final int deflateLevel, final boolean incremental) {
+        this.deflateLevel = deflateLevel;
+        this.incremental = incremental;
+    }
+
+    /**
+     * The level that streams not compressed yet are compressed at, or {@link Deflater#NO_COMPRESSION} to leave them as
+     * they are.
+     */
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    /**
+     * Whether the document may be written as an incremental update of its template.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+
+/**
+ * Receives the documents rendered by {@link PdfDocuments#renderAll(PdfDocumentType, java.util.List, boolean, PdfOutputSink)},
+ * on the calling thread and in the order of the entities.
+ *
+ * @see PdfZipOutputSink
+ */
+public interface PdfOutputSink<T> {
+
+    void accept(T entity, byte[] document) throws IOException;
+}
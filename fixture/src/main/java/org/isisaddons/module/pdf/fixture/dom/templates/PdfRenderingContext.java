@@ -0,0 +1,115 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * The buffers for rendering one document at a time on one thread: a {@link PdfDocumentBuffer} for each of the
+ * documents open at the same time (a copy of the template, and the copy its continuation pages are populated in) and
+ * the buffer the document is saved to.
+ *
+ * <p>
+ * Contexts are handed out by {@link PdfRenderingContexts}, and must not be used once given back.
+ * </p>
+ *
+ * <p>
+ * An unpooled context has no buffers of its own: its documents are kept in buffers PDFBox allocates for each of them,
+ * and they are saved to a new stream each.
+ * </p>
+ */
+final class PdfRenderingContext {
+
+    private final boolean pooled;
+    private final List<PdfDocumentBuffer> buffers = new ArrayList<>();
+    private final List<PdfDocumentBuffer> inUse = new ArrayList<>();
+    private ByteArrayOutputStream output;
+
+    PdfRenderingContext(final boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Creates the documents through the storage, keeping those on the heap in the buffers of this context.
+     */
+    PdfTemplate.DocumentFactory documentsOf(final PdfDocumentStorage storage) {
+        if (!pooled) {
+            return storage;
+        }
+        return new PdfTemplate.DocumentFactory() {
+            @Override
+            public PDDocument newDocument(final long estimatedSize) throws IOException {
+                return storage.newDocument(estimatedSize, PdfRenderingContext.this);
+            }
+        };
+    }
+
+    /**
+     * A buffer no open document of this context uses; it is given back by {@link #free(PdfDocumentBuffer)} once
+     * the document has been closed.
+     */
+    PdfDocumentBuffer allocate() {
+        for (final PdfDocumentBuffer buffer : buffers) {
+            if (!inUse.contains(buffer)) {
+                inUse.add(buffer);
+                return buffer;
+            }
+        }
+        final PdfDocumentBuffer buffer = new PdfDocumentBuffer();
+        buffers.add(buffer);
+        inUse.add(buffer);
+        return buffer;
+    }
+
+    void free(final PdfDocumentBuffer buffer) {
+        buffer.reset();
+        inUse.remove(buffer);
+    }
+
+    /**
+     * An empty stream to save a document to.
+     */
+    ByteArrayOutputStream output(final int expectedSize) {
+        if (!pooled) {
+            return new ByteArrayOutputStream(expectedSize);
+        }
+        if (output == null) {
+            output = new ByteArrayOutputStream(expectedSize);
+        }
+        output.reset();
+        return output;
+    }
+
+    /**
+     * Releases all but <tt>maximumRetained</tt> bytes of each buffer, for the context to be reused.
+     */
+    void reset(final long maximumRetained) {
+        for (final PdfDocumentBuffer buffer : buffers) {
+            buffer.reset(maximumRetained);
+        }
+        inUse.clear();
+        if (output != null && output.size() > maximumRetained) {
+            output = null;
+        }
+    }
+}
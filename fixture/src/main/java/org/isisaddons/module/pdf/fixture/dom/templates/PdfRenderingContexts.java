@@ -0,0 +1,119 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * A pool of {@link PdfRenderingContext}s, so that the buffers documents are populated in and saved to are reused from
+ * one document to the next rather than becoming garbage with each.
+ *
+ * <p>
+ * The pool keeps up to <tt>isis.module.pdf.rendering.contexts</tt> contexts, by default one per processor; more
+ * documents rendered at the same time get contexts of their own, which are dropped afterwards. Each pooled context
+ * retains up to <tt>isis.module.pdf.rendering.contextRetainedBytes</tt> bytes (4MB by default) of each of its
+ * buffers, so that one exceptionally large document does not tie up that much memory for good.
+ * </p>
+ *
+ * <p>
+ * Setting <tt>isis.module.pdf.rendering.pooled</tt> to <tt>false</tt> turns the pool off: each document is then
+ * populated in buffers PDFBox allocates for it and saved to a new stream, as for comparing the two in the benchmarks.
+ * </p>
+ */
+@DomainService
+public class PdfRenderingContexts {
+
+    //region > init
+
+    static final String CONTEXTS_KEY = "isis.module.pdf.rendering.contexts";
+    static final String RETAINED_BYTES_KEY = "isis.module.pdf.rendering.contextRetainedBytes";
+    static final long RETAINED_BYTES_DEFAULT = 4L * 1024 * 1024;
+    static final String POOLED_KEY = "isis.module.pdf.rendering.pooled";
+
+    private boolean pooled = true;
+    private int contexts = Runtime.getRuntime().availableProcessors();
+    private long retainedBytes = RETAINED_BYTES_DEFAULT;
+    private BlockingQueue<PdfRenderingContext> pool;
+
+    private final AtomicLong created = new AtomicLong();
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        final String contextsProperty = properties.get(CONTEXTS_KEY);
+        contexts = contextsProperty != null
+                ? Integer.parseInt(contextsProperty.trim())
+                : Runtime.getRuntime().availableProcessors();
+        final String retainedBytesProperty = properties.get(RETAINED_BYTES_KEY);
+        retainedBytes = retainedBytesProperty != null
+                ? Long.parseLong(retainedBytesProperty.trim())
+                : RETAINED_BYTES_DEFAULT;
+        pool = new ArrayBlockingQueue<>(Math.max(1, contexts));
+        final String pooledProperty = properties.get(POOLED_KEY);
+        pooled = pooledProperty == null || Boolean.parseBoolean(pooledProperty.trim());
+    }
+    //endregion
+
+    //region > acquire, release
+
+    /**
+     * A context for rendering a document on the calling thread, to be {@link #release(PdfRenderingContext) given
+     * back} once the document has been saved and closed.
+     */
+    PdfRenderingContext acquire() {
+        if (!pooled) {
+            return new PdfRenderingContext(false);
+        }
+        final PdfRenderingContext context = pool.poll();
+        if (context != null) {
+            return context;
+        }
+        created.incrementAndGet();
+        return new PdfRenderingContext(true);
+    }
+
+    void release(final PdfRenderingContext context) {
+        if (!context.isPooled()) {
+            return;
+        }
+        context.reset(retainedBytes);
+        if (contexts > 0) {
+            pool.offer(context);
+        }
+    }
+
+    /**
+     * The number of contexts created so far; once the pool has filled up, this only grows while more documents are
+     * rendered at the same time than there are contexts in the pool.
+     */
+    @Programmatic
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * The number of contexts waiting in the pool.
+     */
+    @Programmatic
+    public int getPooledCount() {
+        return pool.size();
+    }
+    //endregion
+}
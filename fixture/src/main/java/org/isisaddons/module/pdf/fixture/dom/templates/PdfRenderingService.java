@@ -0,0 +1,769 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Renders documents from {@link PdfTemplate}s, in the background on worker threads or on the calling thread.
+ *
+ * <p>
+ * Rendering is bound by the processors, so no more documents are rendered at the same time, whichever threads they
+ * are rendered on, than there are permits; the number of permits is set by the
+ * <tt>isis.module.pdf.rendering.threads</tt> configuration property and defaults to the number of available
+ * processors. Documents waiting for a permit are recorded as the {@link PdfMetrics.Stage#WAIT} stage.
+ * </p>
+ *
+ * <p>
+ * The worker threads are set by <tt>isis.module.pdf.rendering.executor</tt>: <tt>PLATFORM</tt> for a pool of as many
+ * threads as there are permits, <tt>VIRTUAL</tt> for a virtual thread per render (Java 21 and later), or
+ * <tt>AUTO</tt> (the default) for virtual threads where the JVM has them and the pool otherwise. Virtual threads are
+ * cheap to block, so renders queued in the background, for example by {@link CustomerConfirmationJobs}, do not tie
+ * up platform threads while they wait for a permit.
+ * </p>
+ *
+ * <p>
+ * Workers only ever see {@link PdfFieldValues}, never domain objects, because domain objects are bound to the
+ * persistence session of the thread that loaded them.
+ * </p>
+ *
+ * <p>
+ * Documents are written as their {@link PdfOutputProfile output profile} asks: as set by the
+ * <tt>isis.module.pdf.rendering.profile</tt> configuration property (<tt>DEFAULT</tt> by default), by
+ * <tt>isis.module.pdf.rendering.profile.</tt><i>template name</i> for a single template, or per call.
+ * </p>
+ *
+ * <p>
+ * The {@link PdfDocumentStorage} decides whether each document is kept on the heap or in a scratch file while it
+ * is rendered; documents kept on the heap are populated and saved in the reused buffers of a
+ * {@link PdfRenderingContexts rendering context}.
+ * </p>
+ */
+@DomainService
+public class PdfRenderingService {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PdfRenderingService.class);
+
+    static final String THREADS_KEY = "isis.module.pdf.rendering.threads";
+    static final String INCREMENTAL_KEY = "isis.module.pdf.rendering.incremental";
+    static final String PROFILE_KEY = "isis.module.pdf.rendering.profile";
+    static final String EXECUTOR_KEY = "isis.module.pdf.rendering.executor";
+
+    /**
+     * The threads documents are rendered on in the background.
+     */
+    enum ExecutorKind {
+        /** Virtual threads where the JVM has them, and platform threads otherwise. */
+        AUTO,
+        /** A pool of as many platform threads as there are permits. */
+        PLATFORM,
+        /** A new virtual thread for each render. */
+        VIRTUAL
+    }
+
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    //region > init, shutdown
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean incremental = true;
+    private PdfOutputProfile profile = PdfOutputProfile.DEFAULT;
+    private final Map<String, PdfOutputProfile> templateProfiles = new ConcurrentHashMap<>();
+    private ExecutorKind executorKind = ExecutorKind.AUTO;
+    private ExecutorService executor;
+    private volatile Semaphore permits = new Semaphore(threads, true);
+
+    public PdfRenderingService() {
+    }
+
+    /**
+     * A service outside of Isis, such as in the benchmarks, that uses the given services rather than having them
+     * injected; it still has to be {@link #init(Map) initialised}.
+     */
+    public PdfRenderingService(
+            final PdfMetrics pdfMetrics,
+            final PdfDocumentStorage pdfDocumentStorage,
+            final PdfRenderingContexts pdfRenderingContexts) {
+        this.pdfMetrics = pdfMetrics;
+        this.pdfDocumentStorage = pdfDocumentStorage;
+        this.pdfRenderingContexts = pdfRenderingContexts;
+    }
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        final String threadsProperty = properties.get(THREADS_KEY);
+        if (threadsProperty != null) {
+            threads = Integer.parseInt(threadsProperty.trim());
+        }
+        permits = new Semaphore(Math.max(1, threads), true);
+        final String incrementalProperty = properties.get(INCREMENTAL_KEY);
+        if (incrementalProperty != null) {
+            incremental = Boolean.parseBoolean(incrementalProperty.trim());
+        }
+        final String executorProperty = properties.get(EXECUTOR_KEY);
+        if (executorProperty != null) {
+            executorKind = ExecutorKind.valueOf(executorProperty.trim().toUpperCase(Locale.ROOT));
+        }
+        for (final Map.Entry<String, String> property : properties.entrySet()) {
+            if (property.getKey().equals(PROFILE_KEY)) {
+                profile = parseProfile(property.getValue());
+            } else if (property.getKey().startsWith(PROFILE_KEY + ".")) {
+                templateProfiles.put(property.getKey().substring(PROFILE_KEY.length() + 1), parseProfile(property.getValue()));
+            }
+        }
+    }
+
+    private static PdfOutputProfile parseProfile(final String property) {
+        return PdfOutputProfile.valueOf(property.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            if (executorKind != ExecutorKind.PLATFORM) {
+                executor = newVirtualThreadExecutor();
+                if (executor == null && executorKind == ExecutorKind.VIRTUAL) {
+                    LOG.warn("Virtual threads are not available on Java {}; rendering on {} platform threads instead",
+                            System.getProperty("java.version"), threads);
+                }
+            }
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(
+                        threads,
+                        new ThreadFactoryBuilder().setNameFormat("pdf-rendering-%d").setDaemon(true).build());
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * An executor that starts a virtual thread per task, or <tt>null</tt> if the JVM has no virtual threads; looked up
+     * reflectively, as the module is built for Java 7.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builderType.getMethod("name", String.class, long.class).invoke(builder, "pdf-rendering-virtual-", 0L);
+            final ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            final Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, or Java 19 and 20 without preview features
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+            executor = null;
+        }
+    }
+    //endregion
+
+    //region > render
+
+    /**
+     * Populates a copy of the template with the values and saves it.
+     */
+    @Programmatic
+    public byte[] render(final PdfTemplate template, final PdfFieldValues values) throws Exception {
+        return render(template, values, false);
+    }
+
+    /**
+     * Populates a copy of the template with the values, {@link PdfFlattener flattens} it if requested, and saves it
+     * as the {@link #profileOf(PdfTemplate) template's profile} asks.
+     */
+    @Programmatic
+    public byte[] render(final PdfTemplate template, final PdfFieldValues values, final boolean flatten) throws Exception {
+        return render(template, values, flatten, profileOf(template));
+    }
+
+    /**
+     * As {@link #render(PdfTemplate, PdfFieldValues, boolean)}, saving the document as the given profile asks.
+     *
+     * <p>
+     * Unless flattened, the document is saved as an {@link PdfIncrementalWriter incremental update} of the template
+     * where possible and the profile allows; this can be turned off for all profiles by setting
+     * <tt>isis.module.pdf.rendering.incremental</tt> to <tt>false</tt>.
+     * </p>
+     */
+    @Programmatic
+    public byte[] render(
+            final PdfTemplate template,
+            final PdfFieldValues values,
+            final boolean flatten,
+            final PdfOutputProfile profile) throws Exception {
+        return render(template, values, flatten, profile, pdfMetrics);
+    }
+
+    /**
+     * As {@link #render(PdfTemplate, PdfFieldValues, boolean, PdfOutputProfile)}, recording to the given metrics.
+     */
+    byte[] render(
+            final PdfTemplate template,
+            final PdfFieldValues values,
+            final boolean flatten,
+            final PdfOutputProfile profile,
+            final PdfMetrics metrics) throws Exception {
+        final Semaphore permits = acquire(template, metrics);
+        try {
+            return renderWithPermit(template, values, flatten, profile, metrics, null);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * As {@link #render(PdfTemplate, PdfFieldValues, boolean, PdfOutputProfile)}, but saving the document straight
+     * to the target stream while it is written, rather than collecting its bytes first.
+     *
+     * <p>
+     * Should the saving fail, part of the document may have been written to the target already.
+     * </p>
+     *
+     * @param target The stream to write the document to; it is not closed
+     */
+    @Programmatic
+    public void write(
+            final PdfTemplate template,
+            final PdfFieldValues values,
+            final boolean flatten,
+            final PdfOutputProfile profile,
+            final OutputStream target) throws Exception {
+        final Semaphore permits = acquire(template, pdfMetrics);
+        try {
+            renderWithPermit(template, values, flatten, profile, pdfMetrics, target);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Saves the document to the target, if any, and otherwise to the buffer of the rendering context, returning its
+     * bytes.
+     */
+    private byte[] renderWithPermit(
+            final PdfTemplate template,
+            final PdfFieldValues values,
+            final boolean flatten,
+            final PdfOutputProfile profile,
+            final PdfMetrics metrics,
+            final OutputStream target) throws Exception {
+        PdfMetrics.Stage stage = PdfMetrics.Stage.POPULATE;
+        long start = System.nanoTime();
+        final PdfIncrementalWriter writer = incremental && profile.isIncremental() && !flatten
+                ? new PdfIncrementalWriter(template, profile.getDeflateLevel())
+                : null;
+        final PdfRenderingContext context = pdfRenderingContexts.acquire();
+        try {
+            final PdfTemplate.DocumentFactory documents = context.documentsOf(pdfDocumentStorage);
+            try (PDDocument document = writer != null
+                    ? writer.newDocument(values, documents)
+                    : template.newDocument(values, documents)) {
+                start = lap(metrics, template, stage, start);
+                if (flatten) {
+                    stage = PdfMetrics.Stage.FLATTEN;
+                    PdfFlattener.flatten(document);
+                    start = lap(metrics, template, stage, start);
+                }
+                stage = PdfMetrics.Stage.SAVE;
+                if (target != null) {
+                    // PDFBox closes the stream it saves to
+                    final CountingOutputStream counting = new CountingOutputStream(new Unclosed(target));
+                    save(document, writer, profile, counting);
+                    lap(metrics, template, stage, start);
+                    metrics.recordDocument(template.getName(), counting.getCount());
+                    return null;
+                }
+                final ByteArrayOutputStream output = context.output(template.getLength());
+                save(document, writer, profile, output);
+                lap(metrics, template, stage, start);
+                metrics.recordDocument(template.getName(), output.size());
+                return output.toByteArray();
+            }
+        } catch (Exception e) {
+            metrics.recordFailure(template.getName(), stage);
+            throw e;
+        } finally {
+            pdfRenderingContexts.release(context);
+        }
+    }
+
+    /**
+     * Waits for one of the permits to render, recording the time waited.
+     *
+     * @return The permits, to release the one acquired to
+     */
+    private Semaphore acquire(final PdfTemplate template, final PdfMetrics metrics) throws InterruptedException {
+        final Semaphore permits = this.permits;
+        final long start = System.nanoTime();
+        permits.acquire();
+        lap(metrics, template, PdfMetrics.Stage.WAIT, start);
+        return permits;
+    }
+
+    /**
+     * Saves the document incrementally if there is a writer and it can, and otherwise in full.
+     */
+    private static void save(
+            final PDDocument document,
+            final PdfIncrementalWriter writer,
+            final PdfOutputProfile profile,
+            final OutputStream target) throws Exception {
+        if (writer != null && writer.write(document, target)) {
+            return;
+        }
+        if (profile == PdfOutputProfile.COMPACT && new PdfCompactWriter(profile.getDeflateLevel()).write(document, target)) {
+            return;
+        }
+        PdfCompression.compress(document, profile.getDeflateLevel());
+        document.save(target);
+    }
+
+    /**
+     * The profile documents of the template are saved with unless another is asked for.
+     */
+    @Programmatic
+    public PdfOutputProfile profileOf(final PdfTemplate template) {
+        final PdfOutputProfile templateProfile = templateProfiles.get(template.getName());
+        return templateProfile != null ? templateProfile : profile;
+    }
+
+    /**
+     * Renders the template in the background.
+     */
+    @Programmatic
+    public Future<byte[]> submit(final PdfTemplate template, final PdfFieldValues values) {
+        return getExecutor().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return render(template, values);
+            }
+        });
+    }
+
+    /**
+     * Runs any other rendering work in the background, on the same threads as the renders above; renders the work
+     * starts count against the permits as any other.
+     *
+     * <p>
+     * The work must not touch domain objects.
+     * </p>
+     */
+    @Programmatic
+    public <T> Future<T> submit(final Callable<T> work) {
+        return getExecutor().submit(work);
+    }
+    //endregion
+
+    //region > renderAll
+
+    /**
+     * Receives the documents rendered by {@link #renderAll(PdfTemplate, Iterator, Sink)}.
+     */
+    public interface Sink {
+
+        /**
+         * Called on the thread that invoked <tt>renderAll</tt>, in the order of the values.
+         *
+         * @param index The position of the document's values in the iteration
+         * @param document The rendered document
+         */
+        void accept(int index, byte[] document) throws IOException;
+    }
+
+    /**
+     * Told of the progress of {@link #renderAll(PdfTemplate, Iterator, boolean, Sink, Progress) renderAll} and
+     * {@link #mergeAll(PdfTemplate, Iterator, OutputStream, Progress) mergeAll}, for example to show it to the user.
+     */
+    public interface Progress {
+
+        Progress NONE = new Progress() {
+            @Override
+            public void completed(final int count, final long elapsedNanos) {
+            }
+        };
+
+        /**
+         * Called on the thread that invoked <tt>renderAll</tt> or <tt>mergeAll</tt> each time a document has been
+         * handed to the sink or merged.
+         *
+         * @param count The number of documents completed so far
+         * @param elapsedNanos The time since the first document was started
+         */
+        void completed(int count, long elapsedNanos);
+    }
+
+    /**
+     * Renders one document per element of <tt>values</tt> in parallel, all from the one template.
+     *
+     * <p>
+     * The values are pulled from the iterator on the calling thread, so they may be read from domain objects
+     * lazily. At most twice as many documents as there are worker threads are in flight at any time, so the
+     * memory used does not depend on the number of documents.
+     * </p>
+     *
+     * <p>
+     * Progress is logged every thousand documents; pass a {@link Progress} to follow it otherwise.
+     * </p>
+     *
+     * @return The number of documents rendered
+     */
+    @Programmatic
+    public int renderAll(
+            final PdfTemplate template,
+            final Iterator<PdfFieldValues> values,
+            final Sink sink) throws Exception {
+        return renderAll(template, values, false, sink);
+    }
+
+    /**
+     * As {@link #renderAll(PdfTemplate, Iterator, Sink)}, {@link PdfFlattener flattening} the documents if requested.
+     */
+    @Programmatic
+    public int renderAll(
+            final PdfTemplate template,
+            final Iterator<PdfFieldValues> values,
+            final boolean flatten,
+            final Sink sink) throws Exception {
+        return renderAll(template, values, flatten, sink, Progress.NONE);
+    }
+
+    /**
+     * As {@link #renderAll(PdfTemplate, Iterator, boolean, Sink)}, telling the progress of the documents as they
+     * complete.
+     */
+    @Programmatic
+    public int renderAll(
+            final PdfTemplate template,
+            final Iterator<PdfFieldValues> values,
+            final boolean flatten,
+            final Sink sink,
+            final Progress progress) throws Exception {
+        return pipeline(template, values,
+                new Work<byte[]>() {
+                    @Override
+                    public byte[] apply(final PdfFieldValues next) throws Exception {
+                        return render(template, next, flatten);
+                    }
+                },
+                new Receiver<byte[]>() {
+                    @Override
+                    public void accept(final int index, final byte[] document) throws Exception {
+                        sink.accept(index, document);
+                    }
+
+                    @Override
+                    public void discard(final byte[] document) {
+                    }
+                },
+                progress);
+    }
+
+    /**
+     * Renders one document per element of <tt>values</tt> in parallel, and {@link PdfMerger merges} them, in the
+     * order of the values, into a single flattened document that is saved to the target stream.
+     *
+     * @return The number of documents merged
+     */
+    @Programmatic
+    public int mergeAll(
+            final PdfTemplate template,
+            final Iterator<PdfFieldValues> values,
+            final OutputStream target) throws Exception {
+        return mergeAll(template, values, target, Progress.NONE);
+    }
+
+    /**
+     * As {@link #mergeAll(PdfTemplate, Iterator, OutputStream)}, telling the progress of the documents as they are
+     * merged; saving the merged document follows the last of them.
+     */
+    @Programmatic
+    public int mergeAll(
+            final PdfTemplate template,
+            final Iterator<PdfFieldValues> values,
+            final OutputStream target,
+            final Progress progress) throws Exception {
+        try (final PDDocument merged = pdfDocumentStorage.newDocument(-1);
+             final PdfMerger merger = new PdfMerger(merged)) {
+            final int count = pipeline(template, values,
+                    new Work<Populated>() {
+                        @Override
+                        public Populated apply(final PdfFieldValues next) throws Exception {
+                            final Semaphore permits = acquire(template, pdfMetrics);
+                            PdfMetrics.Stage stage = PdfMetrics.Stage.POPULATE;
+                            long start = System.nanoTime();
+                            final PdfRenderingContext context = pdfRenderingContexts.acquire();
+                            PDDocument document = null;
+                            try {
+                                document = template.newDocument(next, context.documentsOf(pdfDocumentStorage));
+                                start = lap(template, stage, start);
+                                stage = PdfMetrics.Stage.FLATTEN;
+                                PdfFlattener.flatten(document);
+                                lap(template, stage, start);
+                                return new Populated(document, context);
+                            } catch (Exception e) {
+                                pdfMetrics.recordFailure(template.getName(), stage);
+                                try {
+                                    if (document != null) {
+                                        document.close();
+                                    }
+                                } finally {
+                                    pdfRenderingContexts.release(context);
+                                }
+                                throw e;
+                            } finally {
+                                // merging, on the calling thread, is not bound by the permits
+                                permits.release();
+                            }
+                        }
+                    },
+                    new Receiver<Populated>() {
+                        @Override
+                        public void accept(final int index, final Populated populated) throws Exception {
+                            final long start = System.nanoTime();
+                            try {
+                                merger.append(populated.document);
+                                lap(template, PdfMetrics.Stage.MERGE, start);
+                            } catch (Exception e) {
+                                pdfMetrics.recordFailure(template.getName(), PdfMetrics.Stage.MERGE);
+                                throw e;
+                            } finally {
+                                close(populated);
+                            }
+                        }
+
+                        @Override
+                        public void discard(final Populated populated) throws Exception {
+                            close(populated);
+                        }
+                    },
+                    progress);
+            final long start = System.nanoTime();
+            final CountingOutputStream counting = new CountingOutputStream(target);
+            merger.save(counting);
+            lap(template, PdfMetrics.Stage.SAVE, start);
+            pdfMetrics.recordDocument(template.getName(), counting.getCount());
+            LOG.debug("{}: merged {} documents, {} objects shared", template.getName(), count, merger.getSharedCount());
+            return count;
+        }
+    }
+
+    /**
+     * Applies the work to each of the values on the worker threads, and hands the results to the receiver on the calling
+     * thread, in the order of the values.
+     *
+     * <p>
+     * Should the pipeline fail, the work not started yet is cancelled, and the results of the work completed or still
+     * running are {@link Receiver#discard(Object) discarded} once they are there.
+     * </p>
+     */
+    private <R> int pipeline(
+            final PdfTemplate template,
+            final Iterator<PdfFieldValues> values,
+            final Work<R> work,
+            final Receiver<R> receiver,
+            final Progress progress) throws Exception {
+
+        final ExecutorService executor = getExecutor();
+        final Deque<Future<R>> inFlight = new ArrayDeque<>();
+        final int window = 2 * threads;
+        final long start = System.nanoTime();
+
+        int submitted = 0;
+        int completed = 0;
+        try {
+            while (values.hasNext()) {
+                final PdfFieldValues next = values.next();
+                inFlight.add(executor.submit(new Callable<R>() {
+                    @Override
+                    public R call() throws Exception {
+                        return work.apply(next);
+                    }
+                }));
+                submitted++;
+                if (inFlight.size() >= window) {
+                    receiver.accept(completed, get(inFlight.remove()));
+                    reportProgress(template, ++completed, start, progress);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                receiver.accept(completed, get(inFlight.remove()));
+                reportProgress(template, ++completed, start, progress);
+            }
+        } finally {
+            discard(inFlight, receiver);
+        }
+        return submitted;
+    }
+
+    private static <R> void discard(final Deque<Future<R>> inFlight, final Receiver<R> receiver) {
+        for (final Future<R> future : inFlight) {
+            // running work is not interrupted, as its result would then be lost rather than discarded
+            future.cancel(false);
+        }
+        for (final Future<R> future : inFlight) {
+            if (future.isCancelled()) {
+                continue;
+            }
+            try {
+                receiver.discard(future.get());
+            } catch (ExecutionException e) {
+                // the work has cleaned up after itself
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOG.warn("Unable to discard a result", e);
+            }
+        }
+    }
+
+    /**
+     * Records the time of the stage that started at <tt>start</tt>, and returns the time the next stage starts.
+     */
+    private long lap(final PdfTemplate template, final PdfMetrics.Stage stage, final long start) {
+        return lap(pdfMetrics, template, stage, start);
+    }
+
+    private static long lap(final PdfMetrics metrics, final PdfTemplate template, final PdfMetrics.Stage stage, final long start) {
+        final long now = System.nanoTime();
+        metrics.recordTime(template.getName(), stage, now - start);
+        return now;
+    }
+
+    private static <R> R get(final Future<R> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private static void reportProgress(
+            final PdfTemplate template,
+            final int completed,
+            final long start,
+            final Progress progress) {
+        final long elapsed = System.nanoTime() - start;
+        if (completed % PROGRESS_INTERVAL == 0 && LOG.isInfoEnabled()) {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+            LOG.info("{}: rendered {} documents in {} ms", template.getName(), completed, millis);
+        }
+        progress.completed(completed, elapsed);
+    }
+
+    /**
+     * A document populated for {@link #mergeAll(PdfTemplate, Iterator, OutputStream) merging}, with the context its
+     * streams are kept in.
+     */
+    private static class Populated {
+
+        private final PDDocument document;
+        private final PdfRenderingContext context;
+
+        Populated(final PDDocument document, final PdfRenderingContext context) {
+            this.document = document;
+            this.context = context;
+        }
+    }
+
+    private void close(final Populated populated) throws IOException {
+        try {
+            populated.document.close();
+        } finally {
+            pdfRenderingContexts.release(populated.context);
+        }
+    }
+
+    /**
+     * Passes everything but {@link #close()} on to the target stream.
+     */
+    private static class Unclosed extends FilterOutputStream {
+
+        Unclosed(final OutputStream target) {
+            super(target);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private interface Work<R> {
+        R apply(PdfFieldValues values) throws Exception;
+    }
+
+    private interface Receiver<R> {
+        void accept(int index, R result) throws Exception;
+
+        /**
+         * Releases a result that is not to be {@link #accept(int, Object) accepted}, because the pipeline failed.
+         */
+        void discard(R result) throws Exception;
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfMetrics pdfMetrics;
+
+    @javax.inject.Inject
+    private PdfDocumentStorage pdfDocumentStorage;
+
+    @javax.inject.Inject
+    private PdfRenderingContexts pdfRenderingContexts;
+
+    //endregion
+}
@@ -0,0 +1,310 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import com.google.common.hash.Hashing;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFCloneUtility;
+
+/**
+ * A PDF template that has been parsed once and is then shared between requests.
+ *
+ * <p>
+ * The parsed document is never handed out nor modified; each caller gets its own copy through
+ * {@link #newDocument()}. Copying the already parsed object graph is considerably cheaper than
+ * parsing the template bytes again.
+ * </p>
+ */
+public class PdfTemplate {
+
+    /**
+     * Creates the empty documents that templates are copied into, deciding where their content is kept.
+     *
+     * @see PdfDocumentStorage
+     */
+    public interface DocumentFactory {
+
+        /**
+         * @param estimatedSize The expected size of the saved document in bytes, or <tt>-1</tt> if it is unknown
+         */
+        PDDocument newDocument(long estimatedSize) throws IOException;
+    }
+
+    /**
+     * Keeps documents on the heap.
+     */
+    public static final DocumentFactory HEAP = new DocumentFactory() {
+        @Override
+        public PDDocument newDocument(final long estimatedSize) {
+            return new PDDocument();
+        }
+    };
+
+    private final String name;
+    private final byte[] bytes;
+    private final String digest;
+    private final PdfFieldIndex fieldIndex;
+    private volatile PDDocument document;
+    private volatile PdfAppearanceCache appearanceCache;
+
+    PdfTemplate(final String name, final byte[] bytes) throws IOException {
+        this.name = name;
+        this.bytes = bytes;
+        this.digest = Hashing.sha1().hashBytes(bytes).toString();
+        this.document = load(bytes);
+        this.fieldIndex = new PdfFieldIndex(document);
+    }
+
+    /**
+     * A template whose field index has been restored from a {@link PdfTemplateSnapshot}; the template itself is
+     * only parsed once the first copy is made.
+     */
+    PdfTemplate(final String name, final byte[] bytes, final String digest, final PdfFieldIndex fieldIndex) {
+        this.name = name;
+        this.bytes = bytes;
+        this.digest = digest;
+        this.fieldIndex = fieldIndex;
+    }
+
+    private static PDDocument load(final byte[] bytes) throws IOException {
+        final PDDocument document = PDDocument.load(new ByteArrayInputStream(bytes));
+        // once evicted from the registry a template may still be in use by in-flight copies,
+        // so it is left to the garbage collector rather than being closed explicitly
+        document.getDocument().setWarnMissingClose(false);
+        return document;
+    }
+
+    private PDDocument getDocument() throws IOException {
+        PDDocument loaded = document;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = document;
+                if (loaded == null) {
+                    loaded = document = load(bytes);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Parses a template from its bytes.
+     *
+     * <p>
+     * Templates are normally obtained through the {@link PdfTemplateRegistry}, which parses each only once; this
+     * is for templates that are not classpath resources, such as those generated by the benchmarks.
+     * </p>
+     */
+    public static PdfTemplate parse(final String name, final byte[] bytes) throws IOException {
+        return new PdfTemplate(name, bytes);
+    }
+
+    /**
+     * The name of the template, usually the name of the resource it was loaded from.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The size in bytes of the original template.
+     */
+    public int getLength() {
+        return bytes.length;
+    }
+
+    /**
+     * A digest (SHA-1, in hex) of the original template, which changes whenever the template is changed.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * The index of the template's form fields, shared by all copies of the template.
+     */
+    public PdfFieldIndex getFieldIndex() {
+        return fieldIndex;
+    }
+
+    /**
+     * Has the copies of this template take the appearances of their text fields from the cache; set by the
+     * {@link PdfTemplateRegistry} for the templates it loads.
+     *
+     * @param appearanceCache The cache, or <tt>null</tt> to have PDFBox generate all appearances
+     */
+    public void setAppearanceCache(final PdfAppearanceCache appearanceCache) {
+        this.appearanceCache = appearanceCache;
+    }
+
+    /**
+     * The original template, which must not be modified.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The trailer of the parsed template, which must not be modified.
+     */
+    COSDictionary getTrailer() throws IOException {
+        return getDocument().getDocument().getTrailer();
+    }
+
+    int getPageCount() throws IOException {
+        return getDocument().getNumberOfPages();
+    }
+
+    /**
+     * Creates a new document that is a copy of this template, ready to be populated.
+     *
+     * <p>
+     * The returned document is independent from the template and from any other copy; it is the
+     * responsibility of the caller to close it.
+     * </p>
+     *
+     * @return A copy of the parsed template
+     * @throws IOException If the template's streams cannot be copied
+     */
+    public PDDocument newDocument() throws IOException {
+        return copyInto(new PDDocument(), null);
+    }
+
+    private PDDocument copyInto(final PDDocument copy, final PdfIncrementalWriter writer) throws IOException {
+        try {
+            final COSDocument source = getDocument().getDocument();
+            final COSDocument target = copy.getDocument();
+            target.setHeaderString(source.getHeaderString());
+            target.setVersion(source.getVersion());
+
+            final PDFCloneUtility cloner = writer != null ? writer.newCloner(copy) : new PDFCloneUtility(copy);
+            final COSDictionary sourceTrailer = source.getTrailer();
+            final COSDictionary targetTrailer = target.getTrailer();
+            targetTrailer.setItem(COSName.ROOT, cloner.cloneForNewDocument(sourceTrailer.getDictionaryObject(COSName.ROOT)));
+            targetTrailer.setItem(COSName.INFO, cloner.cloneForNewDocument(sourceTrailer.getDictionaryObject(COSName.INFO)));
+        } catch (IOException | RuntimeException e) {
+            // a scratch file is deleted on close
+            copy.close();
+            throw e;
+        }
+        return copy;
+    }
+
+    /**
+     * Creates a new copy of this template populated with the values.
+     *
+     * <p>
+     * If a grid has more rows than fit into it, the page (or pages) holding the grid is repeated at the end of the
+     * document as often as needed for the remaining rows. These continuation pages are populated one at a time from
+     * further copies of the template and {@link PdfFlattener flattened}, so their fields do not clash with those of
+     * the first copy, and they share the fonts and the static content of the first copy.
+     * </p>
+     *
+     * <p>
+     * Only one further copy is held at a time, so the document grows by the content that differs from page to page,
+     * not by a copy of the template per page. The rows themselves are all held by the values, however, as they are
+     * read from the domain objects up front, and the document is only written once complete; for documents with
+     * very many rows, let the factory keep it in a scratch file, as the {@link PdfDocumentStorage} does.
+     * </p>
+     *
+     * @return The populated copy; it is the responsibility of the caller to close it
+     * @throws IOException If the template's streams cannot be copied or the fields cannot be populated
+     */
+    public PDDocument newDocument(final PdfFieldValues values) throws IOException {
+        return newDocument(values, HEAP);
+    }
+
+    /**
+     * As {@link #newDocument(PdfFieldValues)}, copying into a document created by the factory, for example one whose
+     * content is kept in a scratch file rather than on the heap.
+     */
+    public PDDocument newDocument(final PdfFieldValues values, final DocumentFactory factory) throws IOException {
+        return newDocument(values, factory, null);
+    }
+
+    /**
+     * As {@link #newDocument(PdfFieldValues, DocumentFactory)}, letting the writer (if any) track the copy.
+     */
+    PDDocument newDocument(
+            final PdfFieldValues values,
+            final DocumentFactory factory,
+            final PdfIncrementalWriter writer) throws IOException {
+        final PDDocument copy = copyInto(factory.newDocument(estimateSize(values)), writer);
+        try {
+            values.writeTo(fieldsOf(copy));
+            final int rowPageCount = values.getRowPageCount();
+            if (rowPageCount > 1) {
+                appendContinuationPages(copy, values, rowPageCount, factory);
+            }
+        } catch (IOException | RuntimeException e) {
+            copy.close();
+            throw e;
+        }
+        return copy;
+    }
+
+    private PdfFormFields fieldsOf(final PDDocument copy) {
+        final PdfAppearanceCache cache = appearanceCache;
+        return cache != null ? fieldIndex.fieldsOf(copy, cache, digest) : fieldIndex.fieldsOf(copy);
+    }
+
+    /**
+     * The size of the template for each page of rows; continuation pages share the fonts of the first page, so
+     * this errs on the large side.
+     */
+    private long estimateSize(final PdfFieldValues values) {
+        return (long) bytes.length * Math.max(1, values.getRowPageCount());
+    }
+
+    /**
+     * Populates a further copy of the template, created by the factory, for each page of rows after the first, and
+     * appends its pages with rows to the document.
+     */
+    private void appendContinuationPages(
+            final PDDocument copy,
+            final PdfFieldValues values,
+            final int rowPageCount,
+            final DocumentFactory factory) throws IOException {
+        final Set<Integer> pages = new TreeSet<>();
+        for (final PdfFieldIndex.Grid grid : values.overflowingGrids()) {
+            for (int row = 0; row < grid.getRowCount(); row++) {
+                for (int column = 0; column < grid.getColumnCount(); column++) {
+                    final int slot = grid.slotOf(row, column);
+                    if (slot >= 0 && fieldIndex.pageOf(slot) >= 0) {
+                        pages.add(fieldIndex.pageOf(slot));
+                    }
+                }
+            }
+        }
+        if (pages.isEmpty()) {
+            return;
+        }
+        try (PdfMerger merger = new PdfMerger(copy)) {
+            for (int rowPage = 1; rowPage < rowPageCount; rowPage++) {
+                try (PDDocument continuation = copyInto(factory.newDocument(bytes.length), null)) {
+                    values.writeTo(fieldsOf(continuation), rowPage);
+                    merger.append(continuation, pages);
+                }
+            }
+        }
+    }
+}
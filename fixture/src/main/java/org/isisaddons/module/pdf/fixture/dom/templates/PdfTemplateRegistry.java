@@ -0,0 +1,150 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Parses each PDF template once and keeps it for subsequent requests.
+ *
+ * <p>
+ * The number of templates held is bounded by the <tt>isis.module.pdf.templates.maximumSize</tt>
+ * configuration property; the least recently used templates are evicted first.
+ * </p>
+ *
+ * <p>
+ * If a template has a {@link PdfTemplateSnapshot snapshot}, its fields are read from there rather than analysed,
+ * and the template itself is only parsed once it is first rendered.
+ * </p>
+ */
+@DomainService
+public class PdfTemplateRegistry {
+
+    //region > init
+
+    static final String MAXIMUM_SIZE_KEY = "isis.module.pdf.templates.maximumSize";
+    static final int MAXIMUM_SIZE_DEFAULT = 50;
+
+    private int maximumSize = MAXIMUM_SIZE_DEFAULT;
+    private LoadingCache<PdfTemplateSource, PdfTemplate> templates;
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        final String maximumSizeProperty = properties.get(MAXIMUM_SIZE_KEY);
+        if (maximumSizeProperty != null) {
+            maximumSize = Integer.parseInt(maximumSizeProperty.trim());
+        }
+        if (templates != null) {
+            // other services may already have looked up their templates while being initialized
+            final LoadingCache<PdfTemplateSource, PdfTemplate> existing = templates;
+            templates = newCache();
+            templates.putAll(existing.asMap());
+        }
+    }
+
+    private synchronized LoadingCache<PdfTemplateSource, PdfTemplate> getTemplates() {
+        if (templates == null) {
+            templates = newCache();
+        }
+        return templates;
+    }
+
+    private LoadingCache<PdfTemplateSource, PdfTemplate> newCache() {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build(new CacheLoader<PdfTemplateSource, PdfTemplate>() {
+                    @Override
+                    public PdfTemplate load(final PdfTemplateSource source) throws Exception {
+                        final long start = System.nanoTime();
+                        try {
+                            final PdfTemplate template = PdfTemplateSnapshot.load(source.getName(), source.read(), source.getSnapshot());
+                            template.setAppearanceCache(pdfAppearanceCache);
+                            pdfMetrics.recordTime(source.getName(), PdfMetrics.Stage.LOAD, System.nanoTime() - start);
+                            return template;
+                        } catch (Exception e) {
+                            pdfMetrics.recordFailure(source.getName(), PdfMetrics.Stage.LOAD);
+                            throw e;
+                        }
+                    }
+                });
+    }
+    //endregion
+
+    //region > lookup
+
+    /**
+     * Returns the parsed template for the resource, parsing it first if it is not yet held.
+     *
+     * @param contextClass The class relative to which the resource is looked up
+     * @param resourceName The name of the PDF resource
+     * @return The parsed template
+     */
+    @Programmatic
+    public PdfTemplate lookup(final Class<?> contextClass, final String resourceName) {
+        return lookup(new ClasspathPdfTemplateSource(contextClass, resourceName));
+    }
+
+    /**
+     * Returns the parsed template from the source, parsing it first if it is not yet held.
+     */
+    @Programmatic
+    public PdfTemplate lookup(final PdfTemplateSource source) {
+        try {
+            return getTemplates().getUnchecked(source);
+        } catch (UncheckedExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw new IllegalStateException("Unable to load PDF template '" + source.getName() + "'", cause != null ? cause : e);
+        }
+    }
+
+    /**
+     * Discards all parsed templates, for example after templates have been redeployed.
+     */
+    @Programmatic
+    public void invalidateAll() {
+        getTemplates().invalidateAll();
+    }
+    //endregion
+
+    //region > statistics
+
+    /**
+     * The hit/miss counts of template lookups since startup.
+     */
+    @Programmatic
+    public CacheStats getStats() {
+        return getTemplates().stats();
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfMetrics pdfMetrics;
+
+    @javax.inject.Inject
+    private PdfAppearanceCache pdfAppearanceCache;
+
+    //endregion
+}
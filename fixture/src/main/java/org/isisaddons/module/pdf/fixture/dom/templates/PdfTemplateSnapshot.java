@@ -0,0 +1,213 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The analysis of a {@link PdfTemplate} - its digest and its {@link PdfFieldIndex field index} - saved at build time
+ * next to the template, as <tt>&lt;template&gt;.snapshot</tt>.
+ *
+ * <p>
+ * A template restored from its snapshot is usable at once for binding and for computing cache keys; the template
+ * itself is only parsed when the first document is rendered from it. The fixture build writes the snapshots of all
+ * templates among its classes in the <tt>process-classes</tt> phase, by running {@link #main(String[])}.
+ * </p>
+ *
+ * <p>
+ * A snapshot is used only if it was taken of the very same template bytes; otherwise the template is analysed as if
+ * there were no snapshot.
+ * </p>
+ */
+public final class PdfTemplateSnapshot {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PdfTemplateSnapshot.class);
+
+    static final String SUFFIX = ".snapshot";
+
+    private static final String TEMPLATE_SUFFIX = ".pdf";
+
+    // "PDFS"
+    private static final int MAGIC = 0x50444653;
+    private static final int VERSION = 1;
+
+    private PdfTemplateSnapshot() {
+    }
+
+    //region > load
+
+    /**
+     * Returns the template, restored from the snapshot if there is an up-to-date one, and parsed otherwise.
+     *
+     * @param snapshot The snapshot resource, or <tt>null</tt> if there is none
+     */
+    static PdfTemplate load(final String name, final byte[] bytes, final URL snapshot) throws IOException {
+        if (snapshot != null) {
+            final String digest = Hashing.sha1().hashBytes(bytes).toString();
+            try {
+                final PdfTemplate template = read(name, bytes, digest, map(snapshot));
+                if (template != null) {
+                    return template;
+                }
+                LOG.warn("{}: snapshot is out of date, analysing the template instead", name);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                LOG.warn("{}: snapshot is corrupt, analysing the template instead", name, e);
+            }
+        }
+        return new PdfTemplate(name, bytes);
+    }
+
+    /**
+     * Maps the snapshot into memory if it is a file, rather than an entry of an archive.
+     */
+    private static ByteBuffer map(final URL snapshot) throws IOException {
+        if ("file".equals(snapshot.getProtocol())) {
+            final Path path;
+            try {
+                path = Paths.get(snapshot.toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        return ByteBuffer.wrap(Resources.toByteArray(snapshot));
+    }
+
+    /**
+     * @return The template, or <tt>null</tt> if the snapshot was not taken of the given template bytes
+     */
+    private static PdfTemplate read(final String name, final byte[] bytes, final String digest, final ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IllegalArgumentException("Not a template snapshot");
+        }
+        if (buffer.getLong() != bytes.length || !digest.equals(readString(buffer))) {
+            return null;
+        }
+        final int size = buffer.getInt();
+        final List<String> names = new ArrayList<>(size);
+        final List<int[]> paths = new ArrayList<>(size);
+        final List<Integer> pages = new ArrayList<>(size);
+        for (int slot = 0; slot < size; slot++) {
+            names.add(readString(buffer));
+            pages.add(buffer.getInt());
+            final int[] path = new int[buffer.getInt()];
+            for (int i = 0; i < path.length; i++) {
+                path[i] = buffer.getInt();
+            }
+            paths.add(path);
+        }
+        return new PdfTemplate(name, bytes, digest, new PdfFieldIndex(names, paths, pages));
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    //endregion
+
+    //region > write
+
+    /**
+     * Writes the snapshot of the (parsed) template.
+     */
+    static void write(final PdfTemplate template, final OutputStream target) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(template.getLength());
+        writeString(out, template.getDigest());
+        final PdfFieldIndex fieldIndex = template.getFieldIndex();
+        out.writeInt(fieldIndex.size());
+        for (int slot = 0; slot < fieldIndex.size(); slot++) {
+            writeString(out, fieldIndex.nameOf(slot));
+            out.writeInt(fieldIndex.pageOf(slot));
+            final int[] path = fieldIndex.pathOf(slot);
+            out.writeInt(path.length);
+            for (final int index : path) {
+                out.writeInt(index);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeString(final DataOutputStream out, final String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes a snapshot next to every template (<tt>*.pdf</tt>) in the directory and its subdirectories.
+     *
+     * @return The number of snapshots written
+     */
+    public static int writeAll(final Path directory) throws IOException {
+        final int[] count = new int[1];
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+                final String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMPLATE_SUFFIX)) {
+                    final PdfTemplate template = PdfTemplate.parse(fileName, Files.readAllBytes(file));
+                    try (OutputStream target = Files.newOutputStream(file.resolveSibling(fileName + SUFFIX))) {
+                        write(template, target);
+                    }
+                    count[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Writes the snapshots of the templates in the directory given as the only argument, usually
+     * <tt>target/classes</tt>.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: " + PdfTemplateSnapshot.class.getName() + " <directory>");
+            System.exit(2);
+        }
+        final int count = writeAll(Paths.get(args[0]));
+        System.out.println("Wrote " + count + " PDF template snapshot(s) in " + args[0]);
+    }
+    //endregion
+}
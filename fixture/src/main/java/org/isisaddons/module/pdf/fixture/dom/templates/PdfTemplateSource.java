@@ -0,0 +1,46 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Where the template of a {@link PdfDocumentType} comes from.
+ *
+ * <p>
+ * Sources are the keys under which the {@link PdfTemplateRegistry} keeps parsed templates, so implementations must
+ * implement {@link Object#equals(Object)} and {@link Object#hashCode()}.
+ * </p>
+ *
+ * @see ClasspathPdfTemplateSource
+ */
+public interface PdfTemplateSource {
+
+    /**
+     * The name of the template, under which its {@link PdfMetrics metrics} are recorded.
+     */
+    String getName();
+
+    /**
+     * Reads the template.
+     */
+    byte[] read() throws IOException;
+
+    /**
+     * The {@link PdfTemplateSnapshot snapshot} of the template, or <tt>null</tt> if there is none.
+     */
+    URL getSnapshot();
+}
@@ -0,0 +1,212 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+/**
+ * Renders sample documents of all registered {@link PdfDocumentType}s, so that the first documents requested after a
+ * deployment do not pay for loading the templates, compiling the bindings, loading the classes of PDFBox, parsing the
+ * fonts and compiling the hot code.
+ *
+ * <p>
+ * {@link #warmUp()} renders <tt>isis.module.pdf.warmUp.documents</tt> documents (20 by default; <tt>0</tt> turns
+ * the warm-up off) of each type, in turn as forms and flattened. The values are bound from the type's
+ * {@link PdfDocumentType#newSamples() samples} by the type's binder, as for real documents; for a type without samples
+ * they are made up for every field of the template instead, with and without continuation pages. The documents are
+ * not cached nor counted by the {@link PdfMetrics}; only the time taken by the warm-up is recorded, as the
+ * {@link PdfMetrics.Stage#WARM_UP WARM_UP} stage of each template.
+ * </p>
+ *
+ * <p>
+ * It is up to the application to have the warm-up run once it has started and before it takes requests, by calling
+ * {@link #ensureWarmedUp()}, as the demo webapp does for every request.
+ * </p>
+ */
+@DomainService
+public class PdfWarmUp {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PdfWarmUp.class);
+
+    //region > init
+
+    static final String DOCUMENTS_KEY = "isis.module.pdf.warmUp.documents";
+    static final int DOCUMENTS_DEFAULT = 20;
+
+    private int documents = DOCUMENTS_DEFAULT;
+
+    private final Object warmUpLock = new Object();
+    private volatile boolean warmedUp;
+
+    @PostConstruct
+    public synchronized void init(final Map<String, String> properties) {
+        final String documentsProperty = properties.get(DOCUMENTS_KEY);
+        if (documentsProperty != null) {
+            documents = Integer.parseInt(documentsProperty.trim());
+        }
+    }
+    //endregion
+
+    //region > warmUp
+
+    /**
+     * {@link #warmUp() Warms up} unless that has been done (or attempted) already; callers wait for a warm-up in
+     * progress to finish.
+     *
+     * <p>
+     * A failure is logged rather than thrown, as it only means that the first documents will take longer.
+     * </p>
+     */
+    @Programmatic
+    public void ensureWarmedUp() {
+        if (warmedUp) {
+            return;
+        }
+        synchronized (warmUpLock) {
+            if (warmedUp) {
+                return;
+            }
+            try {
+                warmUp();
+            } catch (Exception e) {
+                LOG.warn("Unable to warm up the generation of PDF documents", e);
+            } finally {
+                warmedUp = true;
+            }
+        }
+    }
+
+    /**
+     * Loads the templates and compiles the bindings of all registered document types, and renders the sample
+     * documents of each.
+     *
+     * @return The time taken, in milliseconds
+     * @throws Exception If a document cannot be rendered
+     */
+    @Programmatic
+    public long warmUp() throws Exception {
+        final long start = System.nanoTime();
+        final List<PdfDocumentType<?>> types = pdfDocuments.getTypes();
+        for (final PdfDocumentType<?> type : types) {
+            warmUp(type);
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.info("Warmed up {} PDF document type(s) with {} document(s) each in {} ms", types.size(), Math.max(documents, 0), millis);
+        return millis;
+    }
+
+    private <T> void warmUp(final PdfDocumentType<T> type) throws Exception {
+        final long start = System.nanoTime();
+        final PdfTemplate template = pdfDocuments.templateOf(type);
+        final PdfBinder<T> binder = pdfDocuments.binderOf(type, template);
+        if (documents <= 0) {
+            return;
+        }
+        final List<T> samples = type.newSamples();
+        final PdfOutputProfile profile = pdfRenderingService.profileOf(template);
+        for (int i = 0; i < documents; i++) {
+            // each sample as a form and flattened
+            final PdfFieldValues values = samples.isEmpty()
+                    ? valuesOf(template.getFieldIndex(), i)
+                    : binder.valuesOf(samples.get(i / 2 % samples.size()));
+            pdfRenderingService.render(template, values, i % 2 == 1, profile, UNMEASURED);
+        }
+        final long nanos = System.nanoTime() - start;
+        pdfMetrics.recordTime(template.getName(), PdfMetrics.Stage.WARM_UP, nanos);
+        LOG.debug("{}: warmed up in {} ms", type.getName(), TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Made-up values for every field of the template; every other pair of documents has one row more than fits into
+     * each grid.
+     */
+    private static PdfFieldValues valuesOf(final PdfFieldIndex index, final int document) {
+        final PdfFieldValues values = new PdfFieldValues(index);
+        final Set<String> groups = new LinkedHashSet<>();
+        for (int slot = 0; slot < index.size(); slot++) {
+            final String name = index.nameOf(slot);
+            final int separator = name.indexOf('|');
+            if (separator > 0) {
+                groups.add(name.substring(0, separator));
+            } else {
+                values.set(slot, sampleOf(name, document));
+            }
+        }
+        for (final String group : groups) {
+            final PdfFieldIndex.Grid grid = index.grid(group);
+            if (grid == null) {
+                continue;
+            }
+            final int rowCount = document % 4 < 2 ? grid.getRowCount() : grid.getRowCount() + 1;
+            for (int row = 0; row < rowCount; row++) {
+                final String[] cells = new String[grid.getColumnCount()];
+                Arrays.fill(cells, sampleOf(group, document + row));
+                values.addRow(grid, cells);
+            }
+        }
+        return values;
+    }
+
+    private static String sampleOf(final String name, final int document) {
+        // a few distinct values per field, so that both laying out values and reusing their appearances are warmed up
+        return name + " " + document % 3;
+    }
+
+    private static final PdfMetrics UNMEASURED = new PdfMetrics() {
+        @Override
+        public void recordTime(final String template, final Stage stage, final long nanos) {
+        }
+
+        @Override
+        public void recordFailure(final String template, final Stage stage) {
+        }
+
+        @Override
+        public void recordDocument(final String template, final long bytes) {
+        }
+
+        @Override
+        public void recordCacheHit(final String template) {
+        }
+
+        @Override
+        public void recordCacheMiss(final String template) {
+        }
+    };
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private PdfDocuments pdfDocuments;
+
+    @javax.inject.Inject
+    private PdfRenderingService pdfRenderingService;
+
+    @javax.inject.Inject
+    private PdfMetrics pdfMetrics;
+
+    //endregion
+}
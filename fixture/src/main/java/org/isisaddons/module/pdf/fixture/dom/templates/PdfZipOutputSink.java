@@ -0,0 +1,54 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes each document as an entry of a ZIP archive, named by {@link PdfDocumentType#fileNameOf(Object)}.
+ */
+public class PdfZipOutputSink<T> implements PdfOutputSink<T> {
+
+    private final PdfDocumentType<T> type;
+    private final ZipOutputStream zip;
+
+    /**
+     * @param target The stream to write the archive to; it is not closed
+     */
+    public PdfZipOutputSink(final PdfDocumentType<T> type, final OutputStream target) {
+        this.type = type;
+        this.zip = new ZipOutputStream(target);
+        // pdf documents are compressed already
+        zip.setLevel(Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public void accept(final T entity, final byte[] document) throws IOException {
+        zip.putNextEntry(new ZipEntry(type.fileNameOf(entity)));
+        zip.write(document);
+        zip.closeEntry();
+    }
+
+    /**
+     * Writes the end of the archive, leaving the target open.
+     */
+    public void finish() throws IOException {
+        zip.finish();
+    }
+}
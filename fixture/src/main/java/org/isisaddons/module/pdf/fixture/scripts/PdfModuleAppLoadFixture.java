@@ -0,0 +1,171 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.scripts;
+
+import java.math.BigDecimal;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.isisaddons.module.pdf.fixture.dom.Orders;
+import org.joda.time.LocalDate;
+
+import org.apache.isis.applib.fixturescripts.FixtureScript;
+import org.apache.isis.applib.services.clock.ClockService;
+
+/**
+ * Replaces the fixture data with many synthetic orders, for reproducing the performance of generating documents with
+ * realistic volumes of data.
+ *
+ * <p>
+ * Creates {@link #getOrderCount() as many orders} as asked for, with {@link #getLineCount() as many lines} each,
+ * placed over the last week so that {@link Orders#downloadCustomerConfirmations(LocalDate, LocalDate, boolean)} finds
+ * all of them by default. The numbers can be given as the parameters of the script, for example
+ * <tt>orders=1000,lines=20</tt>.
+ * </p>
+ *
+ * <p>
+ * The orders are flushed to the database every {@link #getBatchSize() batch size} orders, rather than all at the end
+ * of the transaction, so that the pending changes do not grow with the number of orders.
+ * </p>
+ */
+public class PdfModuleAppLoadFixture extends FixtureScript {
+
+    static final int ORDER_COUNT_DEFAULT = 100;
+    static final int LINE_COUNT_DEFAULT = 10;
+    static final int BATCH_SIZE_DEFAULT = 50;
+
+    private static final String[] CUSTOMER_NAMES = {
+            "Joe Smith", "Mary Jones", "Ahmed Khan", "Li Wei", "Ana Garcia", "Olga Petrova", "Kwame Mensah"
+    };
+
+    private static final String[] ARTICLES = {
+            "TV", "X-Men", "Battery pack", "LED lamp", "Kettle", "Toaster", "Headphones", "USB cable", "Desk chair",
+            "Notebook", "Coffee beans", "Printer paper"
+    };
+
+    public PdfModuleAppLoadFixture() {
+        withDiscoverability(Discoverability.DISCOVERABLE);
+    }
+
+    //region > orderCount, lineCount, batchSize
+
+    private int orderCount = ORDER_COUNT_DEFAULT;
+
+    /**
+     * The number of orders to create; the <tt>orders</tt> parameter.
+     */
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    public PdfModuleAppLoadFixture setOrderCount(final int orderCount) {
+        this.orderCount = orderCount;
+        return this;
+    }
+
+    private int lineCount = LINE_COUNT_DEFAULT;
+
+    /**
+     * The number of lines of each order; the <tt>lines</tt> parameter.
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public PdfModuleAppLoadFixture setLineCount(final int lineCount) {
+        this.lineCount = lineCount;
+        return this;
+    }
+
+    private int batchSize = BATCH_SIZE_DEFAULT;
+
+    /**
+     * The number of orders created between flushes; the <tt>batchSize</tt> parameter.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public PdfModuleAppLoadFixture setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+    //endregion
+
+    //region > execute
+
+    @Override
+    protected void execute(ExecutionContext executionContext) {
+        readParameters(executionContext.getParameters());
+
+        // prereqs
+        executeChild(new PdfModuleAppTeardownFixture(), executionContext);
+
+        // create
+        final LocalDate today = clockService.now();
+        for (int i = 1; i <= orderCount; i++) {
+            final Order order = orders.create(
+                    String.format("L%06d", i),
+                    CUSTOMER_NAMES[i % CUSTOMER_NAMES.length],
+                    today.minusDays(i % 7),
+                    i % 3 == 0 ? "leave in the porch if out" : null);
+            for (int j = 1; j <= lineCount; j++) {
+                order.add(
+                        String.format("%s %03d", ARTICLES[(i + j) % ARTICLES.length], j),
+                        BigDecimal.valueOf(100 + (i * 31 + j * 17) % 9900, 2),
+                        1 + (i + j) % 5);
+            }
+            if (i % batchSize == 0) {
+                container.flush();
+            }
+        }
+        container.flush();
+    }
+
+    /**
+     * Reads the <tt>name=value</tt> pairs, separated by commas or line breaks, of the parameters the script was run
+     * with, if any.
+     */
+    private void readParameters(final String parameters) {
+        if (parameters == null) {
+            return;
+        }
+        for (final String parameter : parameters.split("[,\\n]")) {
+            final String[] nameAndValue = parameter.split("=", 2);
+            if (nameAndValue.length != 2) {
+                continue;
+            }
+            final String name = nameAndValue[0].trim();
+            final int value = Integer.parseInt(nameAndValue[1].trim());
+            if ("orders".equals(name)) {
+                setOrderCount(value);
+            } else if ("lines".equals(name)) {
+                setLineCount(value);
+            } else if ("batchSize".equals(name)) {
+                setBatchSize(value);
+            }
+        }
+    }
+    //endregion
+
+    //region > injected services
+
+    @javax.inject.Inject
+    private Orders orders;
+
+    @javax.inject.Inject
+    private ClockService clockService;
+
+    //endregion
+
+}
@@ -23,6 +23,7 @@ public class PdfModuleAppTeardownFixture extends FixtureScript {
 
     @Override
     protected void execute(ExecutionContext executionContext) {
+        isisJdoSupport.executeUpdate("delete from \"CustomerConfirmationJob\"");
         isisJdoSupport.executeUpdate("delete from \"OrderLine\"");
         isisJdoSupport.executeUpdate("delete from \"Order\"");
     }
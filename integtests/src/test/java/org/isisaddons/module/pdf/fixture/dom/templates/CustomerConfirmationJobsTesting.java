@@ -0,0 +1,47 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets tests wait for the background render of a {@link CustomerConfirmationJob}, rather than poll for it.
+ */
+public final class CustomerConfirmationJobsTesting {
+
+    private CustomerConfirmationJobsTesting() {
+    }
+
+    /**
+     * Waits for the render of the job in progress, if any, to complete, whether or not it succeeds.
+     */
+    public static void awaitRender(
+            final CustomerConfirmationJobs customerConfirmationJobs,
+            final CustomerConfirmationJob job,
+            final long timeout,
+            final TimeUnit unit) throws Exception {
+        final Future<?> render = customerConfirmationJobs.renderOf(job);
+        if (render == null) {
+            return;
+        }
+        try {
+            render.get(timeout, unit);
+        } catch (ExecutionException e) {
+            // recorded with the job when it is polled
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.fixture.dom.templates;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+
+/**
+ * Reopens a {@link PdfArchiveStore} after the crashes it is meant to survive, and checks that every document stored
+ * before the crash still reads back unchanged.
+ */
+public class PdfArchiveStoreTest {
+
+    private static final int DOCUMENT_LENGTH = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+    private final Map<String, byte[]> stored = new LinkedHashMap<>();
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = temporaryFolder.newFolder("archive");
+    }
+
+    @Test
+    public void reopensAfterATornRecord() throws Exception {
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, 1024 * 1024)) {
+            putDocuments(store, 3);
+        }
+        final long segmentLength = segmentFile(1).length();
+        // the document of the fourth record had been written, the record itself only partly
+        append(segmentFile(1), newDocument());
+        writeIndex(PdfArchiveStore.positionOf(3), newBytes(20));
+
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, 1024 * 1024)) {
+            assertReadBack(store);
+            Assert.assertThat(segmentFile(1).length(), is(segmentLength));
+            Assert.assertThat(readIndex(PdfArchiveStore.positionOf(3), 20), is(new byte[20]));
+
+            putDocuments(store, 1);
+        }
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, 1024 * 1024)) {
+            assertReadBack(store);
+        }
+    }
+
+    @Test
+    public void reopensAfterTrailingSegmentBytes() throws Exception {
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, 1024 * 1024)) {
+            putDocuments(store, 3);
+        }
+        final long segmentLength = segmentFile(1).length();
+        // the document had been (partly) written, but not its record
+        append(segmentFile(1), newBytes(DOCUMENT_LENGTH / 2));
+
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, 1024 * 1024)) {
+            assertReadBack(store);
+            Assert.assertThat(segmentFile(1).length(), is(segmentLength));
+
+            putDocuments(store, 1);
+            Assert.assertThat(segmentFile(1).length(), is(segmentLength + DOCUMENT_LENGTH));
+        }
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, 1024 * 1024)) {
+            assertReadBack(store);
+        }
+    }
+
+    @Test
+    public void reopensAfterARollover() throws Exception {
+        // room for two documents in each segment
+        final long segmentSize = 2 * DOCUMENT_LENGTH;
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, segmentSize)) {
+            putDocuments(store, 5);
+        }
+        Assert.assertThat(segmentFile(3).length(), is((long) DOCUMENT_LENGTH));
+        // the segment with the sixth document had been started, its record written only partly
+        append(segmentFile(3), newDocument());
+        writeIndex(PdfArchiveStore.positionOf(5), newBytes(40));
+
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, segmentSize)) {
+            assertReadBack(store);
+            Assert.assertThat(segmentFile(1).length(), is(2L * DOCUMENT_LENGTH));
+            Assert.assertThat(segmentFile(2).length(), is(2L * DOCUMENT_LENGTH));
+            Assert.assertThat(segmentFile(3).length(), is((long) DOCUMENT_LENGTH));
+
+            putDocuments(store, 2);
+        }
+        // a new segment had been started, but its first document not recorded
+        append(segmentFile(5), newDocument());
+
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, segmentSize)) {
+            assertReadBack(store);
+            Assert.assertThat(segmentFile(4).length(), is((long) DOCUMENT_LENGTH));
+            Assert.assertThat(segmentFile(5).length(), is(0L));
+
+            putDocuments(store, 1);
+            Assert.assertThat(segmentFile(5).length(), is((long) DOCUMENT_LENGTH));
+        }
+        try (PdfArchiveStore store = new PdfArchiveStore(directory, segmentSize)) {
+            assertReadBack(store);
+        }
+    }
+
+    private void putDocuments(final PdfArchiveStore store, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            final byte[] document = newDocument();
+            final PdfArchiveStore.Receipt receipt = store.put(document);
+            Assert.assertThat(receipt.isStored(), is(true));
+            stored.put(receipt.getDigest(), document);
+        }
+    }
+
+    private void assertReadBack(final PdfArchiveStore store) throws IOException {
+        Assert.assertThat(store.size(), is(stored.size()));
+        final List<String> digests = new ArrayList<>(stored.keySet());
+        for (final String digest : digests) {
+            final PdfArchiveStore.Location location = store.locate(digest);
+            Assert.assertThat(digest, location != null, is(true));
+            Assert.assertThat(store.read(location), is(stored.get(digest)));
+        }
+    }
+
+    private byte[] newDocument() {
+        return newBytes(DOCUMENT_LENGTH);
+    }
+
+    private byte[] newBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private File segmentFile(final int number) {
+        return new File(directory, String.format("%08d", number) + PdfArchiveStore.SEGMENT_SUFFIX);
+    }
+
+    private static void append(final File file, final byte[] bytes) throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(output.length());
+            output.write(bytes);
+        }
+    }
+
+    private void writeIndex(final int position, final byte[] bytes) throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(new File(directory, PdfArchiveStore.INDEX_NAME), "rw")) {
+            output.seek(position);
+            output.write(bytes);
+        }
+    }
+
+    private byte[] readIndex(final int position, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        try (RandomAccessFile input = new RandomAccessFile(new File(directory, PdfArchiveStore.INDEX_NAME), "r")) {
+            input.seek(position);
+            input.readFully(bytes);
+        }
+        return bytes;
+    }
+}
@@ -16,19 +16,59 @@
  */
 package org.isisaddons.module.pdf.integtests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.util.PDFTextStripper;
 import org.isisaddons.module.pdf.fixture.dom.Order;
 import org.isisaddons.module.pdf.fixture.dom.Orders;
+import org.isisaddons.module.pdf.fixture.dom.templates.ArchivedCustomerConfirmation;
 import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmationJob;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmationJobs;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmationJobsTesting;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfAppearanceCache;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfArchive;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfDocumentCache;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfDocumentStorage;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfDocuments;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfOutputProfile;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfOutputSink;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfRenderingContexts;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfRenderingService;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfTemplate;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfTemplateRegistry;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfWarmUp;
 import org.isisaddons.module.pdf.fixture.scripts.PdfModuleAppSetupFixture;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.apache.isis.applib.value.Blob;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
 
 public class CustomerConfirmationTest extends PdfModuleIntegTest {
@@ -44,6 +84,36 @@ public void setUpData() throws Exception {
     @Inject
     private CustomerConfirmation customerConfirmation;
 
+    @Inject
+    private CustomerConfirmationJobs customerConfirmationJobs;
+
+    @Inject
+    private PdfDocumentCache pdfDocumentCache;
+
+    @Inject
+    private PdfDocuments pdfDocuments;
+
+    @Inject
+    private PdfAppearanceCache pdfAppearanceCache;
+
+    @Inject
+    private PdfWarmUp pdfWarmUp;
+
+    @Inject
+    private PdfRenderingContexts pdfRenderingContexts;
+
+    @Inject
+    private PdfArchive pdfArchive;
+
+    @Inject
+    private PdfDocumentStorage pdfDocumentStorage;
+
+    @Inject
+    private PdfTemplateRegistry pdfTemplateRegistry;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private Order order;
 
     @Before
@@ -61,4 +131,359 @@ public void downloadCustomerConfirmation() throws Exception {
         Assert.assertThat(blob.getMimeType().getBaseType(), is("application/pdf"));
         Assert.assertThat(blob.getBytes().length, is(greaterThan(0)));
     }
+
+    @Test
+    public void populatesOrderLines() throws Exception {
+        final Blob blob = customerConfirmation.downloadCustomerConfirmation(order);
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(blob.getBytes()))) {
+            final PDAcroForm acroForm = pdfDocument.getDocumentCatalog().getAcroForm();
+
+            // order lines are sorted by their description
+            Assert.assertThat(acroForm.getField("orderLine|1|desc").getValue(), is("Battery pack"));
+            Assert.assertThat(acroForm.getField("orderLine|1|cost").getValue(), is("9.99"));
+            Assert.assertThat(acroForm.getField("orderLine|1|quantity").getValue(), is("3"));
+        }
+    }
+
+    @Test
+    public void downloadMergedCustomerConfirmations() throws Exception {
+        final Blob blob = customerConfirmation.downloadMergedCustomerConfirmations(Arrays.asList(order, order));
+        Assert.assertThat(blob.getName(), is("customerConfirmations.pdf"));
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(blob.getBytes()))) {
+            // one page per order, with the fields baked into the page content
+            Assert.assertThat(pdfDocument.getNumberOfPages(), is(2));
+            Assert.assertThat(pdfDocument.getDocumentCatalog().getAcroForm(), is(nullValue()));
+
+            final PDFTextStripper textStripper = new PDFTextStripper();
+            textStripper.setStartPage(2);
+            Assert.assertThat(textStripper.getText(pdfDocument), containsString("Battery pack"));
+        }
+    }
+
+    @Test
+    public void writeCustomerConfirmationCachesWhatItStreams() throws Exception {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        customerConfirmation.writeCustomerConfirmation(order, false, target);
+
+        Assert.assertThat(target.size(), is(greaterThan(0)));
+        Assert.assertThat(customerConfirmation.renderCustomerConfirmation(order, false), is(target.toByteArray()));
+    }
+
+    @Test
+    public void writeCustomerConfirmationTellsTheLengthOfACachedConfirmation() throws Exception {
+        final List<Integer> lengths = new ArrayList<>();
+        final PdfDocuments.Length length = new PdfDocuments.Length() {
+            @Override
+            public void known(final int length) {
+                lengths.add(length);
+            }
+        };
+
+        pdfDocumentCache.invalidateAll();
+        final ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+        customerConfirmation.writeCustomerConfirmation(order, rendered, length);
+        Assert.assertThat(lengths.isEmpty(), is(true));
+
+        final ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        customerConfirmation.writeCustomerConfirmation(order, cached, length);
+        Assert.assertThat(lengths, is(Collections.singletonList(cached.size())));
+        Assert.assertThat(cached.toByteArray(), is(rendered.toByteArray()));
+    }
+
+    @Test
+    public void flattenedCustomerConfirmationIsSmaller() throws Exception {
+        final ByteArrayOutputStream form = new ByteArrayOutputStream();
+        customerConfirmation.writeCustomerConfirmation(order, false, form);
+        final ByteArrayOutputStream flattened = new ByteArrayOutputStream();
+        customerConfirmation.writeCustomerConfirmation(order, true, flattened);
+
+        Assert.assertThat(flattened.size(), is(lessThan(form.size())));
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(flattened.toByteArray()))) {
+            Assert.assertThat(pdfDocument.getDocumentCatalog().getAcroForm(), is(nullValue()));
+            Assert.assertThat(new PDFTextStripper().getText(pdfDocument), containsString("Battery pack"));
+        }
+    }
+
+    @Test
+    public void continuesOrderLinesOnFurtherPages() throws Exception {
+        // the template has room for six order lines; the fixture already has four
+        for (int i = 1; i <= 10; i++) {
+            order.add(String.format("Spare part %02d", i), BigDecimal.ONE, i);
+        }
+
+        final Blob blob = customerConfirmation.downloadCustomerConfirmation(order);
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(blob.getBytes()))) {
+            Assert.assertThat(pdfDocument.getNumberOfPages(), is(3));
+
+            final PDFTextStripper textStripper = new PDFTextStripper();
+            textStripper.setStartPage(3);
+            Assert.assertThat(textStripper.getText(pdfDocument), containsString("X-Men"));
+        }
+    }
+
+    @Test
+    public void downloadOfUnchangedOrderIsCached() throws Exception {
+        final byte[] first = customerConfirmation.downloadCustomerConfirmation(order).getBytes();
+        final long hits = pdfDocumentCache.getStats().hitCount();
+
+        final byte[] second = customerConfirmation.downloadCustomerConfirmation(order).getBytes();
+
+        Assert.assertThat(pdfDocumentCache.getStats().hitCount(), is(hits + 1));
+        Assert.assertThat(second, is(first));
+    }
+
+    @Test
+    public void versionChangesWithOrderLines() throws Exception {
+        final String version = customerConfirmation.versionOf(order);
+        Assert.assertThat(version, is(not(nullValue())));
+        Assert.assertThat(customerConfirmation.versionOf(order), is(version));
+
+        wrap(order).add("Spare part", BigDecimal.ONE, 1);
+        nextTransaction();
+
+        Assert.assertThat(customerConfirmation.versionOf(order), is(not(version)));
+    }
+
+    @Test
+    public void uncommittedChangesAreNotCached() throws Exception {
+        customerConfirmation.renderCustomerConfirmation(order, false);
+        Assert.assertThat(customerConfirmation.versionOf(order), is(not(nullValue())));
+
+        // the version of the order only changes once the change is committed
+        order.setCustomerName("Changed Customer");
+        Assert.assertThat(customerConfirmation.versionOf(order), is(nullValue()));
+
+        final byte[] changed = customerConfirmation.renderCustomerConfirmation(order, false);
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(changed))) {
+            final PDAcroForm acroForm = pdfDocument.getDocumentCatalog().getAcroForm();
+            Assert.assertThat(acroForm.getField("customerName").getValue(), is("Changed Customer"));
+        }
+
+        nextTransaction();
+        Assert.assertThat(customerConfirmation.versionOf(order), is(not(nullValue())));
+    }
+
+    @Test
+    public void appearancesOfRepeatedValuesAreReused() throws Exception {
+        customerConfirmation.renderCustomerConfirmation(order, false);
+        final long hits = pdfAppearanceCache.getStats().hitCount();
+
+        // not taken from the document cache, as flattened confirmations are kept apart
+        final byte[] flattened = customerConfirmation.renderCustomerConfirmation(order, true);
+
+        Assert.assertThat(pdfAppearanceCache.getStats().hitCount(), is(greaterThan(hits)));
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(flattened))) {
+            Assert.assertThat(new PDFTextStripper().getText(pdfDocument), containsString("Battery pack"));
+        }
+    }
+
+    @Test
+    public void warmUpDoesNotCacheDocuments() throws Exception {
+        final long requests = pdfDocumentCache.getStats().requestCount();
+
+        pdfWarmUp.warmUp();
+
+        Assert.assertThat(pdfDocumentCache.getStats().requestCount(), is(requests));
+    }
+
+    @Test
+    public void warmUpSamplesCoverContinuationPages() throws Exception {
+        final List<Order> samples = customerConfirmation.getType().newSamples();
+        int rowPageCount = 0;
+        for (final Order sample : samples) {
+            rowPageCount = Math.max(rowPageCount, pdfDocuments.valuesOf(customerConfirmation.getType(), sample).getRowPageCount());
+        }
+        Assert.assertThat(rowPageCount, is(greaterThan(1)));
+
+        pdfWarmUp.ensureWarmedUp();
+    }
+
+    @Test
+    public void renderingContextsAreReused() throws Exception {
+        pdfWarmUp.warmUp();
+        final long created = pdfRenderingContexts.getCreatedCount();
+
+        pdfWarmUp.warmUp();
+
+        Assert.assertThat(pdfRenderingContexts.getCreatedCount(), is(created));
+        Assert.assertThat(pdfRenderingContexts.getPooledCount(), is(greaterThan(0)));
+    }
+
+    @Test
+    public void progressIsToldForEachDocument() throws Exception {
+        final List<Order> orders = Collections.nCopies(5, order);
+        final List<Integer> counts = new ArrayList<>();
+        final PdfRenderingService.Progress progress = new PdfRenderingService.Progress() {
+            @Override
+            public void completed(final int count, final long elapsedNanos) {
+                counts.add(count);
+            }
+        };
+
+        pdfDocuments.mergeAll(customerConfirmation.getType(), orders, new ByteArrayOutputStream(), progress);
+        Assert.assertThat(counts, is(Arrays.asList(1, 2, 3, 4, 5)));
+
+        counts.clear();
+        pdfDocuments.renderAll(customerConfirmation.getType(), orders, false, new PdfOutputSink<Order>() {
+            @Override
+            public void accept(final Order entity, final byte[] document) {
+            }
+        }, progress);
+        Assert.assertThat(counts, is(Arrays.asList(1, 2, 3, 4, 5)));
+    }
+
+    @Test
+    public void failedMergeReleasesTheDocumentsInFlight() throws Exception {
+        final Map<String, String> scratch = new HashMap<>();
+        scratch.put("isis.module.pdf.scratch.directory", temporaryFolder.getRoot().getPath());
+        scratch.put("isis.module.pdf.scratch.threshold", "0");
+        pdfDocumentStorage.init(scratch);
+        // room in the pool for every context the merge creates
+        pdfRenderingContexts.init(Collections.singletonMap("isis.module.pdf.rendering.contexts", "1000"));
+        final long created = pdfRenderingContexts.getCreatedCount();
+        try {
+            final List<Order> failing = new AbstractList<Order>() {
+                @Override
+                public Order get(final int index) {
+                    if (index == 10) {
+                        throw new IllegalStateException("Unable to read order " + index);
+                    }
+                    return order;
+                }
+
+                @Override
+                public int size() {
+                    return 20;
+                }
+            };
+            try {
+                pdfDocuments.mergeAll(customerConfirmation.getType(), failing, new ByteArrayOutputStream());
+                Assert.fail();
+            } catch (IllegalStateException expected) {
+            }
+
+            Assert.assertThat(pdfRenderingContexts.getPooledCount(), is((int) (pdfRenderingContexts.getCreatedCount() - created)));
+            Assert.assertThat(temporaryFolder.getRoot().list().length, is(0));
+        } finally {
+            pdfDocumentStorage.init(Collections.<String, String>emptyMap());
+            pdfRenderingContexts.init(Collections.<String, String>emptyMap());
+        }
+    }
+
+    @Test
+    public void compactProfileIsSmaller() throws Exception {
+        final byte[] fast = pdfDocuments.render(customerConfirmation.getType(), order, false, PdfOutputProfile.FAST);
+        final byte[] compact = pdfDocuments.render(customerConfirmation.getType(), order, false, PdfOutputProfile.COMPACT);
+
+        Assert.assertThat(compact.length, is(lessThan(fast.length)));
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(compact))) {
+            final PDAcroForm acroForm = pdfDocument.getDocumentCatalog().getAcroForm();
+            Assert.assertThat(acroForm.getField("orderLine|1|desc").getValue(), is("Battery pack"));
+        }
+    }
+
+    @Test
+    public void documentTypeIsRegistered() throws Exception {
+        Assert.assertThat(pdfDocuments.lookup("CustomerConfirmation"), is(sameInstance((Object) customerConfirmation.getType())));
+
+        final byte[] document = pdfDocuments.render(customerConfirmation.getType(), order, false);
+        Assert.assertThat(document, is(customerConfirmation.renderCustomerConfirmation(order, false)));
+    }
+
+    @Test
+    public void binderIsCompiledAgainForARedeployedTemplate() throws Exception {
+        pdfDocuments.valuesOf(customerConfirmation.getType(), order);
+        pdfTemplateRegistry.invalidateAll();
+        pdfDocumentCache.invalidateAll();
+
+        final PdfTemplate template = pdfTemplateRegistry.lookup(customerConfirmation.getType().getTemplateSource());
+        Assert.assertThat(
+                pdfDocuments.valuesOf(customerConfirmation.getType(), order).getFieldIndex(),
+                is(sameInstance(template.getFieldIndex())));
+        try (PDDocument pdfDocument = PDDocument.load(new ByteArrayInputStream(customerConfirmation.renderCustomerConfirmation(order, false)))) {
+            final PDAcroForm acroForm = pdfDocument.getDocumentCatalog().getAcroForm();
+            Assert.assertThat(acroForm.getField("orderLine|1|desc").getValue(), is("Battery pack"));
+        }
+    }
+
+    @Test
+    public void renderCustomerConfirmationInBackground() throws Exception {
+        final CustomerConfirmationJob job = customerConfirmation.renderCustomerConfirmationInBackground(order);
+        Assert.assertThat(job.getStatus(), is(CustomerConfirmationJob.Status.QUEUED));
+
+        CustomerConfirmationJobsTesting.awaitRender(customerConfirmationJobs, job, 30, TimeUnit.SECONDS);
+        job.refresh();
+
+        Assert.assertThat(job.getStatus(), is(CustomerConfirmationJob.Status.COMPLETED));
+        final Blob blob = job.download();
+        Assert.assertThat(blob.getName(), is("customerConfirmation-1234.pdf"));
+        try (PDDocument document = PDDocument.load(new ByteArrayInputStream(blob.getBytes()))) {
+            Assert.assertThat(document.getNumberOfPages(), is(1));
+        }
+    }
+
+    @Test
+    public void backgroundRenderIsQueuedAgainWhenItsDocumentHasBeenEvicted() throws Exception {
+        final CustomerConfirmationJob job = customerConfirmation.renderCustomerConfirmationInBackground(order);
+        CustomerConfirmationJobsTesting.awaitRender(customerConfirmationJobs, job, 30, TimeUnit.SECONDS);
+
+        // the rendered document is held by the cache until the job is polled
+        pdfDocumentCache.invalidateAll();
+        job.refresh();
+        Assert.assertThat(job.getStatus(), is(CustomerConfirmationJob.Status.QUEUED));
+
+        CustomerConfirmationJobsTesting.awaitRender(customerConfirmationJobs, job, 30, TimeUnit.SECONDS);
+        job.refresh();
+        Assert.assertThat(job.getStatus(), is(CustomerConfirmationJob.Status.COMPLETED));
+        try (PDDocument document = PDDocument.load(new ByteArrayInputStream(job.download().getBytes()))) {
+            Assert.assertThat(document.getNumberOfPages(), is(1));
+        }
+    }
+
+    @Test
+    public void archiveCustomerConfirmation() throws Exception {
+        pdfArchive.init(Collections.singletonMap("isis.module.pdf.archive.directory", temporaryFolder.getRoot().getPath()));
+        try {
+            final ArchivedCustomerConfirmation archived = customerConfirmation.archiveCustomerConfirmation(order);
+            Assert.assertThat(archived.getOrder(), is(order));
+
+            // the order is unchanged, so is its confirmation
+            final long deduplicated = pdfArchive.getDeduplicatedCount();
+            Assert.assertThat(customerConfirmation.archiveCustomerConfirmation(order).getDigest(), is(archived.getDigest()));
+            Assert.assertThat(pdfArchive.getDeduplicatedCount(), is(deduplicated + 1));
+            Assert.assertThat(customerConfirmation.archivedCustomerConfirmations(order).size(), is(1));
+
+            final Blob blob = archived.download();
+            Assert.assertThat(blob.getName(), is("customerConfirmation-1234.pdf"));
+            Assert.assertThat(blob.getBytes(), is(customerConfirmation.renderCustomerConfirmation(order)));
+        } finally {
+            pdfArchive.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentArchivesOfTheSameDocumentStoreItOnce() throws Exception {
+        pdfArchive.init(Collections.singletonMap("isis.module.pdf.archive.directory", temporaryFolder.getRoot().getPath()));
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final byte[] document = customerConfirmation.renderCustomerConfirmation(order);
+            final long archived = pdfArchive.getArchivedCount();
+            final long deduplicated = pdfArchive.getDeduplicatedCount();
+            final List<Callable<String>> archives = Collections.<Callable<String>>nCopies(32, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return pdfArchive.archive(document);
+                }
+            });
+            for (final Future<String> digest : executor.invokeAll(archives)) {
+                digest.get();
+            }
+
+            Assert.assertThat(pdfArchive.getArchivedCount(), is(archived + 32));
+            Assert.assertThat(pdfArchive.getDeduplicatedCount(), is(deduplicated + 31));
+        } finally {
+            executor.shutdown();
+            pdfArchive.shutdown();
+        }
+    }
 }
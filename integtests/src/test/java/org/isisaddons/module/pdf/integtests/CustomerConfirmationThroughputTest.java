@@ -0,0 +1,112 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.integtests;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import javax.inject.Inject;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.isisaddons.module.pdf.fixture.dom.Orders;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.scripts.PdfModuleAppLoadFixture;
+import org.joda.time.LocalDate;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.isis.applib.services.clock.ClockService;
+import org.apache.isis.applib.services.jdosupport.IsisJdoSupport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * Generates the customer confirmations of many orders, as created by the {@link PdfModuleAppLoadFixture}, and reports
+ * the throughput.
+ */
+public class CustomerConfirmationThroughputTest extends PdfModuleIntegTest {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CustomerConfirmationThroughputTest.class);
+
+    private static final int ORDER_COUNT = 200;
+    // more than fit on the first page of the template
+    private static final int LINE_COUNT = 15;
+
+    @Before
+    public void setUpData() throws Exception {
+        scenarioExecution().install(new PdfModuleAppLoadFixture().setOrderCount(ORDER_COUNT).setLineCount(LINE_COUNT));
+    }
+
+    @Inject
+    private Orders orders;
+
+    @Inject
+    private CustomerConfirmation customerConfirmation;
+
+    @Inject
+    private ClockService clockService;
+
+    @Inject
+    private IsisJdoSupport isisJdoSupport;
+
+    private List<Order> all;
+
+    @Before
+    public void setUp() throws Exception {
+        nextTransaction();
+        // so that the orders are read from the database, as in production
+        isisJdoSupport.getJdoPersistenceManager().evictAll();
+
+        final LocalDate today = clockService.now();
+        final long start = System.currentTimeMillis();
+        all = orders.findByDateBetweenWithOrderLines(today.minusDays(7), today);
+        LOG.info("read {} orders in {} ms", all.size(), System.currentTimeMillis() - start);
+    }
+
+    @Test
+    public void createsOrdersWithLines() throws Exception {
+        Assert.assertThat(all.size(), is(ORDER_COUNT));
+        for (final Order order : all) {
+            Assert.assertThat(order.getOrderLines().size(), is(LINE_COUNT));
+        }
+    }
+
+    @Test
+    public void writeCustomerConfirmations() throws Exception {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final long start = System.nanoTime();
+        final int written = customerConfirmation.writeCustomerConfirmations(all, target);
+        report("ZIP archive", written, target.size(), System.nanoTime() - start);
+
+        Assert.assertThat(written, is(ORDER_COUNT));
+    }
+
+    @Test
+    public void writeMergedCustomerConfirmations() throws Exception {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final long start = System.nanoTime();
+        final int written = customerConfirmation.writeMergedCustomerConfirmations(all, target);
+        report("merged PDF", written, target.size(), System.nanoTime() - start);
+
+        Assert.assertThat(written, is(ORDER_COUNT));
+        Assert.assertThat(target.size(), is(greaterThan(0)));
+    }
+
+    private static void report(final String what, final int documents, final int bytes, final long nanos) {
+        LOG.info(String.format("%s: %d confirmations of %d lines, %d KB, in %d ms (%.1f confirmations/s)",
+                what, documents, LINE_COUNT, bytes / 1024, nanos / 1000000, documents * 1e9 / nanos));
+    }
+}
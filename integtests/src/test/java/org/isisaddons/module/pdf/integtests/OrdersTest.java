@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.integtests;
+
+import java.math.BigDecimal;
+import java.util.List;
+import javax.inject.Inject;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.isisaddons.module.pdf.fixture.dom.Orders;
+import org.isisaddons.module.pdf.fixture.scripts.PdfModuleAppSetupFixture;
+import org.joda.time.LocalDate;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.apache.isis.applib.services.clock.ClockService;
+import org.apache.isis.applib.services.jdosupport.IsisJdoSupport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class OrdersTest extends PdfModuleIntegTest {
+
+    private static final int ORDER_COUNT = 10;
+
+    @Before
+    public void setUpData() throws Exception {
+        scenarioExecution().install(new PdfModuleAppSetupFixture());
+    }
+
+    @Inject
+    private Orders orders;
+
+    @Inject
+    private ClockService clockService;
+
+    @Inject
+    private IsisJdoSupport isisJdoSupport;
+
+    private LocalDate today;
+
+    @Before
+    public void setUp() throws Exception {
+        today = clockService.now();
+        for (int i = 0; i < ORDER_COUNT - 1; i++) {
+            final Order order = wrap(orders).create("B" + i, "Bulk Customer", today, null);
+            wrap(order).add("Article " + i, BigDecimal.valueOf(1.23), 1);
+            wrap(order).add("Spare part " + i, BigDecimal.valueOf(4.56), 2);
+        }
+        nextTransaction();
+        // so that neither the orders nor their lines are loaded already
+        isisJdoSupport.getJdoPersistenceManager().evictAll();
+    }
+
+    @Test
+    public void findByDateBetweenWithOrderLines() throws Exception {
+        final SqlStatementCounter counter = SqlStatementCounter.start();
+        int orderLineCount = 0;
+        final List<Order> found;
+        try {
+            found = orders.findByDateBetweenWithOrderLines(today.minusDays(7), today);
+            for (final Order order : found) {
+                orderLineCount += order.getOrderLines().size();
+            }
+        } finally {
+            counter.stop();
+        }
+
+        Assert.assertThat(found.size(), is(ORDER_COUNT));
+        Assert.assertThat(orderLineCount, is(4 + 2 * (ORDER_COUNT - 1)));
+        // one for the orders and one for the lines of all of them, however many orders there are
+        Assert.assertThat(counter.getSelectCount(), is(lessThanOrEqualTo(2)));
+    }
+
+    @Test
+    public void findByDateBetweenLoadsOrderLinesPerOrder() throws Exception {
+        final SqlStatementCounter counter = SqlStatementCounter.start();
+        try {
+            for (final Order order : orders.findByDateBetween(today.minusDays(7), today)) {
+                order.getOrderLines().size();
+            }
+        } finally {
+            counter.stop();
+        }
+
+        // the cost avoided by the above
+        Assert.assertThat(counter.getSelectCount(), is(greaterThan(ORDER_COUNT)));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.integtests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.common.io.Resources;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfCompactWriter;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfFieldIndex;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfFieldValues;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfIncrementalWriter;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfTemplate;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Writes copies of the customer confirmation template incrementally, and checks that those which cannot be written
+ * so are left to be saved in full.
+ */
+public class PdfIncrementalWriterTest {
+
+    private static final Pattern STARTXREF = Pattern.compile("startxref\\s+(\\d+)\\s+%%EOF\\s*$");
+
+    private byte[] templateBytes;
+    private PdfTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        templateBytes = Resources.toByteArray(Resources.getResource(CustomerConfirmation.class, "CustomerConfirmation.pdf"));
+        template = PdfTemplate.parse("CustomerConfirmation.pdf", templateBytes);
+    }
+
+    @Test
+    public void appendsTheChangesToTheTemplate() throws Exception {
+        final PdfFieldIndex index = template.getFieldIndex();
+        final PdfFieldValues values = new PdfFieldValues(index);
+        values.set(index.slotOf("orderNumber"), "42");
+        values.set(index.slotOf("customerName"), "Mr. Smith");
+
+        final PdfIncrementalWriter writer = new PdfIncrementalWriter(template);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (PDDocument copy = writer.newDocument(values, PdfTemplate.HEAP)) {
+            assertThat(writer.write(copy, target), is(true));
+        }
+        final byte[] bytes = target.toByteArray();
+
+        // the template, unchanged
+        assertThat(Arrays.equals(Arrays.copyOf(bytes, templateBytes.length), templateBytes), is(true));
+
+        // followed by a single update, which refers back to the cross-reference table of the template
+        final String update = new String(bytes, templateBytes.length, bytes.length - templateBytes.length, StandardCharsets.ISO_8859_1);
+        assertThat(count(update, "(?m)^xref$"), is(1));
+        assertThat(count(update, "(?m)^startxref$"), is(1));
+        final Matcher prev = Pattern.compile("/Prev (\\d+)").matcher(update);
+        assertThat(prev.find(), is(true));
+        assertThat(Long.parseLong(prev.group(1)), is(startXrefOf(templateBytes)));
+        final long startXref = startXrefOf(bytes);
+        assertThat(new String(bytes, (int) startXref, 4, StandardCharsets.ISO_8859_1), is("xref"));
+
+        try (PDDocument document = PDDocument.load(new ByteArrayInputStream(bytes))) {
+            final PDAcroForm form = document.getDocumentCatalog().getAcroForm();
+            assertThat(form.getField("orderNumber").getValue(), is("42"));
+            assertThat(form.getField("customerName").getValue(), is("Mr. Smith"));
+        }
+    }
+
+    @Test
+    public void leavesContinuationPagesToBeSavedInFull() throws Exception {
+        final PdfFieldIndex index = template.getFieldIndex();
+        final PdfFieldIndex.Grid grid = index.grid("orderLine");
+        final PdfFieldValues values = new PdfFieldValues(index);
+        for (int row = 0; row <= grid.getRowCount(); row++) {
+            values.addRow(grid, new String[] {"Line " + row, "1", "1.00"});
+        }
+
+        assertWrittenInFull(template, values, false);
+    }
+
+    @Test
+    public void leavesTemplatesWithACrossReferenceStreamToBeSavedInFull() throws Exception {
+        final ByteArrayOutputStream compacted = new ByteArrayOutputStream();
+        try (PDDocument document = template.newDocument()) {
+            assertThat(new PdfCompactWriter().write(document, compacted), is(true));
+        }
+        final PdfTemplate compactTemplate = PdfTemplate.parse("CustomerConfirmation.pdf", compacted.toByteArray());
+
+        assertWrittenInFull(compactTemplate, new PdfFieldValues(compactTemplate.getFieldIndex()), false);
+    }
+
+    @Test
+    public void leavesEncryptedTemplatesToBeSavedInFull() throws Exception {
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (PDDocument document = PDDocument.load(new ByteArrayInputStream(templateBytes))) {
+            // only the presence of the dictionary matters, so no security handler is needed to write it
+            final COSDictionary encrypt = new COSDictionary();
+            encrypt.setName(COSName.FILTER, "Standard");
+            document.getDocument().getTrailer().setItem(COSName.ENCRYPT, encrypt);
+            document.save(encrypted);
+        }
+        final PdfTemplate encryptedTemplate = PdfTemplate.parse("CustomerConfirmation.pdf", encrypted.toByteArray());
+
+        assertWrittenInFull(encryptedTemplate, new PdfFieldValues(encryptedTemplate.getFieldIndex()), false);
+    }
+
+    @Test
+    public void leavesCopiesWithMorePagesToBeSavedInFull() throws Exception {
+        assertWrittenInFull(template, new PdfFieldValues(template.getFieldIndex()), true);
+    }
+
+    private static void assertWrittenInFull(
+            final PdfTemplate template,
+            final PdfFieldValues values,
+            final boolean addPage) throws IOException {
+        final PdfIncrementalWriter writer = new PdfIncrementalWriter(template);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (PDDocument copy = writer.newDocument(values, PdfTemplate.HEAP)) {
+            if (addPage) {
+                copy.addPage(new PDPage());
+            }
+            assertThat(writer.write(copy, target), is(false));
+        }
+        assertThat(target.size(), is(0));
+    }
+
+    private static int count(final String text, final String regex) {
+        final Matcher matcher = Pattern.compile(regex).matcher(text);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static long startXrefOf(final byte[] bytes) {
+        final Matcher matcher = STARTXREF.matcher(new String(bytes, StandardCharsets.ISO_8859_1));
+        assertThat(matcher.find(), is(true));
+        return Long.parseLong(matcher.group(1));
+    }
+}
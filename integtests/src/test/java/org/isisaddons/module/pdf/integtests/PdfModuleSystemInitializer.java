@@ -46,8 +46,7 @@ public SimpleAppSystemBuilder() {
             with(new DataNucleusPersistenceMechanismInstaller());
 
             // services annotated with @DomainService
-            withServicesIn( "org.isisaddons.module.docx.dom"
-                            ,"org.isisaddons.module.docx.fixture"
+            withServicesIn( "org.isisaddons.module.pdf.fixture"
                             ,"org.apache.isis.core.wrapper"
                             ,"org.apache.isis.applib"
                             ,"org.apache.isis.core.metamodel.services"
@@ -59,7 +58,7 @@ public SimpleAppSystemBuilder() {
 
         private static IsisConfiguration testConfiguration() {
             final IsisConfigurationForJdoIntegTests testConfiguration = new IsisConfigurationForJdoIntegTests();
-            testConfiguration.addRegisterEntitiesPackagePrefix("org.isisaddons.module.docx.fixture.dom");
+            testConfiguration.addRegisterEntitiesPackagePrefix("org.isisaddons.module.pdf.fixture.dom");
             return testConfiguration;
         }
     }
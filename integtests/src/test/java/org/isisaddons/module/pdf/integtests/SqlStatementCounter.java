@@ -0,0 +1,72 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.integtests;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Counts the <tt>SELECT</tt> statements DataNucleus issues between {@link #start()} and {@link #stop()}, as logged
+ * to the <tt>DataNucleus.Datastore.Native</tt> category.
+ */
+class SqlStatementCounter extends AppenderSkeleton {
+
+    private static final String CATEGORY = "DataNucleus.Datastore.Native";
+
+    private final Logger logger = Logger.getLogger(CATEGORY);
+    private final AtomicInteger selectCount = new AtomicInteger();
+    private Level formerLevel;
+
+    private SqlStatementCounter() {
+    }
+
+    static SqlStatementCounter start() {
+        final SqlStatementCounter counter = new SqlStatementCounter();
+        counter.formerLevel = counter.logger.getLevel();
+        // the statements are logged at debug level
+        counter.logger.setLevel(Level.DEBUG);
+        counter.logger.addAppender(counter);
+        return counter;
+    }
+
+    void stop() {
+        logger.removeAppender(this);
+        logger.setLevel(formerLevel);
+    }
+
+    int getSelectCount() {
+        return selectCount.get();
+    }
+
+    @Override
+    protected void append(final LoggingEvent event) {
+        final String statement = String.valueOf(event.getMessage()).trim();
+        if (statement.regionMatches(true, 0, "SELECT", 0, "SELECT".length())) {
+            selectCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.webapp;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.isisaddons.module.pdf.fixture.dom.Order;
+import org.isisaddons.module.pdf.fixture.dom.Orders;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfDocuments;
+import org.apache.isis.core.runtime.system.context.IsisContext;
+
+/**
+ * Streams the customer confirmation of an order straight into the response, eg <tt>/confirmations/1234</tt>
+ * for the order numbered <tt>1234</tt>.
+ *
+ * <p>
+ * Unlike the <tt>downloadCustomerConfirmation</tt> action, which returns the document as a
+ * {@link org.apache.isis.applib.value.Blob}, the document is written straight to the response: from the cache of
+ * rendered documents, with a <tt>Content-Length</tt>, if the order has not changed since it was last rendered, and
+ * otherwise while it is being saved (and so without a <tt>Content-Length</tt>). Only a request for a byte range has
+ * the whole document rendered first.
+ * </p>
+ *
+ * <p>
+ * The response carries the {@link CustomerConfirmation#versionOf(Order) version} of the confirmation as its
+ * <tt>ETag</tt>, so that clients polling for a confirmation can send it back as <tt>If-None-Match</tt>: while neither
+ * the order, its lines nor the template have changed, they get a <tt>304 Not Modified</tt> without the document being
+ * rendered or transferred. A single byte range may be requested with <tt>Range</tt> (and <tt>If-Range</tt>), for
+ * resuming an interrupted transfer; several ranges are answered with the whole document.
+ * </p>
+ *
+ * <p>
+ * As specified in <tt>web.xml</tt>, requests pass through the <tt>IsisSessionFilter</tt> and the
+ * transaction filter of the Restful Objects viewer first.
+ * </p>
+ */
+public class CustomerConfirmationServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final String pathInfo = request.getPathInfo();
+        final String number = pathInfo != null ? pathInfo.substring(1) : "";
+        if (number.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final Order order = lookupService(Orders.class).findByNumber(number);
+        if (order == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No order '" + number + "'");
+            return;
+        }
+
+        final CustomerConfirmation customerConfirmation = lookupService(CustomerConfirmation.class);
+        final String version = customerConfirmation.versionOf(order);
+        final String entityTag = version != null ? "\"" + version + "\"" : null;
+        if (entityTag != null) {
+            response.setHeader("ETag", entityTag);
+            // may be stored, but must be revalidated
+            response.setHeader("Cache-Control", "private, no-cache");
+            if (matches(request.getHeader("If-None-Match"), entityTag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        response.setContentType(CustomerConfirmation.MIME_TYPE);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + customerConfirmation.nameOf(order) + "\"");
+        response.setHeader("Accept-Ranges", "bytes");
+
+        final String range = request.getHeader("Range");
+        if (!isRangeRequested(range, request.getHeader("If-Range"), entityTag)) {
+            try {
+                customerConfirmation.writeCustomerConfirmation(order, response.getOutputStream(), new PdfDocuments.Length() {
+                    @Override
+                    public void known(final int length) {
+                        response.setContentLength(length);
+                    }
+                });
+            } catch (Exception e) {
+                throw new ServletException(e);
+            }
+            return;
+        }
+
+        // the range is only known once the document's length is
+        final byte[] document;
+        try {
+            document = customerConfirmation.renderCustomerConfirmation(order);
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+        final long[] bounds = boundsOf(range, document.length);
+        if (bounds == null) {
+            response.setContentLength(document.length);
+            response.getOutputStream().write(document);
+        } else if (bounds.length == 0) {
+            response.setHeader("Content-Range", "bytes */" + document.length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        } else {
+            final int first = (int) bounds[0];
+            final int length = (int) (bounds[1] - bounds[0] + 1);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + document.length);
+            response.setContentLength(length);
+            response.getOutputStream().write(document, first, length);
+        }
+    }
+
+    /**
+     * Whether the value of an <tt>If-None-Match</tt> header, if any, lists the entity tag (compared weakly, as for
+     * a <tt>GET</tt>) or is <tt>*</tt>.
+     */
+    static boolean matches(final String ifNoneMatch, final String entityTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (final String candidate : ifNoneMatch.split(",")) {
+            final String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(entityTag) || tag.equals("W/" + entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the <tt>Range</tt> header, if any, is to be honoured: only if there is no <tt>If-Range</tt> header, or
+     * it names the current entity tag exactly. A stale or weak tag, or a date, has the whole document sent instead.
+     */
+    static boolean isRangeRequested(final String range, final String ifRange, final String entityTag) {
+        return range != null && (ifRange == null || entityTag != null && ifRange.trim().equals(entityTag));
+    }
+
+    /**
+     * The first and the last byte of the single range of a <tt>Range</tt> header, for example <tt>bytes=0-499</tt>,
+     * <tt>bytes=500-</tt> or <tt>bytes=-500</tt> (the last 500 bytes).
+     *
+     * @return The first and last byte (inclusive); an empty array if the range is not satisfiable; or <tt>null</tt> if
+     *         the header is to be ignored, being malformed or asking for several ranges
+     */
+    static long[] boundsOf(final String range, final long length) {
+        final String prefix = "bytes=";
+        if (!range.startsWith(prefix) || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring(prefix.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        final long first;
+        final long last;
+        try {
+            if (dash == 0) {
+                final long suffixLength = Long.parseLong(spec.substring(1));
+                if (suffixLength < 0) {
+                    return null;
+                }
+                if (suffixLength == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffixLength);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1
+                        ? length - 1
+                        : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first < 0 || last < first) {
+            // "bytes=500-100" is malformed, "bytes=2000-" of 1000 bytes is not satisfiable
+            return first >= length ? new long[0] : null;
+        }
+        return new long[] { first, last };
+    }
+
+    private static <T> T lookupService(final Class<T> serviceClass) {
+        for (final Object service : IsisContext.getServices()) {
+            if (serviceClass.isInstance(service)) {
+                return serviceClass.cast(service);
+            }
+        }
+        throw new IllegalStateException("No service of type " + serviceClass.getName());
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.webapp;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.isisaddons.module.pdf.fixture.dom.templates.ArchivedCustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.dom.templates.ArchivedCustomerConfirmations;
+import org.isisaddons.module.pdf.fixture.dom.templates.CustomerConfirmation;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfArchive;
+import org.apache.isis.core.runtime.system.context.IsisContext;
+
+/**
+ * Serves archived documents from the {@link PdfArchive} by their digest, eg <tt>/archive/9f86d0...</tt>, as found on
+ * an {@link ArchivedCustomerConfirmation}.
+ *
+ * <p>
+ * The document is copied from its segment file in the archive to the response rather than being rendered again, in
+ * parts rather than being read into a single array first. This is not a zero-copy transfer: the servlet API only
+ * offers an output stream, so the bytes pass through a small buffer on the heap on their way to the response. As an
+ * archived document never changes, its digest serves as its <tt>ETag</tt> and it may be cached for good; a single
+ * byte range may be requested as from the {@link CustomerConfirmationServlet}.
+ * </p>
+ *
+ * <p>
+ * As specified in <tt>web.xml</tt>, requests pass through the <tt>IsisSessionFilter</tt> and the
+ * transaction filter of the Restful Objects viewer first.
+ * </p>
+ */
+public class PdfArchiveServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final String pathInfo = request.getPathInfo();
+        final String digest = pathInfo != null ? pathInfo.substring(1) : "";
+        final PdfArchive pdfArchive = lookupService(PdfArchive.class);
+        final long length = pdfArchive.sizeOf(digest);
+        if (length < 0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final String entityTag = "\"" + digest + "\"";
+        response.setHeader("ETag", entityTag);
+        response.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        if (CustomerConfirmationServlet.matches(request.getHeader("If-None-Match"), entityTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        final ArchivedCustomerConfirmation archived = lookupService(ArchivedCustomerConfirmations.class).findByDigest(digest);
+        final String name = archived != null ? archived.getName() : digest + ".pdf";
+        response.setContentType(CustomerConfirmation.MIME_TYPE);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+        response.setHeader("Accept-Ranges", "bytes");
+
+        final String range = request.getHeader("Range");
+        final String ifRange = request.getHeader("If-Range");
+        final long[] bounds = CustomerConfirmationServlet.isRangeRequested(range, ifRange, entityTag)
+                ? CustomerConfirmationServlet.boundsOf(range, length)
+                : null;
+        long first = 0;
+        long count = length;
+        if (bounds != null && bounds.length == 0) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        } else if (bounds != null) {
+            first = bounds[0];
+            count = bounds[1] - bounds[0] + 1;
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+        }
+        response.setContentLength((int) count);
+        // not closed, which would close the response
+        pdfArchive.transferTo(digest, first, count, Channels.newChannel(response.getOutputStream()));
+    }
+
+    private static <T> T lookupService(final Class<T> serviceClass) {
+        for (final Object service : IsisContext.getServices()) {
+            if (serviceClass.isInstance(service)) {
+                return serviceClass.cast(service);
+            }
+        }
+        throw new IllegalStateException("No service of type " + serviceClass.getName());
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.webapp;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.isisaddons.module.pdf.fixture.dom.templates.InMemoryPdfMetrics;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfMetrics;
+import org.apache.isis.core.runtime.system.context.IsisContext;
+
+/**
+ * Shows the measurements of the {@link InMemoryPdfMetrics} as plain text, at <tt>/pdf-metrics</tt>.
+ *
+ * <p>
+ * If another {@link PdfMetrics} implementation has been registered, the measurements are not held here and the
+ * servlet responds with 404.
+ * </p>
+ */
+public class PdfMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final InMemoryPdfMetrics metrics = lookupService(InMemoryPdfMetrics.class);
+        if (metrics == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Metrics are not held in memory");
+            return;
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(metrics.report());
+    }
+
+    private static <T> T lookupService(final Class<T> serviceClass) {
+        for (final Object service : IsisContext.getServices()) {
+            if (serviceClass.isInstance(service)) {
+                return serviceClass.cast(service);
+            }
+        }
+        return null;
+    }
+
+}
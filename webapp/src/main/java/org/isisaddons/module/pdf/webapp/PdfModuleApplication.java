@@ -32,6 +32,8 @@
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Response;
 import org.apache.wicket.request.http.WebRequest;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfWarmUp;
+import org.apache.isis.core.runtime.system.context.IsisContext;
 import org.apache.isis.viewer.wicket.viewer.IsisWicketApplication;
 import org.apache.isis.viewer.wicket.viewer.integration.wicket.AuthenticatedWebSessionForIsis;
 
@@ -67,6 +69,21 @@ public class PdfModuleApplication extends IsisWicketApplication {
      */
     private final static boolean DEMO_MODE_USING_CREDENTIALS_AS_QUERYARGS = false;
     
+    /**
+     * Once Isis has booted, warms up the generation of PDF documents (see {@link PdfWarmUp}), so that the first
+     * confirmations requested after a deployment are not slowed down by it. Requests to any other servlet are held by
+     * the {@link PdfWarmUpListener} until the warm-up is over.
+     */
+    @Override
+    protected void init() {
+        super.init();
+        for (final Object service : IsisContext.getServices()) {
+            if (service instanceof PdfWarmUp) {
+                ((PdfWarmUp) service).ensureWarmedUp();
+            }
+        }
+    }
+
     @Override
     public Session newSession(final Request request, final Response response) {
         if(!DEMO_MODE_USING_CREDENTIALS_AS_QUERYARGS) {
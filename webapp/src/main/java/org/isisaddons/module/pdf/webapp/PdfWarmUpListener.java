@@ -0,0 +1,64 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.webapp;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import org.isisaddons.module.pdf.fixture.dom.templates.PdfWarmUp;
+import org.apache.isis.core.runtime.system.context.IsisContext;
+
+/**
+ * Holds each request, whichever servlet or filter it is for, until the generation of PDF documents has been
+ * {@link PdfWarmUp warmed up}, so that no request pays for the warm-up nor competes with it.
+ *
+ * <p>
+ * The warm-up is started by the {@link PdfModuleApplication} as soon as Isis has booted, so usually it is over before
+ * the first request arrives; should a request arrive first, the warm-up is run for it, and any other request waits for
+ * it to finish. Requests that arrive before Isis has booted are let through.
+ * </p>
+ */
+public class PdfWarmUpListener implements ServletRequestListener {
+
+    private volatile PdfWarmUp pdfWarmUp;
+
+    @Override
+    public void requestInitialized(final ServletRequestEvent event) {
+        PdfWarmUp warmUp = pdfWarmUp;
+        if (warmUp == null) {
+            if (!IsisContext.exists()) {
+                return;
+            }
+            warmUp = pdfWarmUp = lookupService(PdfWarmUp.class);
+            if (warmUp == null) {
+                return;
+            }
+        }
+        warmUp.ensureWarmedUp();
+    }
+
+    @Override
+    public void requestDestroyed(final ServletRequestEvent event) {
+    }
+
+    private static <T> T lookupService(final Class<T> serviceClass) {
+        for (final Object service : IsisContext.getServices()) {
+            if (serviceClass.isInstance(service)) {
+                return serviceClass.cast(service);
+            }
+        }
+        return null;
+    }
+
+}
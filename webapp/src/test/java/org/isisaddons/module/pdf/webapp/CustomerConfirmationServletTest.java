@@ -0,0 +1,144 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.pdf.webapp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+/**
+ * The conditional and range requests of the {@link CustomerConfirmationServlet}, which the {@link PdfArchiveServlet}
+ * answers alike.
+ */
+public class CustomerConfirmationServletTest {
+
+    private static final String ENTITY_TAG = "\"3f2a\"";
+    private static final long LENGTH = 1000;
+
+    //region > If-None-Match
+
+    @Test
+    public void noIfNoneMatchDoesNotMatch() {
+        Assert.assertThat(CustomerConfirmationServlet.matches(null, ENTITY_TAG), is(false));
+    }
+
+    @Test
+    public void ifNoneMatchMatchesTheEntityTag() {
+        Assert.assertThat(CustomerConfirmationServlet.matches("\"3f2a\"", ENTITY_TAG), is(true));
+        Assert.assertThat(CustomerConfirmationServlet.matches("\"1b7c\", \"3f2a\"", ENTITY_TAG), is(true));
+    }
+
+    @Test
+    public void ifNoneMatchMatchesTheWeakEntityTag() {
+        Assert.assertThat(CustomerConfirmationServlet.matches("W/\"3f2a\"", ENTITY_TAG), is(true));
+    }
+
+    @Test
+    public void ifNoneMatchMatchesAnyEntityTag() {
+        Assert.assertThat(CustomerConfirmationServlet.matches("*", ENTITY_TAG), is(true));
+    }
+
+    @Test
+    public void ifNoneMatchDoesNotMatchAStaleEntityTag() {
+        Assert.assertThat(CustomerConfirmationServlet.matches("\"1b7c\"", ENTITY_TAG), is(false));
+        Assert.assertThat(CustomerConfirmationServlet.matches("W/\"1b7c\"", ENTITY_TAG), is(false));
+    }
+    //endregion
+
+    //region > If-Range
+
+    @Test
+    public void rangeWithoutIfRangeIsHonoured() {
+        Assert.assertThat(CustomerConfirmationServlet.isRangeRequested("bytes=0-99", null, ENTITY_TAG), is(true));
+        Assert.assertThat(CustomerConfirmationServlet.isRangeRequested(null, null, ENTITY_TAG), is(false));
+    }
+
+    @Test
+    public void rangeWithCurrentIfRangeIsHonoured() {
+        Assert.assertThat(CustomerConfirmationServlet.isRangeRequested("bytes=0-99", "\"3f2a\"", ENTITY_TAG), is(true));
+    }
+
+    @Test
+    public void rangeWithStaleIfRangeIsIgnored() {
+        Assert.assertThat(CustomerConfirmationServlet.isRangeRequested("bytes=0-99", "\"1b7c\"", ENTITY_TAG), is(false));
+    }
+
+    @Test
+    public void rangeWithWeakOrDateIfRangeIsIgnored() {
+        Assert.assertThat(CustomerConfirmationServlet.isRangeRequested("bytes=0-99", "W/\"3f2a\"", ENTITY_TAG), is(false));
+        Assert.assertThat(
+                CustomerConfirmationServlet.isRangeRequested("bytes=0-99", "Sat, 17 Oct 2026 10:00:00 GMT", ENTITY_TAG),
+                is(false));
+    }
+
+    @Test
+    public void rangeWithIfRangeIsIgnoredWithoutEntityTag() {
+        Assert.assertThat(CustomerConfirmationServlet.isRangeRequested("bytes=0-99", "\"3f2a\"", null), is(false));
+    }
+    //endregion
+
+    //region > Range
+
+    @Test
+    public void rangeIsBounded() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=0-499", LENGTH), is(new long[] {0, 499}));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=500-", LENGTH), is(new long[] {500, 999}));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=999-999", LENGTH), is(new long[] {999, 999}));
+    }
+
+    @Test
+    public void rangeBeyondTheEndIsCutShort() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=500-5000", LENGTH), is(new long[] {500, 999}));
+    }
+
+    @Test
+    public void suffixRangeIsBounded() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=-100", LENGTH), is(new long[] {900, 999}));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=-5000", LENGTH), is(new long[] {0, 999}));
+    }
+
+    @Test
+    public void emptySuffixRangeIsNotSatisfiable() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=-0", LENGTH), is(new long[0]));
+    }
+
+    @Test
+    public void openRangeAtOrPastTheEndIsNotSatisfiable() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=1000-", LENGTH), is(new long[0]));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=2000-", LENGTH), is(new long[0]));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=1000-1999", LENGTH), is(new long[0]));
+    }
+
+    @Test
+    public void backwardRangeIsIgnored() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=500-100", LENGTH), is(nullValue()));
+    }
+
+    @Test
+    public void multipleRangesAreIgnored() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=0-99,200-299", LENGTH), is(nullValue()));
+    }
+
+    @Test
+    public void malformedRangeIsIgnored() {
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("items=0-99", LENGTH), is(nullValue()));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=100", LENGTH), is(nullValue()));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=a-b", LENGTH), is(nullValue()));
+        Assert.assertThat(CustomerConfirmationServlet.boundsOf("bytes=--1", LENGTH), is(nullValue()));
+    }
+    //endregion
+}